@@ -0,0 +1,120 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import com.google.common.collect.Maps;
+
+import org.kegbot.core.FlowMeter;
+import org.kegbot.kegboard.KegboardMessage;
+import org.kegbot.kegboard.KegboardMessageFactory;
+import org.kegbot.kegboard.KegboardMeterStatusMessage;
+import org.kegbot.kegboard.KegboardStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes meter status frames from serial-read sized pieces of a stream to updated
+ * {@link FlowMeter FlowMeters}, as {@code KegboardController} does on its reader thread. Scores are
+ * per frame; run with {@code -prof gc} to check the path does not allocate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MeterUpdateBenchmark {
+
+  private static final int FRAMES = 200;
+
+  private static final String BOARD_NAME = "kegboard-0a1b2c3d";
+
+  private final KegboardMessageFactory mFactory = new KegboardMessageFactory();
+  private final byte[] mReadBuffer = new byte[KegboardStreams.READ_SIZE];
+  private final KegboardSensorIndex mSensors = new KegboardSensorIndex();
+  private final Map<String, FlowMeter> mMetersByName = Maps.newLinkedHashMap();
+  private byte[] mStream;
+
+  @Setup
+  public void setUp() {
+    // Alternates between two meters, as during simultaneous pours.
+    mStream = KegboardStreams.noisy(FRAMES, 0, 1);
+  }
+
+  /** Resolves meters through {@link KegboardSensorIndex}. */
+  @Benchmark
+  @OperationsPerInvocation(FRAMES)
+  public int indexed(Blackhole blackhole) {
+    int frames = 0;
+    for (int offset = 0; offset < mStream.length; offset += mReadBuffer.length) {
+      final int length = Math.min(mReadBuffer.length, mStream.length - offset);
+      System.arraycopy(mStream, offset, mReadBuffer, 0, length);
+      mFactory.addBytes(mReadBuffer, length);
+      KegboardMessage message;
+      while ((message = mFactory.getReusableMessage()) != null) {
+        final KegboardMeterStatusMessage meterStatus = (KegboardMeterStatusMessage) message;
+        final FlowMeter meter = mSensors.getFlowMeter(BOARD_NAME, meterStatus);
+        meter.setTicks(meterStatus.getMeterReading());
+        blackhole.consume(meter);
+        frames++;
+      }
+    }
+    return frames;
+  }
+
+  /** Resolves meters by formatting each name and looking it up, as the controller used to. */
+  @Benchmark
+  @OperationsPerInvocation(FRAMES)
+  public int formatted(Blackhole blackhole) {
+    int frames = 0;
+    for (int offset = 0; offset < mStream.length; offset += mReadBuffer.length) {
+      final int length = Math.min(mReadBuffer.length, mStream.length - offset);
+      System.arraycopy(mStream, offset, mReadBuffer, 0, length);
+      mFactory.addBytes(mReadBuffer, length);
+      KegboardMessage message;
+      while ((message = mFactory.getReusableMessage()) != null) {
+        final KegboardMeterStatusMessage meterStatus = (KegboardMeterStatusMessage) message;
+        final String meterName = String.format("%s.%s", BOARD_NAME, meterStatus.getMeterName());
+        FlowMeter meter = mMetersByName.get(meterName);
+        if (meter == null) {
+          meter = new FlowMeter(meterName);
+          mMetersByName.put(meterName, meter);
+        }
+        meter.setTicks(meterStatus.getMeterReading());
+        blackhole.consume(meter);
+        frames++;
+      }
+    }
+    return frames;
+  }
+
+}
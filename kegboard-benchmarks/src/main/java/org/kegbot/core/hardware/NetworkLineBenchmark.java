@@ -0,0 +1,182 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+
+import org.kegbot.core.FlowMeter;
+import org.kegbot.core.ThermoSensor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes the lines of a network kegboard's stream to updated {@link FlowMeter FlowMeters} and
+ * {@link ThermoSensor ThermoSensors}, as {@code NetworkController} does on the selector thread.
+ * Scores are lines per second; run with {@code -prof gc} for the bytes allocated per line.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NetworkLineBenchmark {
+
+  private static final int LINES = 200;
+
+  /** One line in this many is a thermo line; the rest are status lines. */
+  private static final int THERMO_INTERVAL = 10;
+
+  private static final String BOARD_NAME = "kegboard-net-0a1b2c3d";
+
+  private final NetworkLineParser mParser = new NetworkLineParser();
+  private final FlowMeter[] mSlotMeters = new FlowMeter[NetworkLineParser.MAX_SLOTS];
+  private final ThermoSensor[] mSlotThermoSensors = new ThermoSensor[NetworkLineParser.MAX_SLOTS];
+
+  private final Map<String, FlowMeter> mMetersByName = Maps.newLinkedHashMap();
+  private final Map<String, ThermoSensor> mThermoSensorsByName = Maps.newLinkedHashMap();
+
+  private byte[] mStream;
+
+  @Setup
+  public void setUp() {
+    // Two meters counting up, as during simultaneous pours, with an occasional temperature.
+    final StringBuilder stream = new StringBuilder();
+    for (int i = 0; i < LINES; i++) {
+      if (i % THERMO_INTERVAL == 0) {
+        stream.append("kb-thermo: temp_0.temp=").append(3 + i / 1000.0).append("\r\n");
+      } else {
+        stream.append("kb-status: meter0.ticks=").append(1000 + 7 * i)
+            .append(" meter1.ticks=").append(52000 + 5 * i).append("\r\n");
+      }
+    }
+    mStream = stream.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /** Parses each line in place with {@link NetworkLineParser}. */
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public int parsed(Blackhole blackhole) {
+    int lines = 0;
+    int lineStart = 0;
+    for (int i = 0; i < mStream.length; i++) {
+      if (mStream[i] != '\n') {
+        continue;
+      }
+      final int type = mParser.parse(mStream, lineStart, i - 1);
+      for (int reading = 0; reading < mParser.getReadingCount(); reading++) {
+        final int slot = mParser.getSlot(reading);
+        if (type == NetworkLineParser.LINE_STATUS) {
+          FlowMeter meter = mSlotMeters[slot];
+          if (meter == null) {
+            meter = new FlowMeter(BOARD_NAME + "." + mParser.getMeterName(slot));
+            mSlotMeters[slot] = meter;
+          }
+          meter.setTicks(mParser.getTicks(reading));
+          blackhole.consume(meter);
+        } else {
+          ThermoSensor sensor = mSlotThermoSensors[slot];
+          if (sensor == null) {
+            sensor = new ThermoSensor(BOARD_NAME + "." + mParser.getThermoName(slot));
+            mSlotThermoSensors[slot] = sensor;
+          }
+          sensor.setTemperatureC(mParser.getTemperatureC(reading));
+          blackhole.consume(sensor);
+        }
+      }
+      lineStart = i + 1;
+      lines++;
+    }
+    return lines;
+  }
+
+  /**
+   * Decodes each line to a string, splits it into a map of readings and looks up each sensor by
+   * name, as the controller used to.
+   */
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public int legacy(Blackhole blackhole) {
+    int lines = 0;
+    int lineStart = 0;
+    for (int i = 0; i < mStream.length; i++) {
+      if (mStream[i] != '\n') {
+        continue;
+      }
+      final String line =
+          new String(mStream, lineStart, i - 1 - lineStart, StandardCharsets.US_ASCII);
+      if (line.startsWith("kb-status: ")) {
+        final Map<String, Integer> meters = Maps.newLinkedHashMap();
+        for (final String meterReading : Splitter.on(' ').split(line.substring(11))) {
+          final String parts[] = meterReading.split("=");
+          if (parts.length == 2) {
+            meters.put(parts[0].replace(".ticks", ""), Integer.valueOf(parts[1]));
+          }
+        }
+        for (final Map.Entry<String, Integer> entry : meters.entrySet()) {
+          final String meterName = BOARD_NAME + "." + entry.getKey().replace("meter", "flow");
+          FlowMeter meter = mMetersByName.get(meterName);
+          if (meter == null) {
+            meter = new FlowMeter(meterName);
+            mMetersByName.put(meterName, meter);
+          }
+          meter.setTicks(entry.getValue().intValue());
+          blackhole.consume(meter);
+        }
+      } else if (line.startsWith("kb-thermo: ")) {
+        final Map<String, Double> temps = Maps.newLinkedHashMap();
+        for (final String tempReading : Splitter.on(' ').split(line.substring(11))) {
+          final String parts[] = tempReading.split("=");
+          if (parts.length == 2) {
+            temps.put(parts[0].replace(".temp", ""), Double.valueOf(parts[1]));
+          }
+        }
+        for (final Map.Entry<String, Double> entry : temps.entrySet()) {
+          final String sensorName = BOARD_NAME + "." + entry.getKey().replace("temp_", "thermo-");
+          ThermoSensor sensor = mThermoSensorsByName.get(sensorName);
+          if (sensor == null) {
+            sensor = new ThermoSensor(sensorName);
+            mThermoSensorsByName.put(sensorName, sensor);
+          }
+          sensor.setTemperatureC(entry.getValue().doubleValue());
+          blackhole.consume(sensor);
+        }
+      }
+      lineStart = i + 1;
+      lines++;
+    }
+    return lines;
+  }
+
+}
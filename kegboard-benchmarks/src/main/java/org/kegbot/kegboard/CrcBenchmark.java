@@ -0,0 +1,111 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.kegboard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CRC16-CCITT throughput over buffers of frame-like sizes. Scores are per buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CrcBenchmark {
+
+  /** The table as {@code KegboardCrc} used to hold it: built lazily, behind a lock. */
+  private static int[] sLegacyTable;
+
+  @Param({"16", "64", "252"})
+  public int length;
+
+  private byte[] mData;
+
+  @Setup
+  public void setUp() {
+    mData = new byte[length];
+    new Random(42).nextBytes(mData);
+  }
+
+  /** Table-driven bulk update, as used by the framing scanner. */
+  @Benchmark
+  public int table() {
+    return KegboardCrc.crc16Ccitt(mData, length);
+  }
+
+  /** Table-driven, one call per byte, as used for frame headers. */
+  @Benchmark
+  public int tablePerByte() {
+    int crc = KegboardCrc.INITIAL_VALUE;
+    for (int i = 0; i < length; i++) {
+      crc = KegboardCrc.update(crc, mData[i]);
+    }
+    return crc;
+  }
+
+  /**
+   * The table before it was made eager and lock-free: a {@code static synchronized} accessor which
+   * builds it on first use, called for every byte as an incremental CRC over it would need.
+   */
+  @Benchmark
+  public int legacySynchronized() {
+    int crc = KegboardCrc.INITIAL_VALUE;
+    for (int i = 0; i < length; i++) {
+      crc = (crc >> 8) ^ getLegacyTable()[(crc ^ mData[i]) & 0x00ff];
+      crc &= 0x0ffff;
+    }
+    return crc;
+  }
+
+  /** The bitwise reference implementation. */
+  @Benchmark
+  public int bitwise() {
+    int crc = KegboardCrc.INITIAL_VALUE;
+    for (int i = 0; i < length; i++) {
+      crc = KegboardCrc.crc16CcittUpdate(crc, mData[i]);
+    }
+    return crc;
+  }
+
+  private static synchronized int[] getLegacyTable() {
+    if (sLegacyTable == null) {
+      sLegacyTable = new int[256];
+      for (int i = 0; i < sLegacyTable.length; i++) {
+        sLegacyTable[i] = KegboardCrc.crc16CcittUpdate(0, (byte) i);
+      }
+    }
+    return sLegacyTable;
+  }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.kegboard;
+
+import com.google.common.primitives.Shorts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes a recorded kegboard session in serial-read sized pieces. Scores are per message;
+ * {@link #decodeLegacy} gives the frames per second before the ring buffer, the others after.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+  private static final int REPEATS = 10;
+
+  private static final int MESSAGES = KegboardStreams.RECORDED_MESSAGES * REPEATS;
+
+  private final KegboardMessageFactory mFactory = new KegboardMessageFactory();
+  private final LegacyMessageFactory mLegacyFactory = new LegacyMessageFactory();
+  private final byte[] mReadBuffer = new byte[KegboardStreams.READ_SIZE];
+  private byte[] mStream;
+
+  @Setup
+  public void setUp(Blackhole blackhole) throws IOException {
+    mStream = KegboardStreams.repeat(KegboardStreams.recorded(), REPEATS);
+    final int messages = KegboardStreams.feed(mFactory, mStream, mReadBuffer, true, blackhole);
+    if (messages != MESSAGES) {
+      throw new IllegalStateException("Expected " + MESSAGES + " messages, got " + messages);
+    }
+    final int legacyMessages = decodeLegacy(blackhole);
+    if (legacyMessages != MESSAGES) {
+      throw new IllegalStateException(
+          "Expected " + MESSAGES + " legacy messages, got " + legacyMessages);
+    }
+  }
+
+  /** Each message is newly allocated, as by {@link KegboardMessageFactory#getMessage()}. */
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public int decodeOwned(Blackhole blackhole) {
+    return KegboardStreams.feed(mFactory, mStream, mReadBuffer, false, blackhole);
+  }
+
+  /** Messages are decoded into reused instances, as on the controller's reader thread. */
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public int decodeReusable(Blackhole blackhole) {
+    return KegboardStreams.feed(mFactory, mStream, mReadBuffer, true, blackhole);
+  }
+
+  /** Messages are framed by {@link LegacyMessageFactory}, the decoder the ring buffer replaced. */
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public int decodeLegacy(Blackhole blackhole) {
+    int messages = 0;
+    for (int offset = 0; offset < mStream.length; offset += mReadBuffer.length) {
+      final int length = Math.min(mReadBuffer.length, mStream.length - offset);
+      System.arraycopy(mStream, offset, mReadBuffer, 0, length);
+      mLegacyFactory.addBytes(mReadBuffer, length);
+      KegboardMessage message;
+      while ((message = mLegacyFactory.getMessage()) != null) {
+        blackhole.consume(message);
+        messages++;
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * The framing of {@code KegboardMessageFactory} before it became a ring buffer: bytes are
+   * appended one at a time, and the whole buffer is shifted down after every frame or framing
+   * error. Frames are still decoded by the current {@link KegboardMessage#fromBytes(byte[])}, so
+   * only the framing differs.
+   */
+  private static final class LegacyMessageFactory {
+    private static final byte[] KBSP_PREFIX = "KBSP v1:".getBytes();
+
+    private static final int KBSP_HEADER_LENGTH = 12;
+    private static final int KBSP_TRAILER_LENGTH = 4;
+    private static final int KBSP_MIN_PACKET_SIZE = KBSP_HEADER_LENGTH + KBSP_TRAILER_LENGTH;
+
+    private final byte[] mBuffer = new byte[2048];
+
+    private int mAppendPosition = 0;
+
+    synchronized void addBytes(byte[] newBytes, int length) {
+      for (int i = 0; i < length; i++) {
+        mBuffer[mAppendPosition++] = newBytes[i];
+      }
+    }
+
+    synchronized KegboardMessage getMessage() {
+      while (mAppendPosition > 0) {
+        final int available = mAppendPosition;
+        if (available < KBSP_MIN_PACKET_SIZE) {
+          return null;
+        }
+
+        boolean framingError = false;
+        for (int i = 0; i < KBSP_PREFIX.length; i++) {
+          if (mBuffer[i] != KBSP_PREFIX[i]) {
+            compact(i + 1);
+            framingError = true;
+            break;
+          }
+        }
+        if (framingError) {
+          continue;
+        }
+
+        final int payloadLength = Shorts.fromBytes(mBuffer[11], mBuffer[10]);
+        if (payloadLength > 240) {
+          compact(KBSP_HEADER_LENGTH);
+          return null;
+        }
+
+        final int totalLength = KBSP_HEADER_LENGTH + payloadLength + KBSP_TRAILER_LENGTH;
+        if (available < totalLength) {
+          return null;
+        }
+
+        try {
+          return KegboardMessage.fromBytes(Arrays.copyOf(mBuffer, totalLength));
+        } catch (KegboardMessageException e) {
+          // Keep trying.
+        } finally {
+          compact(totalLength);
+        }
+      }
+      return null;
+    }
+
+    private void compact(int length) {
+      mAppendPosition -= length;
+      System.arraycopy(mBuffer, length, mBuffer, 0, mBuffer.length - length);
+    }
+  }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.kegboard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the set-output command sent on every relay refresh. Scores are per command.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+  private final KegboardSetOutputCommand mCommand = new KegboardSetOutputCommand(1, true);
+  private final ByteBuffer mBuffer = ByteBuffer.allocate(KegboardMessage.KBSP_MAX_LENGTH);
+
+  /** Not a constant, so the cached lookup cannot be folded away. */
+  private int mOutputId = 1;
+
+  /** The shared pre-encoded frame used by {@code KegboardController}. */
+  @Benchmark
+  public byte[] cached() {
+    return KegboardSetOutputCommand.getEncoded(mOutputId, true);
+  }
+
+  /** Builds and encodes a new command each time. */
+  @Benchmark
+  public byte[] fresh() {
+    return new KegboardSetOutputCommand(mOutputId, true).toBytes();
+  }
+
+  /** Encodes an existing command into a reused buffer. */
+  @Benchmark
+  public int writeToBuffer() {
+    mBuffer.clear();
+    return mCommand.writeTo(mBuffer);
+  }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.kegboard;
+
+import com.google.common.io.ByteStreams;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Builds the byte streams decoded by the benchmarks, and feeds them to a factory the way
+ * {@code KegboardController} does.
+ */
+public final class KegboardStreams {
+
+  /** Messages decoded from one pass over {@code one_flow_active.bin}. */
+  public static final int RECORDED_MESSAGES = 23;
+
+  /** Size of a serial read from the USB driver. */
+  public static final int READ_SIZE = 64;
+
+  private KegboardStreams() {
+  }
+
+  /** Returns the bytes of a recorded session with one active flow. */
+  public static byte[] recorded() throws IOException {
+    final InputStream is = KegboardStreams.class.getResourceAsStream("/one_flow_active.bin");
+    if (is == null) {
+      throw new IOException("Missing resource one_flow_active.bin");
+    }
+    try {
+      return ByteStreams.toByteArray(is);
+    } finally {
+      is.close();
+    }
+  }
+
+  public static byte[] repeat(byte[] stream, int times) {
+    final byte[] result = new byte[stream.length * times];
+    for (int i = 0; i < times; i++) {
+      System.arraycopy(stream, 0, result, i * stream.length, stream.length);
+    }
+    return result;
+  }
+
+  /**
+   * Returns {@code frames} meter status frames, with line noise inserted between them so that
+   * roughly {@code noiseRatio} of the stream is noise. The noise includes partial prefixes,
+   * oversize headers and corrupt frames, which each force the scanner to resynchronise.
+   */
+  public static byte[] noisy(int frames, double noiseRatio, long seed) {
+    final Random random = new Random(seed);
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    final int frameLength = meterStatusFrame("flow0", 0).length;
+    final int noisePerFrame = (int) (frameLength * noiseRatio / (1 - noiseRatio));
+    for (int i = 0; i < frames; i++) {
+      final byte[] noise = noise(random, noisePerFrame);
+      stream.write(noise, 0, noise.length);
+      final byte[] frame = meterStatusFrame("flow" + (i % 2), i);
+      stream.write(frame, 0, frame.length);
+    }
+    return stream.toByteArray();
+  }
+
+  public static byte[] meterStatusFrame(String meterName, int ticks) {
+    final KegboardMeterStatusMessage message = new KegboardMeterStatusMessage();
+    message.putTag(KegboardMeterStatusMessage.TAG_METER_NAME, meterName.getBytes());
+    message.putTag(KegboardMeterStatusMessage.TAG_METER_READING,
+        new byte[]{(byte) ticks, (byte) (ticks >> 8), (byte) (ticks >> 16), (byte) (ticks >> 24)});
+    return message.toBytes();
+  }
+
+  private static byte[] noise(Random random, int length) {
+    final ByteArrayOutputStream noise = new ByteArrayOutputStream();
+    while (noise.size() < length) {
+      switch (random.nextInt(4)) {
+        case 0:
+          noise.write(random.nextInt(256));
+          break;
+        case 1:
+          noise.write("KBSP v1:".getBytes(), 0, random.nextInt(8));
+          break;
+        case 2:
+          final byte[] header = Arrays.copyOf("KBSP v1:".getBytes(), 12);
+          header[8] = (byte) KegboardMeterStatusMessage.MESSAGE_TYPE;
+          header[10] = (byte) (241 + random.nextInt(15));
+          noise.write(header, 0, header.length);
+          break;
+        default:
+          final byte[] frame = meterStatusFrame("flow0", random.nextInt());
+          frame[frame.length - 3]++;
+          noise.write(frame, 0, frame.length);
+          break;
+      }
+    }
+    return Arrays.copyOf(noise.toByteArray(), length);
+  }
+
+  /**
+   * Feeds {@code stream} to {@code factory} in serial-read sized pieces, draining messages after
+   * each piece.
+   *
+   * @return the number of messages decoded
+   */
+  public static int feed(KegboardMessageFactory factory, byte[] stream, byte[] readBuffer,
+      boolean reuse, Blackhole blackhole) {
+    int messages = 0;
+    for (int offset = 0; offset < stream.length; offset += readBuffer.length) {
+      final int length = Math.min(readBuffer.length, stream.length - offset);
+      System.arraycopy(stream, offset, readBuffer, 0, length);
+      factory.addBytes(readBuffer, length);
+      while (true) {
+        final KegboardMessage message =
+            reuse ? factory.getReusableMessage() : factory.getMessage();
+        if (message == null) {
+          break;
+        }
+        blackhole.consume(message);
+        messages++;
+      }
+    }
+    return messages;
+  }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.kegboard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes meter status frames separated by line noise, which exercises framing recovery. Scores
+ * are per valid frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NoisyDecodeBenchmark {
+
+  private static final int FRAMES = 200;
+
+  /** Fraction of the stream which is noise. */
+  @Param({"0", "0.1", "0.5"})
+  public double noiseRatio;
+
+  private final KegboardMessageFactory mFactory = new KegboardMessageFactory();
+  private final byte[] mReadBuffer = new byte[KegboardStreams.READ_SIZE];
+  private byte[] mStream;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    mStream = KegboardStreams.noisy(FRAMES, noiseRatio, 42);
+    final int messages = KegboardStreams.feed(mFactory, mStream, mReadBuffer, true, blackhole);
+    if (messages != FRAMES) {
+      throw new IllegalStateException("Expected " + FRAMES + " messages, got " + messages);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FRAMES)
+  public int decodeReusable(Blackhole blackhole) {
+    return KegboardStreams.feed(mFactory, mStream, mReadBuffer, true, blackhole);
+  }
+
+}
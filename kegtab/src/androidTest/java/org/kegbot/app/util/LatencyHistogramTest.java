@@ -0,0 +1,62 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kegbot.app.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+  public void testEmpty() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMeanNanos());
+    assertEquals(0, histogram.getPercentileMicros(50));
+  }
+
+  public void testPercentiles() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 98; i++) {
+      histogram.record(500);        // Under 1us.
+    }
+    histogram.record(3000);         // 3us, in the [2us, 4us) bucket.
+    histogram.record(1000000);      // 1ms.
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(1, histogram.getPercentileMicros(50));
+    assertEquals(1, histogram.getPercentileMicros(98));
+    assertEquals(4, histogram.getPercentileMicros(99));
+    assertEquals(1024, histogram.getPercentileMicros(100));
+    assertEquals(1000000, histogram.getMaxNanos());
+  }
+
+  public void testCopyIsIndependent() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000);
+    final LatencyHistogram copy = histogram.copy();
+    histogram.record(2000);
+
+    assertEquals(1, copy.getCount());
+    assertEquals(2, histogram.getCount());
+  }
+
+}
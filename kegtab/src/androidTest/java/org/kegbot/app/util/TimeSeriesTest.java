@@ -55,6 +55,18 @@ public class TimeSeriesTest extends TestCase {
     assertEquals(TimeSeries.fromString("0:2 10:1"), builder.build());
   }
 
+  public void testTimeSeries_outOfOrderPointsCoalesce() {
+    TimeSeries.Builder builder = TimeSeries.newBuilder(0, true);
+
+    builder.add(10, 1);
+    builder.add(20, 1);
+    builder.add(15, 1);
+    builder.add(5, 1);
+    builder.add(30, 1);
+
+    assertEquals(TimeSeries.fromString("0:1 10:3 20:1"), builder.build());
+  }
+
   public void testToFromString() {
     TimeSeries ts = TimeSeries.fromString("0:2 10:1");
     assertEquals("0:2 10:1", ts.toString());
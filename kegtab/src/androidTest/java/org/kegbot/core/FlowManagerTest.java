@@ -23,6 +23,7 @@ import android.test.InstrumentationTestCase;
 import com.squareup.otto.Bus;
 
 import org.kegbot.app.config.AppConfiguration;
+import org.kegbot.app.util.TimeSeries;
 import org.kegbot.core.FlowManager.Clock;
 import org.kegbot.proto.Models.Controller;
 import org.kegbot.proto.Models.FlowMeter;
@@ -208,6 +209,18 @@ public class FlowManagerTest extends InstrumentationTestCase {
     assertEquals(0, flows.size());
   }
 
+  public void testMeterActivityUsesAcquisitionTimes() {
+    mElapsedRealtime = 5000;
+    Flow flow = mFlowManager.handleMeterActivity(METER_0, 100, 1000);
+    assertEquals(4000, flow.getDurationMs());
+
+    // Readings delivered together keep the times they were acquired at.
+    mFlowManager.handleMeterActivity(METER_0, 110, 1200);
+    mFlowManager.handleMeterActivity(METER_0, 130, 1400);
+    assertEquals(30, flow.getTicks());
+    assertEquals(TimeSeries.fromString("0:0 200:10 400:20"), flow.getTickTimeSeries());
+  }
+
   public void testAuthentication() {
     Flow flow = mFlowManager.startFlow(METER_0, 10000);
     List<Flow> flows = mFlowManager.getAllActiveFlows();
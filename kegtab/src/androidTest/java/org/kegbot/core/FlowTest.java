@@ -157,4 +157,24 @@ public class FlowTest extends TestCase {
     assertEquals(flow.getTicks(), 6);
   }
 
+  public void testTimeSeriesUsesAcquisitionTimes() {
+    mElapsedRealtime = 1000;
+    Flow flow = new Flow(mFakeClock, FAKE_METER_NAME, 1, FAKE_TAP, 100, 900);
+
+    // Delivered late and all at once, but acquired 100ms apart.
+    mElapsedRealtime = 1500;
+    flow.addTicks(1, 1000);
+    flow.addTicks(2, 1100);
+    flow.addTicks(3, 1200);
+    assertEquals(TimeSeries.fromString("0:0 100:1 200:2 300:3"), flow.getTickTimeSeries());
+
+    // Ticks acquired before the latest are folded into it.
+    flow.addTicks(4, 1150);
+    assertEquals(TimeSeries.fromString("0:0 100:1 200:2 300:7"), flow.getTickTimeSeries());
+    assertEquals(10, flow.getTicks());
+
+    assertEquals(300, flow.getIdleTimeMs());
+    assertEquals(600, flow.getDurationMs());
+  }
+
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link DeadlineScheduler}.
+ */
+public class DeadlineSchedulerTest extends TestCase {
+
+  private final DeadlineScheduler<String> mScheduler = new DeadlineScheduler<String>();
+
+  public void testEmpty() {
+    assertEquals(Long.MAX_VALUE, mScheduler.getNextDeadline());
+    assertNull(mScheduler.pollDue(Long.MAX_VALUE));
+  }
+
+  public void testPollsInDeadlineOrder() {
+    mScheduler.schedule("b", 200);
+    mScheduler.schedule("a", 100);
+    mScheduler.schedule("c", 300);
+    assertEquals(100, mScheduler.getNextDeadline());
+
+    assertNull(mScheduler.pollDue(99));
+    assertEquals("a", mScheduler.pollDue(250));
+    assertEquals("b", mScheduler.pollDue(250));
+    assertNull(mScheduler.pollDue(250));
+    assertEquals(300, mScheduler.getNextDeadline());
+    assertEquals(1, mScheduler.size());
+  }
+
+  public void testRescheduleReplacesDeadline() {
+    mScheduler.schedule("a", 100);
+    mScheduler.schedule("b", 200);
+    mScheduler.schedule("a", 300);
+    assertEquals(200, mScheduler.getNextDeadline());
+    assertEquals("b", mScheduler.pollDue(1000));
+    assertEquals("a", mScheduler.pollDue(1000));
+    assertNull(mScheduler.pollDue(1000));
+
+    // Moving back to an earlier deadline takes effect too.
+    mScheduler.schedule("a", 500);
+    mScheduler.schedule("a", 50);
+    assertEquals(50, mScheduler.getNextDeadline());
+    assertEquals("a", mScheduler.pollDue(50));
+    assertNull(mScheduler.pollDue(1000));
+  }
+
+  public void testCancel() {
+    mScheduler.schedule("a", 100);
+    mScheduler.schedule("b", 200);
+    mScheduler.cancel("a");
+    mScheduler.schedule("b", Long.MAX_VALUE);
+    assertEquals(0, mScheduler.size());
+    assertEquals(Long.MAX_VALUE, mScheduler.getNextDeadline());
+    assertNull(mScheduler.pollDue(Long.MAX_VALUE - 1));
+  }
+
+  public void testCompactionKeepsLiveDeadlines() {
+    for (int i = 0; i < 10000; i++) {
+      mScheduler.schedule("a", 10000 - i);
+      mScheduler.schedule("b", i);
+    }
+    assertEquals(2, mScheduler.size());
+    assertEquals(1, mScheduler.getNextDeadline());
+    assertEquals("a", mScheduler.pollDue(1));
+    assertEquals("b", mScheduler.pollDue(9999));
+    assertNull(mScheduler.pollDue(Long.MAX_VALUE - 1));
+  }
+
+}
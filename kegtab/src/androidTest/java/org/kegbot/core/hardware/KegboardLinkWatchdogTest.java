@@ -0,0 +1,133 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+import com.squareup.otto.Bus;
+
+import org.kegbot.app.config.AppConfiguration;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the link watchdog of {@link KegboardManager}, with a {@link VirtualKegboard} made to
+ * stop answering.
+ */
+public class KegboardLinkWatchdogTest extends InstrumentationTestCase {
+
+  private static final long PING_INTERVAL_MILLIS = 100;
+  private static final long ATTACH_TIMEOUT_MILLIS = 500;
+  private static final long LINK_IDLE_MILLIS = 200;
+
+  private static final long EVENT_TIMEOUT_MILLIS = 5000;
+
+  private VirtualKegboard mBoard;
+  private final RecordingControllerListener mListener = new RecordingControllerListener();
+  private KegboardManager mManager;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    // http://stackoverflow.com/q/12267572
+    System.setProperty("dexmaker.dexcache",
+        getInstrumentation().getTargetContext().getCacheDir().getPath());
+
+    final AppConfiguration config = mock(AppConfiguration.class);
+    when(Long.valueOf(config.getKegboardPingIntervalMillis()))
+        .thenReturn(Long.valueOf(PING_INTERVAL_MILLIS));
+    when(Long.valueOf(config.getKegboardAttachTimeoutMillis()))
+        .thenReturn(Long.valueOf(ATTACH_TIMEOUT_MILLIS));
+    when(Long.valueOf(config.getKegboardLinkIdleMillis()))
+        .thenReturn(Long.valueOf(LINK_IDLE_MILLIS));
+
+    mBoard = new VirtualKegboard(2000, "KB-0000-0000-000007D0");
+    mManager = new KegboardManager(mock(Bus.class), getInstrumentation().getTargetContext(),
+        mListener, config);
+    mManager.start();
+    mManager.addUnmanagedDriver(mBoard.getDriver());
+    assertNotNull("Board did not attach",
+        mListener.attached.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mManager.stop();
+    super.tearDown();
+  }
+
+  public void testSilentBoardIsProbed() throws Exception {
+    SystemClock.sleep(LINK_IDLE_MILLIS + 10 * PING_INTERVAL_MILLIS);
+
+    final KegboardManager.WatchdogStats stats = mManager.getWatchdogStats();
+    assertTrue("Silent board was not probed", stats.probes > 0);
+    assertEquals(0, stats.stalls);
+    assertTrue(mListener.removed.isEmpty());
+  }
+
+  public void testStalledBoardIsReopened() throws Exception {
+    final String meterName = "kegboard-000007d0.flow0";
+    mBoard.sendMeterStatus(0, 100);
+    mListener.awaitTicks(meterName, 100);
+
+    mBoard.setResponsive(false);
+    assertNotNull("Stalled board was not removed",
+        mListener.removed.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertEquals(1, mManager.getWatchdogStats().stalls);
+
+    mBoard.setResponsive(true);
+    final Controller controller =
+        mListener.attached.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    assertNotNull("Stalled board was not reattached", controller);
+    assertEquals("KB-0000-0000-000007D0", controller.getSerialNumber());
+
+    mBoard.sendMeterStatus(0, 150);
+    mListener.awaitTicks(meterName, 150);
+
+    final KegboardManager.WatchdogStats stats = mManager.getWatchdogStats();
+    assertEquals(1, stats.stalls);
+    assertEquals(1, stats.reopens);
+    assertEquals(1, stats.timeToRecover.getCount());
+    assertEquals(50, stats.outageTicks);
+  }
+
+  public void testUnresponsiveBoardIsReopenedWithBackoff() throws Exception {
+    mBoard.setResponsive(false);
+    assertNotNull("Stalled board was not removed",
+        mListener.removed.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+    // Reopened after 1 s and, once that attach times out, again after 2 s more.
+    final long deadline = SystemClock.uptimeMillis() + 2 * EVENT_TIMEOUT_MILLIS;
+    while (mManager.getWatchdogStats().reopens < 2 && SystemClock.uptimeMillis() < deadline) {
+      SystemClock.sleep(50);
+    }
+
+    final KegboardManager.WatchdogStats stats = mManager.getWatchdogStats();
+    assertEquals(1, stats.stalls);
+    assertEquals(2, stats.reopens);
+    assertEquals(0, stats.timeToRecover.getCount());
+    assertTrue(mListener.attached.isEmpty());
+  }
+
+}
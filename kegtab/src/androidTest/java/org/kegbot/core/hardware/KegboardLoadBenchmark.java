@@ -0,0 +1,242 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.squareup.otto.Bus;
+
+import org.kegbot.app.config.AppConfiguration;
+import org.kegbot.app.event.Event;
+import org.kegbot.app.util.LatencyHistogram;
+import org.kegbot.core.FlowMeter;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load benchmark for {@link KegboardManager}, with simulated boards behind
+ * {@link VirtualUsbSerialPort VirtualUsbSerialPorts}.
+ * <p>
+ * For each board count, the boards are attached through the manager's usual ping handshake, then
+ * send randomized traffic for a while. Each meter reading is timed from the board sending it to
+ * its {@link MeterUpdateEvent} reaching the {@link ControllerManager.Listener}, from where the
+ * hardware manager posts it to the flow manager. Reports throughput, latency percentiles and the
+ * CPU used per board, net of the simulated boards' own threads.
+ * </p>
+ */
+public class KegboardLoadBenchmark extends InstrumentationTestCase {
+
+  private static final String TAG = KegboardLoadBenchmark.class.getSimpleName();
+
+  private static final int[] BOARD_COUNTS = {1, 2, 4, 8, 16, 32};
+
+  /** Meter readings sent per second by each board, as during a busy pour on both meters. */
+  private static final int FRAMES_PER_SECOND = 200;
+
+  private static final long TRAFFIC_MILLIS = 2000;
+  private static final long ATTACH_TIMEOUT_MILLIS = 10000;
+  private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+
+  private AppConfiguration mConfig;
+
+  /** Results of one run. */
+  private static final class Result {
+    int boards;
+    long framesSent;
+    long meterEvents;
+    long otherEvents;
+    double seconds;
+    long hostCpuMillis;
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "boards=%d frames/s=%.0f meterEvents/s=%.0f otherEvents=%d latency p50=%dus p90=%dus "
+              + "p99=%dus max=%dus cpu/board=%.2f%%",
+          Integer.valueOf(boards), Double.valueOf(framesSent / seconds),
+          Double.valueOf(meterEvents / seconds), Long.valueOf(otherEvents),
+          Long.valueOf(latency.getPercentileMicros(50)),
+          Long.valueOf(latency.getPercentileMicros(90)),
+          Long.valueOf(latency.getPercentileMicros(99)),
+          Long.valueOf(TimeUnit.NANOSECONDS.toMicros(latency.getMaxNanos())),
+          Double.valueOf(100.0 * hostCpuMillis / (seconds * 1000) / boards));
+    }
+  }
+
+  /** Receives the manager's events for one run. */
+  private static final class LoadListener implements ControllerManager.Listener {
+    final Map<String, VirtualKegboard> boardsBySerial = Maps.newConcurrentMap();
+    final CountDownLatch attached;
+    final Result result;
+    final AtomicLong meterEvents = new AtomicLong();
+    final AtomicLong otherEvents = new AtomicLong();
+
+    /** Last reading delivered per board and meter. */
+    final Map<String, long[]> deliveredTicks = Maps.newConcurrentMap();
+
+    LoadListener(List<VirtualKegboard> boards, Result result) {
+      for (final VirtualKegboard board : boards) {
+        boardsBySerial.put(board.getSerialNumber(), board);
+        deliveredTicks.put(board.getSerialNumber(), new long[VirtualKegboard.METER_COUNT]);
+      }
+      attached = new CountDownLatch(boards.size());
+      this.result = result;
+    }
+
+    @Override
+    public void onControllerAttached(Controller controller) {
+      attached.countDown();
+    }
+
+    @Override
+    public void onControllerEvent(Controller controller, Event event) {
+      final long nowNanos = System.nanoTime();
+      if (!(event instanceof MeterUpdateEvent)) {
+        otherEvents.incrementAndGet();
+        return;
+      }
+      meterEvents.incrementAndGet();
+      final MeterUpdateEvent update = (MeterUpdateEvent) event;
+      final FlowMeter meter = update.getMeter();
+      final VirtualKegboard board = boardsBySerial.get(controller.getSerialNumber());
+      final int meterNumber = VirtualKegboard.getMeterNumber(meter.getMeterName());
+      final long sendNanos = board.getSendNanos(meterNumber, update.getTicks());
+      if (sendNanos >= 0) {
+        result.latency.record(nowNanos - sendNanos);
+      }
+      final long[] delivered = deliveredTicks.get(controller.getSerialNumber());
+      synchronized (delivered) {
+        delivered[meterNumber] = update.getTicks();
+      }
+    }
+
+    @Override
+    public void onControllerRemoved(Controller controller) {
+    }
+
+    boolean isDrained(List<VirtualKegboard> boards) {
+      for (final VirtualKegboard board : boards) {
+        final long[] delivered = deliveredTicks.get(board.getSerialNumber());
+        for (int meter = 0; meter < VirtualKegboard.METER_COUNT; meter++) {
+          synchronized (delivered) {
+            if (delivered[meter] != board.getMeterTicks(meter)) {
+              return false;
+            }
+          }
+        }
+      }
+      return true;
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    // http://stackoverflow.com/q/12267572
+    System.setProperty("dexmaker.dexcache",
+        getInstrumentation().getTargetContext().getCacheDir().getPath());
+
+    mConfig = mock(AppConfiguration.class);
+    when(Long.valueOf(mConfig.getKegboardPingIntervalMillis())).thenReturn(Long.valueOf(100));
+    when(Long.valueOf(mConfig.getKegboardAttachTimeoutMillis()))
+        .thenReturn(Long.valueOf(ATTACH_TIMEOUT_MILLIS));
+    when(Long.valueOf(mConfig.getKegboardLinkIdleMillis())).thenReturn(Long.valueOf(10000));
+  }
+
+  public void testScaling() throws Exception {
+    // Warms up the decode and delivery path, so the first result is comparable with the rest.
+    runLoad(1);
+    for (final int boards : BOARD_COUNTS) {
+      Log.i(TAG, runLoad(boards).toString());
+    }
+  }
+
+  private Result runLoad(int boardCount) throws InterruptedException {
+    final List<VirtualKegboard> boards = Lists.newArrayList();
+    for (int i = 0; i < boardCount; i++) {
+      final int deviceId = 1000 + i;
+      boards.add(new VirtualKegboard(deviceId,
+          String.format(Locale.US, "KB-0000-0000-%08X", Integer.valueOf(deviceId))));
+    }
+    final Result result = new Result();
+    result.boards = boardCount;
+    final LoadListener listener = new LoadListener(boards, result);
+
+    final KegboardManager manager = new KegboardManager(mock(Bus.class),
+        getInstrumentation().getTargetContext(), listener, mConfig);
+    manager.start();
+    try {
+      for (final VirtualKegboard board : boards) {
+        manager.addUnmanagedDriver(board.getDriver());
+      }
+      assertTrue("Boards did not attach",
+          listener.attached.await(ATTACH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+      final long startCpuMillis = Process.getElapsedCpuTime();
+      final long startNanos = System.nanoTime();
+      for (int i = 0; i < boards.size(); i++) {
+        boards.get(i).startTraffic(FRAMES_PER_SECOND, i);
+      }
+      SystemClock.sleep(TRAFFIC_MILLIS);
+      for (final VirtualKegboard board : boards) {
+        board.stopTraffic();
+      }
+
+      final long drainDeadline = SystemClock.uptimeMillis() + DRAIN_TIMEOUT_MILLIS;
+      while (!listener.isDrained(boards) && SystemClock.uptimeMillis() < drainDeadline) {
+        SystemClock.sleep(10);
+      }
+      assertTrue("Not every final reading was delivered", listener.isDrained(boards));
+      result.seconds = (System.nanoTime() - startNanos) / 1e9;
+
+      long boardCpuNanos = 0;
+      for (final VirtualKegboard board : boards) {
+        result.framesSent += board.getFramesSent();
+        boardCpuNanos += board.getTrafficCpuNanos();
+      }
+      result.hostCpuMillis = Process.getElapsedCpuTime() - startCpuMillis
+          - TimeUnit.NANOSECONDS.toMillis(boardCpuNanos);
+      result.meterEvents = listener.meterEvents.get();
+      result.otherEvents = listener.otherEvents.get();
+      assertTrue(result.latency.getCount() > 0);
+    } finally {
+      for (final VirtualKegboard board : boards) {
+        board.stopTraffic();
+      }
+      manager.stop();
+    }
+    return result;
+  }
+
+}
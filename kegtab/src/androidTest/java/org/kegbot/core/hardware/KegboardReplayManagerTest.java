@@ -0,0 +1,177 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import android.test.InstrumentationTestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import org.kegbot.app.event.Event;
+import org.kegbot.kegboard.KegboardCaptureWriter;
+import org.kegbot.kegboard.KegboardMessage;
+import org.kegbot.kegboard.KegboardMessageFactory;
+import org.kegbot.kegboard.KegboardMeterStatusMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link KegboardReplayManager}.
+ */
+public class KegboardReplayManagerTest extends InstrumentationTestCase {
+
+  private File mCaptureFile;
+
+  private final List<Controller> mAttached = Lists.newArrayList();
+  private final List<Event> mEvents = Lists.newArrayList();
+  private final List<Long> mEventNanos = Lists.newArrayList();
+  private final List<Controller> mRemoved = Lists.newArrayList();
+
+  private final ControllerManager.Listener mListener = new ControllerManager.Listener() {
+    @Override
+    public void onControllerAttached(Controller controller) {
+      mAttached.add(controller);
+    }
+
+    @Override
+    public void onControllerEvent(Controller controller, Event event) {
+      mEvents.add(event);
+      mEventNanos.add(Long.valueOf(System.nanoTime()));
+    }
+
+    @Override
+    public void onControllerRemoved(Controller controller) {
+      mRemoved.add(controller);
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mCaptureFile = File.createTempFile("kegboard", ".kbcap");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mCaptureFile.delete();
+    super.tearDown();
+  }
+
+  public void testReplayAtMaxSpeed() throws IOException {
+    // Capture the recorded stream as it would arrive from the serial port, 64 bytes at a time.
+    final byte[] stream = readAsset("one_flow_active.bin");
+    final KegboardCaptureWriter writer = new KegboardCaptureWriter(mCaptureFile);
+    final byte[] chunk = new byte[64];
+    for (int offset = 0; offset < stream.length; offset += chunk.length) {
+      final int length = Math.min(chunk.length, stream.length - offset);
+      System.arraycopy(stream, offset, chunk, 0, length);
+      writer.write(chunk, length, System.nanoTime());
+    }
+    writer.close();
+
+    final KegboardReplayManager manager =
+        new KegboardReplayManager(mListener, mCaptureFile, KegboardReplayManager.MAX_SPEED);
+    manager.replay();
+
+    assertEquals(1, mAttached.size());
+    assertEquals(mAttached, mRemoved);
+    assertFalse(mEvents.isEmpty());
+    for (final Event event : mEvents) {
+      assertTrue(event instanceof MeterUpdateEvent);
+    }
+
+    final KegboardController controller = (KegboardController) mAttached.get(0);
+    final KegboardController.LinkStats stats = controller.getLinkStats();
+    assertEquals(stream.length, stats.stream.bytesAdded);
+    assertEquals(23, stats.stream.messagesDecoded);
+
+    // Several meter frames arrive per 64 byte read: each read raises at most one update.
+    final int meterFrames = countMeterStatusFrames(stream);
+    assertTrue(stats.collapsedMeterFrames > 0);
+    assertEquals(meterFrames, mEvents.size() + stats.collapsedMeterFrames);
+  }
+
+  public void testReplayIsPacedBySpeed() throws IOException {
+    // One reading per read, 200ms apart in the capture: 2ms apart when replayed at 100x.
+    final int reads = 10;
+    final long gapNanos = TimeUnit.MILLISECONDS.toNanos(200);
+    final double speed = 100;
+    final KegboardCaptureWriter writer = new KegboardCaptureWriter(mCaptureFile);
+    final long captureStartNanos = System.nanoTime();
+    for (int i = 0; i < reads; i++) {
+      final byte[] frame = VirtualKegboard.encodeMeterStatus(0, 100 * (i + 1));
+      writer.write(frame, frame.length, captureStartNanos + i * gapNanos);
+    }
+    writer.close();
+
+    final KegboardReplayManager manager =
+        new KegboardReplayManager(mListener, mCaptureFile, speed);
+    final long replayStartNanos = System.nanoTime();
+    manager.replay();
+
+    assertEquals(1, mAttached.size());
+    assertEquals(mAttached, mRemoved);
+    assertEquals(reads, mEvents.size());
+    for (int i = 0; i < reads; i++) {
+      final MeterUpdateEvent update = (MeterUpdateEvent) mEvents.get(i);
+      assertEquals(100 * (i + 1), update.getTicks());
+
+      // No read may be handled before its capture time, scaled by the speed.
+      final long dueNanos = (long) (i * gapNanos / speed);
+      final long arrivedNanos = mEventNanos.get(i).longValue() - replayStartNanos;
+      assertTrue("Read " + i + " handled after " + arrivedNanos + "ns, due at " + dueNanos + "ns",
+          arrivedNanos >= dueNanos);
+    }
+
+    // Nor, allowing for scheduling delays, much after: the 1.8s capture replays in about 18ms.
+    final long captureNanos = (reads - 1) * gapNanos;
+    final long replayedNanos =
+        mEventNanos.get(reads - 1).longValue() - mEventNanos.get(0).longValue();
+    assertTrue("Readings replayed over " + replayedNanos + "ns",
+        replayedNanos < (long) (4 * captureNanos / speed));
+  }
+
+  private static int countMeterStatusFrames(byte[] stream) {
+    final KegboardMessageFactory factory = new KegboardMessageFactory();
+    factory.addBytes(stream, stream.length);
+    int count = 0;
+    KegboardMessage message;
+    while ((message = factory.getReusableMessage()) != null) {
+      if (message instanceof KegboardMeterStatusMessage) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private byte[] readAsset(String name) throws IOException {
+    final InputStream is =
+        getInstrumentation().getTargetContext().getResources().getAssets().open(name);
+    try {
+      return ByteStreams.toByteArray(is);
+    } finally {
+      is.close();
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import junit.framework.TestCase;
+
+import org.kegbot.core.FlowMeter;
+import org.kegbot.core.ThermoSensor;
+import org.kegbot.kegboard.KegboardMessageException;
+import org.kegbot.kegboard.KegboardMeterStatusMessage;
+import org.kegbot.kegboard.KegboardTemperatureReadingMessage;
+import org.kegbot.kegboard.KegboardTestMessages;
+
+/**
+ * Tests for {@link KegboardSensorIndex}.
+ */
+public class KegboardSensorIndexTest extends TestCase {
+
+  private final KegboardSensorIndex mIndex = new KegboardSensorIndex();
+
+  public void testMetersResolveToOneInstancePerPort() throws KegboardMessageException {
+    final FlowMeter flow0 = mIndex.getFlowMeter("kegboard", meterStatus("flow0"));
+    final FlowMeter flow1 = mIndex.getFlowMeter("kegboard", meterStatus("flow1"));
+    assertNotSame(flow0, flow1);
+    assertEquals("kegboard.flow0", flow0.getMeterName());
+    assertEquals("kegboard.flow1", flow1.getMeterName());
+
+    assertSame(flow0, mIndex.getFlowMeter("kegboard", meterStatus("flow0")));
+    assertSame(flow1, mIndex.getFlowMeter("kegboard", meterStatus("flow1")));
+    assertSame(flow0, mIndex.getFlowMeter("kegboard.flow0"));
+    assertEquals(2, mIndex.getFlowMeters().size());
+  }
+
+  public void testRenamedBoardGetsNewMeters() throws KegboardMessageException {
+    final FlowMeter before = mIndex.getFlowMeter("kegboard", meterStatus("flow0"));
+    final FlowMeter after = mIndex.getFlowMeter("kegboard-0a1b2c3d", meterStatus("flow0"));
+    assertNotSame(before, after);
+    assertEquals("kegboard-0a1b2c3d.flow0", after.getMeterName());
+    assertSame(after, mIndex.getFlowMeter("kegboard-0a1b2c3d", meterStatus("flow0")));
+  }
+
+  public void testMoreMetersThanSlots() throws KegboardMessageException {
+    final int meters = KegboardSensorIndex.MAX_SLOTS + 2;
+    final FlowMeter[] first = new FlowMeter[meters];
+    for (int i = 0; i < meters; i++) {
+      first[i] = mIndex.getFlowMeter("kegboard", meterStatus("flow" + i));
+    }
+    for (int i = 0; i < meters; i++) {
+      assertSame(first[i], mIndex.getFlowMeter("kegboard", meterStatus("flow" + i)));
+    }
+    assertEquals(meters, mIndex.getFlowMeters().size());
+  }
+
+  public void testThermoSensors() throws KegboardMessageException {
+    final ThermoSensor a = mIndex.getThermoSensor(temperatureReading("thermo-0000000000000001"));
+    final ThermoSensor b = mIndex.getThermoSensor(temperatureReading("thermo-0000000000000002"));
+    assertNotSame(a, b);
+    assertEquals("thermo-0000000000000001", a.getName());
+    assertSame(a, mIndex.getThermoSensor(temperatureReading("thermo-0000000000000001")));
+    assertSame(b, mIndex.getThermoSensor("thermo-0000000000000002"));
+    assertEquals(2, mIndex.getThermoSensors().size());
+  }
+
+  public void testBoardScopedThermoSensors() throws KegboardMessageException {
+    final ThermoSensor a = mIndex.getThermoSensor("kegboard-net-a", temperatureReading("thermo-0"));
+    assertEquals("kegboard-net-a.thermo-0", a.getName());
+    assertSame(a, mIndex.getOrAddThermoSensor("kegboard-net-a.thermo-0"));
+    assertSame(a, mIndex.getThermoSensor("kegboard-net-a", temperatureReading("thermo-0")));
+
+    final ThermoSensor b = mIndex.getThermoSensor("kegboard-net-b", temperatureReading("thermo-0"));
+    assertEquals("kegboard-net-b.thermo-0", b.getName());
+  }
+
+  /** Returns a meter reading as decoded from the frame the encoder gives for it. */
+  private static KegboardMeterStatusMessage meterStatus(String meterName)
+      throws KegboardMessageException {
+    return new KegboardMeterStatusMessage(
+        KegboardTestMessages.meterStatus(meterName, 1).toBytes());
+  }
+
+  /** Returns a temperature reading as decoded from the frame the encoder gives for it. */
+  private static KegboardTemperatureReadingMessage temperatureReading(String sensorName)
+      throws KegboardMessageException {
+    return new KegboardTemperatureReadingMessage(
+        KegboardTestMessages.temperatureReading(sensorName, 0).toBytes());
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import junit.framework.TestCase;
+
+import org.kegbot.kegboard.KegboardPingCommand;
+import org.kegbot.kegboard.KegboardSetOutputCommand;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link KegboardWriteQueue}.
+ */
+public class KegboardWriteQueueTest extends TestCase {
+
+  private static final Object PING = new Object();
+
+  private final KegboardWriteQueue mQueue = new KegboardWriteQueue();
+
+  public void testCommandsMergeInQueueOrder() throws InterruptedException {
+    final byte[] on = KegboardSetOutputCommand.getEncoded(0, true);
+    final byte[] ping = KegboardPingCommand.getEncoded();
+    assertTrue(mQueue.offer(Integer.valueOf(0), on));
+    assertTrue(mQueue.offer(PING, ping));
+
+    assertTrue(Arrays.equals(concat(on, ping), mQueue.take()));
+    assertEquals(0, mQueue.getStats().depth);
+    assertEquals(2, mQueue.getStats().maxDepth);
+  }
+
+  public void testPendingCommandIsReplacedByKey() throws InterruptedException {
+    final byte[] ping = KegboardPingCommand.getEncoded();
+    final byte[] off = KegboardSetOutputCommand.getEncoded(1, false);
+    assertTrue(mQueue.offer(PING, ping));
+    assertTrue(mQueue.offer(Integer.valueOf(1), KegboardSetOutputCommand.getEncoded(1, true)));
+    assertTrue(mQueue.offer(PING, ping));
+    assertTrue(mQueue.offer(Integer.valueOf(1), off));
+
+    // The relay keeps its place, with only its latest state.
+    assertTrue(Arrays.equals(concat(ping, off), mQueue.take()));
+    final KegboardWriteQueue.Stats stats = mQueue.getStats();
+    assertEquals(4, stats.commands);
+    assertEquals(2, stats.coalesced);
+    assertEquals(2, stats.maxDepth);
+  }
+
+  public void testFullQueueRefusesNewKeys() {
+    final byte[] ping = KegboardPingCommand.getEncoded();
+    for (int i = 0; i < KegboardWriteQueue.CAPACITY; i++) {
+      assertTrue(mQueue.offer(Integer.valueOf(i), ping));
+    }
+    assertFalse(mQueue.offer(PING, ping));
+    assertTrue(mQueue.offer(Integer.valueOf(0), ping));
+
+    final KegboardWriteQueue.Stats stats = mQueue.getStats();
+    assertEquals(KegboardWriteQueue.CAPACITY, stats.depth);
+    assertEquals(1, stats.dropped);
+  }
+
+  public void testWriteIsRecorded() throws InterruptedException {
+    assertTrue(mQueue.offer(PING, KegboardPingCommand.getEncoded()));
+    final byte[] transfer = mQueue.take();
+    mQueue.onWritten(transfer.length);
+
+    final KegboardWriteQueue.Stats stats = mQueue.getStats();
+    assertEquals(1, stats.writes);
+    assertEquals(transfer.length, stats.bytesWritten);
+    assertEquals(1, stats.writeLatency.getCount());
+  }
+
+  public void testCloseReleasesWriter() throws InterruptedException {
+    final AtomicReference<byte[]> taken = new AtomicReference<byte[]>(new byte[0]);
+    final Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          taken.set(mQueue.take());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    writer.start();
+    mQueue.close();
+    writer.join(5000);
+
+    assertFalse(writer.isAlive());
+    assertNull(taken.get());
+    assertFalse(mQueue.offer(PING, KegboardPingCommand.getEncoded()));
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    final byte[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.common.net.HostAndPort;
+import com.squareup.otto.Bus;
+
+import org.kegbot.app.config.AppConfiguration;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link NetworkControllerManager}, against stand-in network kegboards listening on the
+ * loopback interface.
+ */
+public class NetworkControllerManagerTest extends InstrumentationTestCase {
+
+  private static final long EVENT_TIMEOUT_MILLIS = 5000;
+  private static final long READ_TIMEOUT_MILLIS = 3000;
+
+  private final RecordingControllerListener mListener = new RecordingControllerListener();
+  private final List<LoopbackServer> mServers = Lists.newArrayList();
+  private NetworkControllerManager mManager;
+
+  /** A stand-in network kegboard, accepting connections on an ephemeral loopback port. */
+  private static final class LoopbackServer implements Closeable {
+    private final ServerSocket mServerSocket;
+    private final BlockingQueue<Socket> mClients = Queues.newLinkedBlockingQueue();
+
+    LoopbackServer() throws IOException {
+      mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+      final Thread acceptor = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              mClients.add(mServerSocket.accept());
+            }
+          } catch (IOException e) {
+            // Closed.
+          }
+        }
+      }, "loopback-kegboard-" + mServerSocket.getLocalPort());
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    String getHost() {
+      return "127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    Socket awaitClient() throws InterruptedException {
+      final Socket client = mClients.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      assertNotNull("Manager did not connect to " + getHost(), client);
+      return client;
+    }
+
+    static void send(Socket client, String text) throws IOException {
+      send(client, text.getBytes(Charsets.US_ASCII));
+    }
+
+    static void send(Socket client, byte[] bytes) throws IOException {
+      client.getOutputStream().write(bytes);
+      client.getOutputStream().flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      mServerSocket.close();
+      Socket client;
+      while ((client = mClients.poll()) != null) {
+        client.close();
+      }
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    // http://stackoverflow.com/q/12267572
+    System.setProperty("dexmaker.dexcache",
+        getInstrumentation().getTargetContext().getCacheDir().getPath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (mManager != null) {
+      mManager.stop();
+    }
+    for (final LoopbackServer server : mServers) {
+      server.close();
+    }
+    super.tearDown();
+  }
+
+  private void startManager(int serverCount) throws IOException {
+    final List<String> hosts = Lists.newArrayList();
+    for (int i = 0; i < serverCount; i++) {
+      final LoopbackServer server = new LoopbackServer();
+      mServers.add(server);
+      hosts.add(server.getHost());
+    }
+
+    final AppConfiguration config = mock(AppConfiguration.class);
+    when(config.getNetworkControllerHost()).thenReturn(Joiner.on(", ").join(hosts));
+    when(Integer.valueOf(config.getNetworkControllerPort())).thenReturn(Integer.valueOf(8321));
+    when(Long.valueOf(config.getNetworkControllerReadTimeoutMillis()))
+        .thenReturn(Long.valueOf(READ_TIMEOUT_MILLIS));
+
+    mManager = new NetworkControllerManager(mock(Bus.class), mListener, config);
+    mManager.start();
+  }
+
+  public void testParseHosts() {
+    assertEquals(ImmutableList.of(HostAndPort.fromParts("10.0.0.1", 8321),
+        HostAndPort.fromParts("kegboard-2", 9000), HostAndPort.fromParts("10.0.0.3", 8321)),
+        NetworkControllerManager.parseHosts(" 10.0.0.1, kegboard-2:9000\n10.0.0.3,", 8321));
+    assertTrue(NetworkControllerManager.parseHosts("", 8321).isEmpty());
+
+    try {
+      NetworkControllerManager.parseHosts("10.0.0.1:port", 8321);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void testReconnectDelayBacksOffWithJitter() {
+    final Random random = new Random(1);
+    long backoff = 1000;
+    for (int failures = 1; failures <= 20; failures++) {
+      for (int i = 0; i < 10; i++) {
+        final long delay = NetworkControllerManager.getReconnectDelayMillis(failures, random);
+        assertTrue("Delay " + delay + " outside backoff " + backoff,
+            delay >= backoff / 2 && delay <= backoff);
+      }
+      backoff = Math.min(2 * backoff, 60000);
+    }
+  }
+
+  public void testReadsEveryHost() throws Exception {
+    startManager(3);
+    final List<Socket> clients = Lists.newArrayList();
+    for (final LoopbackServer server : mServers) {
+      clients.add(server.awaitClient());
+    }
+
+    for (int i = 0; i < clients.size(); i++) {
+      LoopbackServer.send(clients.get(i),
+          "info: kegboard-particle device_id=dev" + i + " version=1\n"
+              + "kb-status: meter0.ticks=" + (10 + i) + " meter1.ticks=0\n");
+    }
+    for (int i = 0; i < clients.size(); i++) {
+      assertNotNull("Controller did not attach",
+          mListener.attached.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+    for (int i = 0; i < clients.size(); i++) {
+      mListener.awaitTicks("kegboard-net-dev" + i + ".flow0", 10 + i);
+    }
+  }
+
+  public void testLineSplitAcrossReads() throws Exception {
+    startManager(1);
+    final Socket client = mServers.get(0).awaitClient();
+
+    LoopbackServer.send(client, "info: kegboard-particle dev");
+    SystemClock.sleep(50);
+    LoopbackServer.send(client, "ice_id=abc version=1\r\nkb-sta");
+    SystemClock.sleep(50);
+    LoopbackServer.send(client, "tus: meter0.ticks=7\r\n");
+
+    final Controller controller =
+        mListener.attached.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    assertNotNull("Controller did not attach", controller);
+    assertEquals("abc", controller.getSerialNumber());
+    mListener.awaitTicks("kegboard-net-abc.flow0", 7);
+  }
+
+  public void testReconnectsAfterDisconnect() throws Exception {
+    startManager(1);
+    final LoopbackServer server = mServers.get(0);
+
+    final Socket first = server.awaitClient();
+    LoopbackServer.send(first, "info: kegboard-particle device_id=abc version=1\n");
+    assertNotNull("Controller did not attach",
+        mListener.attached.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+    first.close();
+    assertNotNull("Controller was not removed",
+        mListener.removed.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+    final Socket second = server.awaitClient();
+    LoopbackServer.send(second, "info: kegboard-particle device_id=abc version=1\n"
+        + "kb-status: meter0.ticks=20\n");
+    assertNotNull("Controller did not reattach",
+        mListener.attached.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    mListener.awaitTicks("kegboard-net-abc.flow0", 20);
+  }
+
+  public void testSilentControllerIsReconnected() throws Exception {
+    startManager(1);
+    final LoopbackServer server = mServers.get(0);
+
+    final Socket first = server.awaitClient();
+    LoopbackServer.send(first, "info: kegboard-particle device_id=abc version=1\n");
+    assertNotNull("Controller did not attach",
+        mListener.attached.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    for (int i = 1; i <= 5; i++) {
+      LoopbackServer.send(first, "kb-status: meter0.ticks=" + i + "\n");
+      SystemClock.sleep(100);
+    }
+    mListener.awaitTicks("kegboard-net-abc.flow0", 5);
+
+    // The connection stays open, but the controller stops reporting; having reported every
+    // 100 ms, it is given up on well before the read timeout.
+    final long silentSince = SystemClock.uptimeMillis();
+    final NetworkController removed = (NetworkController)
+        mListener.removed.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    assertNotNull("Silent controller was not removed", removed);
+    assertTrue(SystemClock.uptimeMillis() - silentSince < READ_TIMEOUT_MILLIS);
+
+    final Socket second = server.awaitClient();
+    LoopbackServer.send(second, "info: kegboard-particle device_id=abc version=1\n");
+    assertNotNull("Controller did not reattach",
+        mListener.attached.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertEquals(1, removed.getReconnects());
+    assertTrue(removed.getDisconnectedMillis() > 0);
+    first.close();
+  }
+
+  public void testSwitchesToKbspFrames() throws Exception {
+    startManager(1);
+    final Socket client = mServers.get(0).awaitClient();
+    client.setSoTimeout((int) EVENT_TIMEOUT_MILLIS);
+
+    LoopbackServer.send(client, "info: kegboard-particle device_id=abc version=2 kbsp\n");
+    final NetworkController controller = (NetworkController)
+        mListener.attached.poll(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    assertNotNull("Controller did not attach", controller);
+    final BufferedReader reader = new BufferedReader(
+        new InputStreamReader(client.getInputStream(), Charsets.US_ASCII));
+    assertEquals(NetworkController.KBSP_MODE_LINE, reader.readLine());
+    LoopbackServer.send(client, "kb-thermo: temp_0.temp=3.5\n");
+
+    // The acknowledgement and the first frame arrive together.
+    final ByteArrayOutputStream reply = new ByteArrayOutputStream();
+    reply.write((NetworkController.KBSP_MODE_LINE + "\n").getBytes(Charsets.US_ASCII));
+    reply.write(VirtualKegboard.encodeMeterStatus(0, 42));
+    LoopbackServer.send(client, reply.toByteArray());
+    mListener.awaitTicks("kegboard-net-abc.flow0", 42);
+    assertTrue(controller.isKbsp());
+
+    final byte[] frame = VirtualKegboard.encodeMeterStatus(1, 7);
+    LoopbackServer.send(client, Arrays.copyOfRange(frame, 0, 10));
+    SystemClock.sleep(50);
+    LoopbackServer.send(client, Arrays.copyOfRange(frame, 10, frame.length));
+    mListener.awaitTicks("kegboard-net-abc.flow1", 7);
+    assertEquals(2, controller.getFramesRead());
+
+    // A sensor keeps its name across the switch.
+    reply.reset();
+    reply.write(VirtualKegboard.encodeTemperature("thermo-0", 4.25));
+    reply.write(VirtualKegboard.encodeMeterStatus(1, 8));
+    LoopbackServer.send(client, reply.toByteArray());
+    mListener.awaitTicks("kegboard-net-abc.flow1", 8);
+    assertEquals(1, controller.getThermoSensors().size());
+    assertEquals(4.25, controller.getThermoSensor("kegboard-net-abc.thermo-0").getTemperatureC(),
+        0);
+  }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for {@link NetworkLineParser}.
+ */
+public class NetworkLineParserTest extends TestCase {
+
+  private final NetworkLineParser mParser = new NetworkLineParser();
+
+  private int parse(String line) {
+    // Pads the line, so parsing must respect its bounds.
+    final byte[] buffer = ("xx" + line + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    return mParser.parse(buffer, 2, 2 + line.length());
+  }
+
+  public void testStatusLine() {
+    assertEquals(NetworkLineParser.LINE_STATUS,
+        parse("kb-status: meter0.ticks=120 meter1.ticks=0 meter2.ticks=-3"));
+    assertEquals(3, mParser.getReadingCount());
+    assertEquals(120, mParser.getTicks(0));
+    assertEquals(0, mParser.getTicks(1));
+    assertEquals(-3, mParser.getTicks(2));
+    assertEquals("flow0", mParser.getMeterName(mParser.getSlot(0)));
+    assertEquals("flow1", mParser.getMeterName(mParser.getSlot(1)));
+    assertEquals("flow2", mParser.getMeterName(mParser.getSlot(2)));
+  }
+
+  public void testSlotsAreStable() {
+    parse("kb-status: meter0.ticks=1 meter1.ticks=2");
+    final int meter1 = mParser.getSlot(1);
+
+    parse("kb-status: meter1.ticks=5 meter0.ticks=4 meter1.ticks=6");
+    assertEquals(2, mParser.getReadingCount());
+    assertEquals(meter1, mParser.getSlot(0));
+    assertEquals(6, mParser.getTicks(0));
+    assertEquals(4, mParser.getTicks(1));
+  }
+
+  public void testThermoLine() {
+    assertEquals(NetworkLineParser.LINE_THERMO,
+        parse("kb-thermo: temp_0.temp=21.5 temp_1.temp=-0.0625 temp_2.temp=3"));
+    assertEquals(3, mParser.getReadingCount());
+    assertEquals(21.5, mParser.getTemperatureC(0), 0);
+    assertEquals(-0.0625, mParser.getTemperatureC(1), 0);
+    assertEquals(3.0, mParser.getTemperatureC(2), 0);
+    assertEquals("thermo-0", mParser.getThermoName(mParser.getSlot(0)));
+  }
+
+  public void testTemperaturesMatchDouble() {
+    final String[] values = {"0.1", "22.123456789", "1e2", "12345678901234567890.5", ".5", "1."};
+    for (final String value : values) {
+      parse("kb-thermo: temp_0.temp=" + value);
+      assertEquals(value, Double.valueOf(value),
+          Double.valueOf(mParser.getTemperatureC(0)));
+    }
+  }
+
+  public void testMalformedReadingsAreSkipped() {
+    parse("kb-status:  meter0.ticks=1 bogus meter1.ticks= =2 a=b=c meter2.ticks=3 ");
+    assertEquals(2, mParser.getReadingCount());
+    assertEquals(1, mParser.getTicks(0));
+    assertEquals(3, mParser.getTicks(1));
+  }
+
+  public void testInvalidNumberRejectsLine() {
+    try {
+      parse("kb-status: meter0.ticks=1 meter1.ticks=x");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    assertEquals(0, mParser.getReadingCount());
+
+    try {
+      parse("kb-status: meter0.ticks=2147483648");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    parse("kb-status: meter0.ticks=-2147483648");
+    assertEquals(Integer.MIN_VALUE, mParser.getTicks(0));
+  }
+
+  public void testExtraSensorsAreIgnored() {
+    final StringBuilder line = new StringBuilder("kb-status:");
+    for (int i = 0; i <= NetworkLineParser.MAX_SLOTS; i++) {
+      line.append(" meter").append(i).append(".ticks=").append(i);
+    }
+    parse(line.toString());
+    assertEquals(NetworkLineParser.MAX_SLOTS, mParser.getReadingCount());
+  }
+
+  public void testOtherLines() {
+    assertEquals(NetworkLineParser.LINE_OTHER,
+        parse("info: kegboard-particle device_id=abc version=1"));
+    assertEquals(NetworkLineParser.LINE_OTHER, parse("kb-stat"));
+    assertEquals(0, mParser.getReadingCount());
+  }
+
+}
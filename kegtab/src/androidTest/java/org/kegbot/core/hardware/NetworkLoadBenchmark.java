@@ -0,0 +1,271 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.squareup.otto.Bus;
+
+import org.kegbot.app.config.AppConfiguration;
+import org.kegbot.app.event.Event;
+import org.kegbot.app.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load benchmark for {@link NetworkControllerManager}, with simulated boards behind
+ * {@link VirtualNetworkKegboard VirtualNetworkKegboards} on the loopback interface.
+ * <p>
+ * For each board count, the boards are connected and send jittered status lines for a while. Each
+ * meter reading is timed from the board writing its line to its {@link MeterUpdateEvent} reaching
+ * the {@link ControllerManager.Listener}. Every board then drops its connection at once, and the
+ * time until each is reattached is measured. Reports throughput, latency percentiles and recovery
+ * times.
+ * </p>
+ * <p>
+ * Runs on a device or emulator, and logs one line per board count under this class's tag:
+ * {@code ./gradlew :kegtab:connectedAndroidTest
+ * -Pandroid.testInstrumentationRunnerArguments.class=org.kegbot.core.hardware.NetworkLoadBenchmark}
+ * </p>
+ */
+public class NetworkLoadBenchmark extends InstrumentationTestCase {
+
+  private static final String TAG = NetworkLoadBenchmark.class.getSimpleName();
+
+  private static final int[] BOARD_COUNTS = {1, 4, 16, 64};
+
+  /** Mean status lines sent per second by each board. */
+  private static final int LINES_PER_SECOND = 50;
+
+  /** Variation of each gap between lines, as a fraction of the mean. */
+  private static final double JITTER = 0.5;
+
+  private static final long TRAFFIC_MILLIS = 2000;
+  private static final long ATTACH_TIMEOUT_MILLIS = 10000;
+  private static final long RECOVERY_TIMEOUT_MILLIS = 10000;
+  private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+
+  /** Results of one run. */
+  private static final class Result {
+    int boards;
+    long linesSent;
+    long meterEvents;
+    double seconds;
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LatencyHistogram recovery = new LatencyHistogram();
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "boards=%d lines/s=%.0f meterEvents/s=%.0f latency p50=%dus p90=%dus p99=%dus max=%dus "
+              + "recovery p50=%dms max=%dms",
+          Integer.valueOf(boards), Double.valueOf(linesSent / seconds),
+          Double.valueOf(meterEvents / seconds),
+          Long.valueOf(latency.getPercentileMicros(50)),
+          Long.valueOf(latency.getPercentileMicros(90)),
+          Long.valueOf(latency.getPercentileMicros(99)),
+          Long.valueOf(TimeUnit.NANOSECONDS.toMicros(latency.getMaxNanos())),
+          Long.valueOf(recovery.getPercentileMicros(50) / 1000),
+          Long.valueOf(TimeUnit.NANOSECONDS.toMillis(recovery.getMaxNanos())));
+    }
+  }
+
+  /** Receives the manager's events for one run. */
+  private static final class LoadListener implements ControllerManager.Listener {
+    final Map<String, VirtualNetworkKegboard> boardsById = Maps.newConcurrentMap();
+    final CountDownLatch attached;
+    final CountDownLatch recovered;
+    final Set<String> recoveredIds = Sets.newConcurrentHashSet();
+    final Result result;
+
+    /** Meter events counted while measuring throughput. */
+    volatile boolean counting = false;
+    final AtomicLong meterEvents = new AtomicLong();
+
+    /** Last reading delivered per board and meter. */
+    final Map<String, long[]> deliveredTicks = Maps.newConcurrentMap();
+
+    LoadListener(List<VirtualNetworkKegboard> boards, Result result) {
+      for (final VirtualNetworkKegboard board : boards) {
+        boardsById.put(board.getDeviceId(), board);
+        deliveredTicks.put(board.getDeviceId(), new long[VirtualNetworkKegboard.METER_COUNT]);
+      }
+      attached = new CountDownLatch(boards.size());
+      recovered = new CountDownLatch(boards.size());
+      this.result = result;
+    }
+
+    @Override
+    public void onControllerAttached(Controller controller) {
+      final long nowNanos = System.nanoTime();
+      final VirtualNetworkKegboard board = boardsById.get(controller.getSerialNumber());
+      final long disconnectNanos = board.getDisconnectNanos();
+      if (disconnectNanos == 0) {
+        attached.countDown();
+      } else if (recoveredIds.add(board.getDeviceId())) {
+        result.recovery.record(nowNanos - disconnectNanos);
+        recovered.countDown();
+      }
+    }
+
+    @Override
+    public void onControllerEvent(Controller controller, Event event) {
+      final long nowNanos = System.nanoTime();
+      if (!(event instanceof MeterUpdateEvent)) {
+        return;
+      }
+      final MeterUpdateEvent update = (MeterUpdateEvent) event;
+      final VirtualNetworkKegboard board = boardsById.get(controller.getSerialNumber());
+      final int meterNumber =
+          VirtualNetworkKegboard.getMeterNumber(update.getMeter().getMeterName());
+      final long sendNanos = board.getSendNanos(meterNumber, update.getTicks());
+      if (sendNanos >= 0) {
+        result.latency.record(nowNanos - sendNanos);
+      }
+      if (counting) {
+        meterEvents.incrementAndGet();
+      }
+      final long[] delivered = deliveredTicks.get(board.getDeviceId());
+      synchronized (delivered) {
+        delivered[meterNumber] = update.getTicks();
+      }
+    }
+
+    @Override
+    public void onControllerRemoved(Controller controller) {
+    }
+
+    boolean isDrained(List<VirtualNetworkKegboard> boards) {
+      for (final VirtualNetworkKegboard board : boards) {
+        final long[] delivered = deliveredTicks.get(board.getDeviceId());
+        for (int meter = 0; meter < VirtualNetworkKegboard.METER_COUNT; meter++) {
+          synchronized (delivered) {
+            if (delivered[meter] != board.getMeterTicks(meter)) {
+              return false;
+            }
+          }
+        }
+      }
+      return true;
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    // http://stackoverflow.com/q/12267572
+    System.setProperty("dexmaker.dexcache",
+        getInstrumentation().getTargetContext().getCacheDir().getPath());
+  }
+
+  public void testScaling() throws Exception {
+    // Warms up the read and delivery path, so the first result is comparable with the rest.
+    runLoad(1);
+    for (final int boards : BOARD_COUNTS) {
+      Log.i(TAG, runLoad(boards).toString());
+    }
+  }
+
+  private Result runLoad(int boardCount) throws IOException, InterruptedException {
+    final List<VirtualNetworkKegboard> boards = Lists.newArrayList();
+    final List<String> hosts = Lists.newArrayList();
+    final Result result = new Result();
+    result.boards = boardCount;
+
+    NetworkControllerManager manager = null;
+    try {
+      for (int i = 0; i < boardCount; i++) {
+        final VirtualNetworkKegboard board =
+            new VirtualNetworkKegboard(String.format(Locale.US, "net%04d", Integer.valueOf(i)));
+        boards.add(board);
+        hosts.add(board.getHost());
+      }
+      final LoadListener listener = new LoadListener(boards, result);
+
+      final AppConfiguration config = mock(AppConfiguration.class);
+      when(config.getNetworkControllerHost()).thenReturn(Joiner.on(',').join(hosts));
+      when(Integer.valueOf(config.getNetworkControllerPort())).thenReturn(Integer.valueOf(8321));
+      when(Long.valueOf(config.getNetworkControllerReadTimeoutMillis()))
+          .thenReturn(Long.valueOf(30000));
+
+      manager = new NetworkControllerManager(mock(Bus.class), listener, config);
+      manager.start();
+      assertTrue("Boards did not attach",
+          listener.attached.await(ATTACH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+      final long startNanos = System.nanoTime();
+      listener.counting = true;
+      for (int i = 0; i < boards.size(); i++) {
+        boards.get(i).startTraffic(LINES_PER_SECOND, JITTER, i);
+      }
+      SystemClock.sleep(TRAFFIC_MILLIS);
+      listener.counting = false;
+      result.seconds = (System.nanoTime() - startNanos) / 1e9;
+      for (final VirtualNetworkKegboard board : boards) {
+        result.linesSent += board.getLinesSent();
+      }
+      result.meterEvents = listener.meterEvents.get();
+
+      // Drops every connection at once, with traffic still running.
+      for (final VirtualNetworkKegboard board : boards) {
+        board.disconnect();
+      }
+      assertTrue("Boards did not recover",
+          listener.recovered.await(RECOVERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+      for (final VirtualNetworkKegboard board : boards) {
+        board.stopTraffic();
+        // Readings advanced while disconnected are sent again now the boards are back.
+        board.sendStatus();
+      }
+      final long drainDeadline = SystemClock.uptimeMillis() + DRAIN_TIMEOUT_MILLIS;
+      while (!listener.isDrained(boards) && SystemClock.uptimeMillis() < drainDeadline) {
+        SystemClock.sleep(10);
+      }
+      assertTrue("Not every final reading was delivered", listener.isDrained(boards));
+      assertTrue(result.latency.getCount() > 0);
+    } finally {
+      if (manager != null) {
+        manager.stop();
+      }
+      for (final VirtualNetworkKegboard board : boards) {
+        board.close();
+      }
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import android.os.SystemClock;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+
+import junit.framework.Assert;
+
+import org.kegbot.app.event.Event;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A {@link ControllerManager.Listener} for tests, queueing attached and removed controllers and
+ * keeping the last reading delivered for each meter.
+ */
+class RecordingControllerListener implements ControllerManager.Listener {
+
+  /** How long {@link #awaitTicks(String, long)} waits for a reading. */
+  static final long EVENT_TIMEOUT_MILLIS = 5000;
+
+  final BlockingQueue<Controller> attached = Queues.newLinkedBlockingQueue();
+  final BlockingQueue<Controller> removed = Queues.newLinkedBlockingQueue();
+
+  /** Last reading delivered per meter name. */
+  final Map<String, Long> ticks = Maps.newConcurrentMap();
+
+  @Override
+  public void onControllerAttached(Controller controller) {
+    attached.add(controller);
+  }
+
+  @Override
+  public void onControllerEvent(Controller controller, Event event) {
+    if (event instanceof MeterUpdateEvent) {
+      final MeterUpdateEvent update = (MeterUpdateEvent) event;
+      ticks.put(update.getMeter().getMeterName(), Long.valueOf(update.getTicks()));
+    }
+  }
+
+  @Override
+  public void onControllerRemoved(Controller controller) {
+    removed.add(controller);
+  }
+
+  /** Waits for {@code expected} to be delivered as the reading of {@code meterName}. */
+  void awaitTicks(String meterName, long expected) throws InterruptedException {
+    final long deadline = SystemClock.uptimeMillis() + EVENT_TIMEOUT_MILLIS;
+    while (SystemClock.uptimeMillis() < deadline) {
+      final Long delivered = ticks.get(meterName);
+      if (delivered != null && delivered.longValue() == expected) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    Assert.fail("Reading " + expected + " of " + meterName + " not delivered, last " + ticks);
+  }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import android.hardware.usb.UsbDevice;
+import android.os.Debug;
+import android.util.Log;
+
+import org.kegbot.kegboard.KegboardTestMessages;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A simulated kegboard behind a {@link VirtualUsbSerialPort}, with two flow meters, two thermo
+ * sensors and an auth token reader.
+ * <p>
+ * The board answers pings with a hello, like the firmware, unless made unresponsive with
+ * {@link #setResponsive(boolean)}. Traffic is sent either by calling the
+ * {@code send} methods, or by {@link #startTraffic(int, long)}, which runs a thread sending
+ * randomized meter, temperature and token messages at a fixed rate. Each meter reading's send
+ * time is kept so that the latency of its delivery can be measured.
+ * </p>
+ */
+class VirtualKegboard implements VirtualUsbSerialPort.Device {
+
+  private static final String TAG = VirtualKegboard.class.getSimpleName();
+
+  static final int METER_COUNT = 2;
+  static final int FIRMWARE_VERSION = 18;
+
+  private static final int PING_COMMAND_TYPE = 0x81;
+  private static final int SET_OUTPUT_COMMAND_TYPE = 0x84;
+
+  /** KBSP header, type and length. */
+  private static final int HEADER_LENGTH = 12;
+  /** CRC and trailer. */
+  private static final int FOOTER_LENGTH = 4;
+
+  /** Randomized traffic sends a temperature reading and a token change this often. */
+  private static final int THERMO_INTERVAL = 20;
+  private static final int TOKEN_INTERVAL = 100;
+
+  /** Send times are kept for this many recent readings of each meter. */
+  private static final int SEND_HISTORY = 4096;
+
+  private final String mSerialNumber;
+  private final VirtualUsbSerialDriver mDriver;
+  private final String[] mSensorNames;
+  private final byte[] mToken;
+
+  @GuardedBy("this")
+  private final long[] mMeterTicks = new long[METER_COUNT];
+
+  @GuardedBy("this")
+  private boolean mTokenPresent = false;
+
+  /**
+   * Send time and reading of recent meter readings, by reading. Written with the board's lock
+   * held, before the reading's bytes are queued on the port; the port's own lock then makes them
+   * visible to the host's reader thread.
+   */
+  private final long[][] mSendNanos = new long[METER_COUNT][SEND_HISTORY];
+  private final long[][] mSentTicks = new long[METER_COUNT][SEND_HISTORY];
+
+  private volatile long mFramesSent = 0;
+  private volatile long mPingsAnswered = 0;
+  private volatile long mOutputCommands = 0;
+
+  private volatile boolean mResponsive = true;
+
+  private Thread mTrafficThread;
+  private volatile long mTrafficCpuNanos = 0;
+
+  VirtualKegboard(int deviceId, String serialNumber) {
+    mSerialNumber = serialNumber;
+    final UsbDevice device = mock(UsbDevice.class);
+    when(Integer.valueOf(device.getDeviceId())).thenReturn(Integer.valueOf(deviceId));
+    mDriver = new VirtualUsbSerialDriver(device, this);
+    mSensorNames = new String[] {
+        String.format("thermo-%08x00000001", Integer.valueOf(deviceId)),
+        String.format("thermo-%08x00000002", Integer.valueOf(deviceId)),
+    };
+    mToken = new byte[] {1, 2, 3, 4, (byte) (deviceId >> 24), (byte) (deviceId >> 16),
+        (byte) (deviceId >> 8), (byte) deviceId};
+    for (int meter = 0; meter < METER_COUNT; meter++) {
+      for (int i = 0; i < SEND_HISTORY; i++) {
+        mSentTicks[meter][i] = -1;
+      }
+    }
+  }
+
+  VirtualUsbSerialDriver getDriver() {
+    return mDriver;
+  }
+
+  String getSerialNumber() {
+    return mSerialNumber;
+  }
+
+  static String getMeterPortName(int meter) {
+    return "flow" + meter;
+  }
+
+  /** Returns the meter number of a port name returned by {@link #getMeterPortName(int)}. */
+  static int getMeterNumber(String meterName) {
+    return meterName.charAt(meterName.length() - 1) - '0';
+  }
+
+  @Override
+  public void onHostWrite(byte[] src, int length) throws IOException {
+    int offset = 0;
+    while (length - offset >= HEADER_LENGTH + FOOTER_LENGTH) {
+      final int type = (src[offset + 8] & 0xff) | ((src[offset + 9] & 0xff) << 8);
+      final int payloadLength = (src[offset + 10] & 0xff) | ((src[offset + 11] & 0xff) << 8);
+      if (type == PING_COMMAND_TYPE) {
+        if (mResponsive) {
+          mPingsAnswered++;
+          sendHello();
+        }
+      } else if (type == SET_OUTPUT_COMMAND_TYPE) {
+        mOutputCommands++;
+      } else {
+        Log.w(TAG, "Ignoring command type " + type);
+      }
+      offset += HEADER_LENGTH + payloadLength + FOOTER_LENGTH;
+    }
+  }
+
+  /** Sets whether the board answers pings; an unresponsive one ignores them, as if wedged. */
+  void setResponsive(boolean responsive) {
+    mResponsive = responsive;
+  }
+
+  synchronized void sendHello() throws IOException {
+    send(KegboardTestMessages.hello(FIRMWARE_VERSION, 1, mSerialNumber).toBytes());
+  }
+
+  synchronized void sendMeterStatus(int meter, long ticks) throws IOException {
+    mMeterTicks[meter] = ticks;
+    final int slot = (int) (ticks % SEND_HISTORY);
+    mSendNanos[meter][slot] = System.nanoTime();
+    mSentTicks[meter][slot] = ticks;
+    send(encodeMeterStatus(meter, ticks));
+  }
+
+  synchronized void sendTemperature(int sensor, double celsius) throws IOException {
+    send(encodeTemperature(mSensorNames[sensor], celsius));
+  }
+
+  /** Returns the KBSP frame reporting a meter reading. */
+  static byte[] encodeMeterStatus(int meter, long ticks) {
+    return KegboardTestMessages.meterStatus(getMeterPortName(meter), ticks).toBytes();
+  }
+
+  /** Returns the KBSP frame reporting a temperature. */
+  static byte[] encodeTemperature(String sensorName, double celsius) {
+    return KegboardTestMessages.temperatureReading(sensorName, celsius).toBytes();
+  }
+
+  synchronized void sendAuthToken(boolean present) throws IOException {
+    mTokenPresent = present;
+    send(KegboardTestMessages.authToken("core.onewire", mToken, present).toBytes());
+  }
+
+  /** Returns the last reading sent for {@code meter}. */
+  synchronized long getMeterTicks(int meter) {
+    return mMeterTicks[meter];
+  }
+
+  /**
+   * Returns the {@link System#nanoTime()} at which a meter reading was sent, or {@code -1} if it
+   * was not sent or is no longer remembered.
+   */
+  long getSendNanos(int meter, long ticks) {
+    final int slot = (int) (ticks % SEND_HISTORY);
+    return mSentTicks[meter][slot] == ticks ? mSendNanos[meter][slot] : -1;
+  }
+
+  long getFramesSent() {
+    return mFramesSent;
+  }
+
+  long getPingsAnswered() {
+    return mPingsAnswered;
+  }
+
+  long getOutputCommands() {
+    return mOutputCommands;
+  }
+
+  /**
+   * Starts sending randomized traffic: one meter reading every {@code 1 / framesPerSecond}
+   * seconds, alternating at random between the meters, with a temperature reading every
+   * {@value #THERMO_INTERVAL} and a token change every {@value #TOKEN_INTERVAL} readings.
+   */
+  synchronized void startTraffic(final int framesPerSecond, final long seed) {
+    stopTraffic();
+    mTrafficThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sendTraffic(framesPerSecond, new Random(seed));
+        } catch (IOException e) {
+          Log.d(TAG, "Traffic stopped: " + e);
+        } finally {
+          mTrafficCpuNanos = Debug.threadCpuTimeNanos();
+        }
+      }
+    }, "virtual-kegboard-" + mSerialNumber);
+    mTrafficThread.start();
+  }
+
+  /** Stops the traffic thread, if running, and waits for it to exit. */
+  void stopTraffic() {
+    final Thread thread;
+    synchronized (this) {
+      thread = mTrafficThread;
+      mTrafficThread = null;
+    }
+    if (thread == null) {
+      return;
+    }
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Returns the CPU time used by the last traffic thread, once stopped. */
+  long getTrafficCpuNanos() {
+    return mTrafficCpuNanos;
+  }
+
+  private void sendTraffic(int framesPerSecond, Random random) throws IOException {
+    final long periodNanos = 1000000000L / framesPerSecond;
+    long dueNanos = System.nanoTime();
+    for (long step = 0; !Thread.currentThread().isInterrupted(); step++) {
+      final int meter = random.nextInt(METER_COUNT);
+      sendMeterStatus(meter, getMeterTicks(meter) + 1 + random.nextInt(4));
+      if (step % THERMO_INTERVAL == 0) {
+        sendTemperature(random.nextInt(mSensorNames.length), 2 + 4 * random.nextDouble());
+      }
+      if (step % TOKEN_INTERVAL == 0) {
+        synchronized (this) {
+          sendAuthToken(!mTokenPresent);
+        }
+      }
+
+      dueNanos += periodNanos;
+      final long waitNanos = dueNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        LockSupport.parkNanos(waitNanos);
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void send(byte[] frame) throws IOException {
+    mDriver.getPort().receive(frame, frame.length);
+    mFramesSent++;
+  }
+
+  @Override
+  public String toString() {
+    return "VirtualKegboard " + mSerialNumber;
+  }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A simulated network kegboard, listening on an ephemeral loopback port and speaking the text
+ * protocol of {@link NetworkController}, with two flow meters and a thermo sensor.
+ * <p>
+ * Each connection is greeted with an {@code info:} line. Traffic is sent by
+ * {@link #startTraffic(int, double, long)}, which runs a thread sending status lines with jittered
+ * gaps, and {@link #disconnect()} drops the connection, as a controller losing its network would.
+ * The meters keep counting while disconnected, and lines due then are lost. Each meter reading's
+ * send time is kept so that the latency of its delivery can be measured.
+ * </p>
+ */
+class VirtualNetworkKegboard implements Closeable {
+
+  private static final String TAG = VirtualNetworkKegboard.class.getSimpleName();
+
+  static final int METER_COUNT = 2;
+
+  /** Traffic sends a thermo line this often. */
+  private static final int THERMO_INTERVAL = 20;
+
+  /** Send times are kept for this many recent readings of each meter. */
+  private static final int SEND_HISTORY = 4096;
+
+  private final String mDeviceId;
+  private final ServerSocket mServerSocket;
+
+  @GuardedBy("this")
+  @Nullable
+  private Socket mClient;
+
+  @GuardedBy("this")
+  private final long[] mMeterTicks = new long[METER_COUNT];
+
+  /**
+   * Send time and reading of recent meter readings, by reading. Written with the board's lock
+   * held, before the reading's line is written to the socket.
+   */
+  private final long[][] mSendNanos = new long[METER_COUNT][SEND_HISTORY];
+  private final long[][] mSentTicks = new long[METER_COUNT][SEND_HISTORY];
+
+  private volatile long mLinesSent = 0;
+  private volatile long mLinesLost = 0;
+  private volatile long mConnections = 0;
+
+  /** {@link System#nanoTime()} of the last {@link #disconnect()}, or 0 if none. */
+  private volatile long mDisconnectNanos = 0;
+
+  private Thread mTrafficThread;
+
+  VirtualNetworkKegboard(String deviceId) throws IOException {
+    mDeviceId = deviceId;
+    mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    for (int meter = 0; meter < METER_COUNT; meter++) {
+      for (int i = 0; i < SEND_HISTORY; i++) {
+        mSentTicks[meter][i] = -1;
+      }
+    }
+
+    final Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            onConnection(mServerSocket.accept());
+          }
+        } catch (IOException e) {
+          // Closed.
+        }
+      }
+    }, "virtual-network-kegboard-" + deviceId);
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  String getDeviceId() {
+    return mDeviceId;
+  }
+
+  /** Returns this board's address, as listed in the network controller host setting. */
+  String getHost() {
+    return "127.0.0.1:" + mServerSocket.getLocalPort();
+  }
+
+  /** Returns the meter number of a meter named by a {@link NetworkController}. */
+  static int getMeterNumber(String meterName) {
+    return meterName.charAt(meterName.length() - 1) - '0';
+  }
+
+  private synchronized void onConnection(Socket client) {
+    closeClient();
+    mClient = client;
+    mConnections++;
+    writeLine(String.format(Locale.US, "info: kegboard-particle device_id=%s version=1",
+        mDeviceId));
+  }
+
+  /** Drops the current connection, if any. The host is expected to reconnect. */
+  synchronized void disconnect() {
+    mDisconnectNanos = System.nanoTime();
+    closeClient();
+  }
+
+  @GuardedBy("this")
+  private void closeClient() {
+    if (mClient != null) {
+      try {
+        mClient.close();
+      } catch (IOException e) {
+        // Close quietly.
+      }
+      mClient = null;
+    }
+  }
+
+  /** Writes a line to the current connection, if any, returning whether it was written. */
+  @GuardedBy("this")
+  private boolean writeLine(String line) {
+    if (mClient == null) {
+      mLinesLost++;
+      return false;
+    }
+    try {
+      final OutputStream output = mClient.getOutputStream();
+      output.write((line + "\r\n").getBytes(Charsets.US_ASCII));
+      output.flush();
+      mLinesSent++;
+      return true;
+    } catch (IOException e) {
+      Log.d(TAG, "Connection lost: " + e);
+      closeClient();
+      mLinesLost++;
+      return false;
+    }
+  }
+
+  /** Advances a meter, then sends the status of every meter. */
+  synchronized void advanceMeter(int meter, long ticks) {
+    mMeterTicks[meter] += ticks;
+    sendStatus();
+  }
+
+  /**
+   * Sends the status of every meter, recording the send time of each reading not sent before.
+   * Times are recorded ahead of the write, since the host may handle the line at once, and
+   * forgotten if the line is lost.
+   */
+  synchronized void sendStatus() {
+    final StringBuilder line = new StringBuilder("kb-status:");
+    final long nowNanos = System.nanoTime();
+    final boolean[] recorded = new boolean[METER_COUNT];
+    for (int meter = 0; meter < METER_COUNT; meter++) {
+      final long ticks = mMeterTicks[meter];
+      final int slot = (int) (ticks % SEND_HISTORY);
+      if (mSentTicks[meter][slot] != ticks) {
+        mSendNanos[meter][slot] = nowNanos;
+        mSentTicks[meter][slot] = ticks;
+        recorded[meter] = true;
+      }
+      line.append(" meter").append(meter).append(".ticks=").append(ticks);
+    }
+    if (!writeLine(line.toString())) {
+      for (int meter = 0; meter < METER_COUNT; meter++) {
+        if (recorded[meter]) {
+          mSentTicks[meter][(int) (mMeterTicks[meter] % SEND_HISTORY)] = -1;
+        }
+      }
+    }
+  }
+
+  synchronized void sendTemperature(double celsius) {
+    writeLine(String.format(Locale.US, "kb-thermo: temp_0.temp=%.3f", Double.valueOf(celsius)));
+  }
+
+  /** Returns the current reading of {@code meter}, whether or not it was sent. */
+  synchronized long getMeterTicks(int meter) {
+    return mMeterTicks[meter];
+  }
+
+  /**
+   * Returns the {@link System#nanoTime()} at which a meter reading was first sent, or {@code -1}
+   * if it was not sent or is no longer remembered.
+   */
+  long getSendNanos(int meter, long ticks) {
+    final int slot = (int) (ticks % SEND_HISTORY);
+    return mSentTicks[meter][slot] == ticks ? mSendNanos[meter][slot] : -1;
+  }
+
+  long getLinesSent() {
+    return mLinesSent;
+  }
+
+  /** Returns the number of lines due while no connection was open. */
+  long getLinesLost() {
+    return mLinesLost;
+  }
+
+  long getConnections() {
+    return mConnections;
+  }
+
+  long getDisconnectNanos() {
+    return mDisconnectNanos;
+  }
+
+  /**
+   * Starts sending traffic: a status line every {@code 1 / linesPerSecond} seconds on average,
+   * each after advancing a random meter, with a thermo line every {@value #THERMO_INTERVAL}. Each
+   * gap is varied at random by up to {@code jitter} of the mean, either way.
+   */
+  synchronized void startTraffic(final int linesPerSecond, final double jitter, final long seed) {
+    stopTraffic();
+    mTrafficThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        sendTraffic(linesPerSecond, jitter, new Random(seed));
+      }
+    }, "virtual-network-kegboard-traffic-" + mDeviceId);
+    mTrafficThread.start();
+  }
+
+  /** Stops the traffic thread, if running, and waits for it to exit. */
+  void stopTraffic() {
+    final Thread thread;
+    synchronized (this) {
+      thread = mTrafficThread;
+      mTrafficThread = null;
+    }
+    if (thread == null) {
+      return;
+    }
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void sendTraffic(int linesPerSecond, double jitter, Random random) {
+    final long periodNanos = 1000000000L / linesPerSecond;
+    long dueNanos = System.nanoTime();
+    for (long step = 0; !Thread.currentThread().isInterrupted(); step++) {
+      advanceMeter(random.nextInt(METER_COUNT), 1 + random.nextInt(4));
+      if (step % THERMO_INTERVAL == 0) {
+        sendTemperature(2 + 4 * random.nextDouble());
+      }
+
+      dueNanos += (long) (periodNanos * (1 + jitter * (2 * random.nextDouble() - 1)));
+      final long waitNanos = dueNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        LockSupport.parkNanos(waitNanos);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    stopTraffic();
+    mServerSocket.close();
+    synchronized (this) {
+      closeClient();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "VirtualNetworkKegboard " + mDeviceId;
+  }
+
+}
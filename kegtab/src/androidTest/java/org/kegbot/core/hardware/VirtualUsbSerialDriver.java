@@ -0,0 +1,60 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import android.hardware.usb.UsbDevice;
+
+import com.google.common.collect.ImmutableList;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.util.List;
+
+/**
+ * A {@link UsbSerialDriver} with a single {@link VirtualUsbSerialPort}.
+ */
+class VirtualUsbSerialDriver implements UsbSerialDriver {
+
+  private final UsbDevice mDevice;
+  private final VirtualUsbSerialPort mPort;
+
+  /**
+   * @param device the device to report, normally a mock naming a device id
+   * @param simulatedDevice receives what the host writes to the port
+   */
+  VirtualUsbSerialDriver(UsbDevice device, VirtualUsbSerialPort.Device simulatedDevice) {
+    mDevice = device;
+    mPort = new VirtualUsbSerialPort(this, 0, simulatedDevice);
+  }
+
+  @Override
+  public UsbDevice getDevice() {
+    return mDevice;
+  }
+
+  @Override
+  public List<UsbSerialPort> getPorts() {
+    return ImmutableList.<UsbSerialPort>of(mPort);
+  }
+
+  VirtualUsbSerialPort getPort() {
+    return mPort;
+  }
+
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.core.hardware;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An in-memory {@link UsbSerialPort}, for running the kegboard stack without hardware.
+ * <p>
+ * Bytes passed to {@link #receive(byte[], int)} are returned by {@link #read(byte[], int)} as if
+ * they had arrived from the device, at most one USB packet per read, and bytes written by the
+ * host are handed to the port's {@link Device}. Receiving blocks while the port's buffer is full,
+ * as a device is held off when the host stops reading.
+ * </p>
+ * <p>
+ * A closed port may be opened again, starting with an empty buffer. Reads begun before the port
+ * was closed fail, even if it has been reopened since.
+ * </p>
+ */
+class VirtualUsbSerialPort implements UsbSerialPort {
+
+  /** The simulated device on the far side of a port. */
+  interface Device {
+    /** Called on the writing thread with the bytes the host wrote. */
+    void onHostWrite(byte[] src, int length) throws IOException;
+  }
+
+  /** Most bytes returned by one read, as for a full-speed bulk packet. */
+  static final int PACKET_SIZE = 64;
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private final UsbSerialDriver mDriver;
+  private final int mPortNumber;
+  private final Device mDevice;
+
+  private final Object mLock = new Object();
+
+  @GuardedBy("mLock")
+  private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+  @GuardedBy("mLock")
+  private int mHead = 0;
+
+  @GuardedBy("mLock")
+  private int mCount = 0;
+
+  @GuardedBy("mLock")
+  private boolean mOpen = false;
+
+  @GuardedBy("mLock")
+  private boolean mClosed = false;
+
+  /** Incremented by each open, so that reads from an earlier one can tell. */
+  @GuardedBy("mLock")
+  private int mOpenCount = 0;
+
+  private volatile boolean mDtr = false;
+  private volatile boolean mRts = false;
+
+  VirtualUsbSerialPort(UsbSerialDriver driver, int portNumber, Device device) {
+    mDriver = driver;
+    mPortNumber = portNumber;
+    mDevice = device;
+  }
+
+  /**
+   * Queues bytes from the device for the host to read, waiting for room as needed.
+   *
+   * @throws IOException if the port is closed first
+   */
+  void receive(byte[] src, int length) throws IOException {
+    int offset = 0;
+    synchronized (mLock) {
+      while (offset < length) {
+        while (mCount == BUFFER_SIZE && !mClosed) {
+          awaitLock();
+        }
+        if (mClosed) {
+          throw new IOException("Port closed.");
+        }
+        final int tail = (mHead + mCount) % BUFFER_SIZE;
+        final int amount = Math.min(length - offset,
+            Math.min(BUFFER_SIZE - mCount, BUFFER_SIZE - tail));
+        System.arraycopy(src, offset, mBuffer, tail, amount);
+        mCount += amount;
+        offset += amount;
+        mLock.notifyAll();
+      }
+    }
+  }
+
+  /** Returns the number of received bytes the host has not yet read. */
+  int getPendingBytes() {
+    synchronized (mLock) {
+      return mCount;
+    }
+  }
+
+  @GuardedBy("mLock")
+  private void awaitLock() throws IOException {
+    try {
+      mLock.wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted.");
+    }
+  }
+
+  @Override
+  public UsbSerialDriver getDriver() {
+    return mDriver;
+  }
+
+  @Override
+  public UsbDevice getDevice() {
+    return mDriver.getDevice();
+  }
+
+  @Override
+  public int getPortNumber() {
+    return mPortNumber;
+  }
+
+  @Override
+  public UsbEndpoint getWriteEndpoint() {
+    return null;
+  }
+
+  @Override
+  public UsbEndpoint getReadEndpoint() {
+    return null;
+  }
+
+  @Override
+  public String getSerial() {
+    return null;
+  }
+
+  @Override
+  public void open(UsbDeviceConnection connection) throws IOException {
+    synchronized (mLock) {
+      if (mOpen) {
+        throw new IOException("Port already opened.");
+      }
+      mOpen = true;
+      mClosed = false;
+      mOpenCount++;
+      mHead = 0;
+      mCount = 0;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (mLock) {
+      mOpen = false;
+      mClosed = true;
+      mLock.notifyAll();
+    }
+  }
+
+  /**
+   * Returns the bytes received so far, up to one packet, waiting for some to arrive if there are
+   * none. A {@code timeout} of {@code 0} waits indefinitely.
+   */
+  @Override
+  public int read(byte[] dest, int timeout) throws IOException {
+    synchronized (mLock) {
+      final int openCount = mOpenCount;
+      final long deadlineNanos = System.nanoTime() + timeout * 1000000L;
+      while (mCount == 0 && mOpen && mOpenCount == openCount) {
+        if (timeout == 0) {
+          awaitLock();
+          continue;
+        }
+        final long waitMillis = (deadlineNanos - System.nanoTime()) / 1000000L;
+        if (waitMillis <= 0) {
+          return 0;
+        }
+        try {
+          mLock.wait(waitMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted.");
+        }
+      }
+      if (!mOpen || mOpenCount != openCount) {
+        throw new IOException("Port closed.");
+      }
+      final int amount = Math.min(Math.min(dest.length, PACKET_SIZE),
+          Math.min(mCount, BUFFER_SIZE - mHead));
+      System.arraycopy(mBuffer, mHead, dest, 0, amount);
+      mHead = (mHead + amount) % BUFFER_SIZE;
+      mCount -= amount;
+      mLock.notifyAll();
+      return amount;
+    }
+  }
+
+  @Override
+  public void write(byte[] src, int timeout) throws IOException {
+    synchronized (mLock) {
+      if (!mOpen) {
+        throw new IOException("Port not open.");
+      }
+    }
+    mDevice.onHostWrite(src, src.length);
+  }
+
+  @Override
+  public void setParameters(int baudRate, int dataBits, int stopBits, int parity) {
+  }
+
+  @Override
+  public boolean getCD() {
+    return false;
+  }
+
+  @Override
+  public boolean getCTS() {
+    return false;
+  }
+
+  @Override
+  public boolean getDSR() {
+    return false;
+  }
+
+  @Override
+  public boolean getDTR() {
+    return mDtr;
+  }
+
+  @Override
+  public void setDTR(boolean value) {
+    mDtr = value;
+  }
+
+  @Override
+  public boolean getRI() {
+    return false;
+  }
+
+  @Override
+  public boolean getRTS() {
+    return mRts;
+  }
+
+  @Override
+  public void setRTS(boolean value) {
+    mRts = value;
+  }
+
+  @Override
+  public EnumSet<ControlLine> getControlLines() {
+    final EnumSet<ControlLine> lines = EnumSet.noneOf(ControlLine.class);
+    if (mDtr) {
+      lines.add(ControlLine.DTR);
+    }
+    if (mRts) {
+      lines.add(ControlLine.RTS);
+    }
+    return lines;
+  }
+
+  @Override
+  public EnumSet<ControlLine> getSupportedControlLines() {
+    return EnumSet.of(ControlLine.DTR, ControlLine.RTS);
+  }
+
+  @Override
+  public void purgeHwBuffers(boolean purgeWriteBuffers, boolean purgeReadBuffers) {
+    if (purgeReadBuffers) {
+      synchronized (mLock) {
+        mHead = 0;
+        mCount = 0;
+        mLock.notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public void setBreak(boolean value) {
+  }
+
+  @Override
+  public boolean isOpen() {
+    synchronized (mLock) {
+      return mOpen;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "VirtualUsbSerialPort-" + mDriver.getDevice().getDeviceId() + "-" + mPortNumber;
+  }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.kegboard;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link KegboardCaptureWriter} and {@link KegboardCaptureReader}.
+ */
+public class KegboardCaptureTest extends TestCase {
+
+  private File mFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mFile = File.createTempFile("kegboard", ".kbcap");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mFile.delete();
+    super.tearDown();
+  }
+
+  public void testRoundTrip() throws IOException {
+    final FileOutputStream out = new FileOutputStream(mFile);
+    final KegboardCaptureWriter writer = new KegboardCaptureWriter(out, 1234L, 1000000L);
+    final byte[] data = new byte[300];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    // Record i holds i bytes, and arrives i milliseconds after the start.
+    for (int i = 0; i < 20; i++) {
+      writer.write(data, i, 1000000L + i * 1000000L);
+    }
+    writer.close();
+
+    // A small window forces records to straddle remappings.
+    final KegboardCaptureReader reader = new KegboardCaptureReader(mFile, 32);
+    assertEquals(1234L, reader.getStartTimeMillis());
+    final byte[] record = new byte[KegboardCaptureWriter.MAX_RECORD_LENGTH];
+    for (int i = 0; i < 20; i++) {
+      assertTrue(reader.next());
+      assertEquals(i * 1000L, reader.getTimestampMicros());
+      assertEquals(i, reader.read(record));
+      assertTrue(Arrays.equals(Arrays.copyOf(data, i), Arrays.copyOf(record, i)));
+    }
+    assertFalse(reader.next());
+    reader.close();
+  }
+
+  public void testTruncatedRecordEndsCapture() throws IOException {
+    final KegboardCaptureWriter writer = new KegboardCaptureWriter(mFile);
+    final byte[] data = "KBSP v1:".getBytes();
+    writer.write(data, data.length, System.nanoTime());
+    writer.write(data, data.length, System.nanoTime());
+    writer.close();
+
+    final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    file.setLength(file.length() - 1);
+    file.close();
+
+    final KegboardCaptureReader reader = new KegboardCaptureReader(mFile);
+    assertTrue(reader.next());
+    assertEquals(data.length, reader.getLength());
+    assertFalse(reader.next());
+    reader.close();
+  }
+
+  public void testNotACapture() throws IOException {
+    final FileOutputStream out = new FileOutputStream(mFile);
+    out.write(new byte[32]);
+    out.close();
+
+    try {
+      new KegboardCaptureReader(mFile);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+}
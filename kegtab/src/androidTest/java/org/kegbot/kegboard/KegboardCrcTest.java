@@ -42,4 +42,34 @@ public class KegboardCrcTest extends TestCase {
 
     assertEquals(expectedCrc, actualCrc);
   }
+
+  public void testTableMatchesBitwiseUpdate() {
+    for (int crc = 0; crc < 0x10000; crc += 0x101) {
+      for (int b = 0; b < 256; b++) {
+        assertEquals(KegboardCrc.crc16CcittUpdate(crc, (byte) b),
+            KegboardCrc.update(crc, (byte) b));
+      }
+    }
+  }
+
+  public void testIncrementalUpdate() {
+    final byte[] input = new byte[64];
+    for (int i = 0; i < input.length; i++) {
+      input[i] = (byte) (i * 37 + 11);
+    }
+    final int expectedCrc = KegboardCrc.crc16Ccitt(input, input.length);
+
+    for (int split = 0; split <= input.length; split++) {
+      int crc = KegboardCrc.INITIAL_VALUE;
+      crc = KegboardCrc.update(crc, input, 0, split);
+      crc = KegboardCrc.update(crc, input, split, input.length - split);
+      assertEquals(expectedCrc, crc);
+    }
+
+    int crc = KegboardCrc.INITIAL_VALUE;
+    for (final byte b : input) {
+      crc = KegboardCrc.update(crc, b);
+    }
+    assertEquals(expectedCrc, crc);
+  }
 }
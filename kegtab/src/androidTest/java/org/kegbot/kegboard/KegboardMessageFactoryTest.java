@@ -20,17 +20,28 @@ package org.kegbot.kegboard;
 
 import android.test.InstrumentationTestCase;
 
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author mike
  */
 public class KegboardMessageFactoryTest extends InstrumentationTestCase {
 
+  /** Frames pushed through the concurrent tests. */
+  private static final int FRAME_COUNT = 100000;
+
+  /** Bound on the bytes rescanned per byte of noise; see {@link #testRecoveryIsLinear()}. */
+  private static final double MAX_RESCANS_PER_BYTE = 2;
+
   private KegboardMessageFactory mFactory;
 
   @Override
@@ -74,9 +85,8 @@ public class KegboardMessageFactoryTest extends InstrumentationTestCase {
 
       KegboardMeterStatusMessage status = (KegboardMeterStatusMessage) messages.get(2);
 
-      Map<Integer, byte[]> tags = status.mTags;
-      dumpTags(tags);
-      assertEquals(2, tags.size());
+      dumpTags(status);
+      assertEquals(2, status.getTagCount());
 
       for (KegboardMessage message : messages) {
         System.out.println(message);
@@ -87,10 +97,395 @@ public class KegboardMessageFactoryTest extends InstrumentationTestCase {
 
   }
 
-  private void dumpTags(Map<Integer, byte[]> tags) {
-    for (Map.Entry<Integer, byte[]> entry : tags.entrySet()) {
-      System.out.println(String.format("%04x", entry.getKey())
-          + HexDump.dumpHexString(entry.getValue()));
+  public void testRingBufferWrapAround() throws IOException {
+    final byte[] stream = readAsset("one_flow_active.bin");
+    final KegboardMessageFactory factory = new KegboardMessageFactory(512);
+
+    // Feed in odd-sized chunks, draining as we go, so frames straddle the end of the ring.
+    int count = 0;
+    for (int round = 0; round < 10; round++) {
+      for (int offset = 0; offset < stream.length; offset += 37) {
+        final int length = Math.min(37, stream.length - offset);
+        final byte[] chunk = new byte[length];
+        System.arraycopy(stream, offset, chunk, 0, length);
+        assertEquals(length, factory.addBytes(chunk, length));
+        while (factory.getMessage() != null) {
+          count++;
+        }
+      }
+    }
+    assertEquals(23 * 10, count);
+    assertEquals(0, factory.getDroppedByteCount());
+  }
+
+  public void testBufferFull() throws IOException {
+    final byte[] stream = readAsset("one_flow_active.bin");
+    final KegboardMessageFactory factory = new KegboardMessageFactory(512);
+
+    // The buffer fills partway through a frame: that frame is abandoned and the rest dropped.
+    assertEquals(512, factory.addBytes(stream, stream.length));
+    assertEquals(stream.length - 512, factory.getDroppedByteCount());
+
+    // Whole frames which made it in are still decoded.
+    int count = 0;
+    while (factory.getMessage() != null) {
+      count++;
+    }
+    assertTrue(count > 0);
+    assertEquals(512, factory.getFreeSpace());
+
+    // Framing recovers once there is room again.
+    assertEquals(stream.length - 512, factory.addBytes(stream, stream.length - 512));
+    assertTrue(factory.getMessage() instanceof KegboardHelloMessage);
+  }
+
+  public void testBadCrcRejectedOnArrival() throws IOException {
+    final byte[] stream = readAsset("one_flow_active.bin");
+    // Corrupt the meter reading of the third frame, which starts at offset 0x2e.
+    stream[0x2e + 19]++;
+
+    // Feed everything but the last byte of the corrupt frame's trailer: nothing is published.
+    final int corruptFrameEnd = 0x2e + 12 + 13 + 4;
+    mFactory.addBytes(stream, corruptFrameEnd - 1);
+    assertTrue(mFactory.getMessage() instanceof KegboardHelloMessage);
+    assertNull(mFactory.getMessage());
+
+    final byte[] rest = new byte[stream.length - corruptFrameEnd + 1];
+    System.arraycopy(stream, corruptFrameEnd - 1, rest, 0, rest.length);
+    mFactory.addBytes(rest, rest.length);
+    int count = 1;
+    while (mFactory.getMessage() != null) {
+      count++;
+    }
+    assertEquals(22, count);
+    assertEquals(1, mFactory.getStats().crcFailures);
+  }
+
+  public void testStats() throws IOException {
+    final byte[] stream = readAsset("one_flow_active.bin");
+    mFactory.addBytes(stream, stream.length);
+    while (mFactory.getReusableMessage() != null) {
+    }
+
+    KegboardMessageFactory.Stats stats = mFactory.getStats();
+    assertEquals(stream.length, stats.bytesAdded);
+    assertEquals(24, stats.framesValidated);
+    assertEquals(23, stats.messagesDecoded);
+    assertEquals(1, stats.undecodableFrames);
+    assertEquals(0, stats.crcFailures);
+    assertEquals(0, stats.resyncs);
+
+    final byte[] oversize = makeHeader(KegboardMeterStatusMessage.MESSAGE_TYPE, 241);
+    mFactory.addBytes(oversize, oversize.length);
+    stats = mFactory.getStats();
+    assertEquals(1, stats.oversizePayloads);
+    assertEquals(2, stats.resyncs);
+    assertEquals(oversize.length, stats.bytesDiscarded);
+  }
+
+  public void testReusableMessages() throws IOException {
+    final byte[] stream = readAsset("one_flow_active.bin");
+    final KegboardMessageFactory reusingFactory = new KegboardMessageFactory();
+    mFactory.addBytes(stream, stream.length);
+    reusingFactory.addBytes(stream, stream.length);
+
+    KegboardMessage lastMeterStatus = null;
+    int count = 0;
+    while (true) {
+      final KegboardMessage expected = mFactory.getMessage();
+      final KegboardMessage actual = reusingFactory.getReusableMessage();
+      if (expected == null) {
+        assertNull(actual);
+        break;
+      }
+      count++;
+      assertEquals(expected.getClass(), actual.getClass());
+      assertEquals(expected.toString(), actual.toString());
+
+      if (actual instanceof KegboardMeterStatusMessage) {
+        // One instance per message type is recycled.
+        if (lastMeterStatus != null) {
+          assertSame(lastMeterStatus, actual);
+        }
+        lastMeterStatus = actual;
+        assertEquals(((KegboardMeterStatusMessage) expected).getMeterReading(),
+            ((KegboardMeterStatusMessage) actual).getMeterReading());
+      }
+    }
+    assertEquals(23, count);
+  }
+
+  public void testCopyOfReusableMessage() {
+    final byte[] first = makeMeterStatusFrame("flow0", 100);
+    final byte[] second = makeMeterStatusFrame("flow0", 200);
+    mFactory.addBytes(first, first.length);
+    mFactory.addBytes(second, second.length);
+
+    final KegboardMessage copy = mFactory.getReusableMessage().copy();
+    final KegboardMessage reused = mFactory.getReusableMessage();
+    assertNotSame(copy, reused);
+    assertEquals(100, ((KegboardMeterStatusMessage) copy).getMeterReading());
+    assertEquals(200, ((KegboardMeterStatusMessage) reused).getMeterReading());
+    assertTrue(Arrays.equals(first, copy.toBytes()));
+  }
+
+  public void testResyncSkipsNoise() {
+    final Random random = new Random(1234);
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    int noiseBytes = 0;
+    for (int i = 0; i < 200; i++) {
+      final byte[] noise = makeNoise(random, random.nextInt(300));
+      stream.write(noise, 0, noise.length);
+      noiseBytes += noise.length;
+      final byte[] frame = makeMeterStatusFrame("flow0", i);
+      stream.write(frame, 0, frame.length);
+    }
+
+    final List<KegboardMessage> messages = feedInChunks(mFactory, stream.toByteArray(), 61);
+    assertEquals(200, messages.size());
+    for (int i = 0; i < messages.size(); i++) {
+      assertEquals(i, ((KegboardMeterStatusMessage) messages.get(i)).getMeterReading());
+    }
+    assertEquals(noiseBytes, mFactory.getDiscardedByteCount());
+    assertEquals(0, mFactory.getDroppedByteCount());
+  }
+
+  public void testTruncatedFrameDoesNotHideNext() {
+    // A header promising 200 bytes of payload, cut short by a real frame.
+    final byte[] truncated = makeHeader(KegboardMeterStatusMessage.MESSAGE_TYPE, 200);
+    final byte[] frame = makeMeterStatusFrame("flow1", 42);
+    final byte[] more = makeNoise(new Random(99), 250);
+
+    mFactory.addBytes(truncated, truncated.length);
+    mFactory.addBytes(frame, frame.length);
+    assertNull(mFactory.getMessage());
+
+    // Once enough bytes arrive to fail the truncated frame's CRC, the real frame is recovered.
+    mFactory.addBytes(more, more.length);
+    final KegboardMeterStatusMessage message = (KegboardMeterStatusMessage) mFactory.getMessage();
+    assertNotNull(message);
+    assertEquals("flow1", message.getMeterName());
+    assertEquals(42, message.getMeterReading());
+  }
+
+  public void testRecoveryIsLinear() {
+    final byte[] frame = makeMeterStatusFrame("flow0", 1);
+    final double small = getRescansPerByte(makeNoise(new Random(1), 64 * 1024), frame);
+    final double large = getRescansPerByte(makeNoise(new Random(2), 16 * 64 * 1024), frame);
+
+    // Each byte is rescanned a bounded number of times, however much noise precedes the frame, so
+    // sixteen times the noise costs sixteen times the scanning. A scan restarting from the oldest
+    // unframed byte would rescan more per byte as the noise grew.
+    assertTrue("small=" + small, small < MAX_RESCANS_PER_BYTE);
+    assertTrue("large=" + large, large < MAX_RESCANS_PER_BYTE);
+    assertEquals(small, large, 0.1);
+  }
+
+  public void testConcurrentHandoff() throws InterruptedException {
+    final KegboardMessageFactory factory = new KegboardMessageFactory(512);
+    final byte[] stream = makeMeterStatusStream(FRAME_COUNT);
+
+    // The producer waits for room, so every frame must arrive intact and in order.
+    final Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final Random random = new Random(1);
+        int offset = 0;
+        while (offset < stream.length) {
+          final int length = Math.min(1 + random.nextInt(300), stream.length - offset);
+          while (factory.getFreeSpace() < length) {
+            Thread.yield();
+          }
+          final byte[] chunk = Arrays.copyOfRange(stream, offset, offset + length);
+          if (factory.addBytes(chunk, length) != length) {
+            throw new AssertionError("Dropped bytes with room to spare");
+          }
+          offset += length;
+        }
+      }
+    });
+
+    final int[] ticks = consumeConcurrently(factory, producer);
+    assertEquals(FRAME_COUNT, ticks.length);
+    for (int i = 0; i < ticks.length; i++) {
+      assertEquals(i, ticks[i]);
+    }
+    final KegboardMessageFactory.Stats stats = factory.getStats();
+    assertEquals(0, stats.bytesDropped);
+    assertEquals(0, stats.overflows);
+    assertEquals(0, stats.bytesDiscarded);
+  }
+
+  public void testConcurrentOverflowAccounting() throws InterruptedException {
+    final KegboardMessageFactory factory = new KegboardMessageFactory(512);
+    final byte[] stream = makeMeterStatusStream(FRAME_COUNT);
+    final int frameLength = stream.length / FRAME_COUNT;
+
+    // The producer never waits: frames which don't fit are lost, but never corrupted.
+    final Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final Random random = new Random(2);
+        int offset = 0;
+        while (offset < stream.length) {
+          final int length = Math.min(1 + random.nextInt(300), stream.length - offset);
+          final byte[] chunk = Arrays.copyOfRange(stream, offset, offset + length);
+          factory.addBytes(chunk, length);
+          offset += length;
+        }
+      }
+    });
+
+    final int[] ticks = consumeConcurrently(factory, producer);
+    for (int i = 1; i < ticks.length; i++) {
+      assertTrue(ticks[i] > ticks[i - 1]);
+    }
+    final KegboardMessageFactory.Stats stats = factory.getStats();
+    assertEquals(stream.length, stats.bytesAdded);
+    assertEquals(ticks.length, stats.framesValidated);
+    assertEquals(ticks.length, stats.messagesDecoded);
+    assertEquals(512, factory.getFreeSpace());
+    // Every byte was decoded, skipped, or dropped for want of room.
+    assertEquals(stream.length,
+        ticks.length * frameLength + stats.bytesDiscarded + stats.bytesDropped);
+    assertEquals(stats.bytesDropped > 0, stats.overflows > 0);
+  }
+
+  /**
+   * Runs {@code producer} while draining {@code factory} on the calling thread, returning the
+   * meter readings received.
+   */
+  private static int[] consumeConcurrently(KegboardMessageFactory factory, Thread producer)
+      throws InterruptedException {
+    final AtomicReference<Throwable> producerError = new AtomicReference<Throwable>();
+    producer.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      @Override
+      public void uncaughtException(Thread thread, Throwable t) {
+        producerError.set(t);
+      }
+    });
+    producer.start();
+
+    final int[] ticks = new int[FRAME_COUNT];
+    int count = 0;
+    boolean producerDone = false;
+    while (true) {
+      final KegboardMessage message = factory.getReusableMessage();
+      if (message != null) {
+        ticks[count++] = (int) ((KegboardMeterStatusMessage) message).getMeterReading();
+      } else if (producerDone) {
+        break;
+      } else {
+        // Only trust an empty factory once the producer has finished.
+        producerDone = !producer.isAlive();
+      }
+    }
+    producer.join();
+    assertNull(producerError.get());
+    return Arrays.copyOf(ticks, count);
+  }
+
+  private static byte[] makeMeterStatusStream(int frameCount) {
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    for (int i = 0; i < frameCount; i++) {
+      final byte[] frame = makeMeterStatusFrame("flow0", i);
+      stream.write(frame, 0, frame.length);
+    }
+    return stream.toByteArray();
+  }
+
+  /** Decodes a frame after {@code noise}, returning the bytes rescanned per byte of noise. */
+  private double getRescansPerByte(byte[] noise, byte[] frame) {
+    final KegboardMessageFactory factory = new KegboardMessageFactory();
+    final byte[] stream = new byte[noise.length + frame.length];
+    System.arraycopy(noise, 0, stream, 0, noise.length);
+    System.arraycopy(frame, 0, stream, noise.length, frame.length);
+
+    final List<KegboardMessage> messages = feedInChunks(factory, stream, 128);
+    assertEquals(1, messages.size());
+    assertEquals(noise.length, factory.getDiscardedByteCount());
+    return (double) factory.getRescannedByteCount() / noise.length;
+  }
+
+  private static List<KegboardMessage> feedInChunks(KegboardMessageFactory factory, byte[] stream,
+      int chunkSize) {
+    final List<KegboardMessage> messages = new ArrayList<KegboardMessage>();
+    final byte[] chunk = new byte[chunkSize];
+    for (int offset = 0; offset < stream.length; offset += chunkSize) {
+      final int length = Math.min(chunkSize, stream.length - offset);
+      System.arraycopy(stream, offset, chunk, 0, length);
+      assertEquals(length, factory.addBytes(chunk, length));
+      while (true) {
+        final KegboardMessage message = factory.getMessage();
+        if (message == null) {
+          break;
+        }
+        messages.add(message);
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Returns line noise which is rich in frame prefix fragments, bogus headers and bad-CRC frames,
+   * but contains no valid frame.
+   */
+  private static byte[] makeNoise(Random random, int length) {
+    final ByteArrayOutputStream noise = new ByteArrayOutputStream();
+    while (noise.size() < length) {
+      switch (random.nextInt(4)) {
+        case 0:
+          noise.write(random.nextInt(256));
+          break;
+        case 1:
+          noise.write("KBSP v1:".getBytes(), 0, random.nextInt(8));
+          break;
+        case 2:
+          final byte[] header = makeHeader(KegboardMeterStatusMessage.MESSAGE_TYPE,
+              241 + random.nextInt(1000));
+          noise.write(header, 0, header.length);
+          break;
+        default:
+          final byte[] frame = makeMeterStatusFrame("flow0", random.nextInt());
+          frame[frame.length - 3]++;
+          noise.write(frame, 0, frame.length);
+          break;
+      }
+    }
+    return Arrays.copyOf(noise.toByteArray(), length);
+  }
+
+  private static byte[] makeHeader(int messageType, int payloadLength) {
+    final byte[] header = Arrays.copyOf("KBSP v1:".getBytes(), 12);
+    header[8] = (byte) messageType;
+    header[10] = (byte) payloadLength;
+    header[11] = (byte) (payloadLength >> 8);
+    return header;
+  }
+
+  private static byte[] makeMeterStatusFrame(String meterName, int ticks) {
+    final KegboardMeterStatusMessage message = new KegboardMeterStatusMessage();
+    message.putTag(KegboardMeterStatusMessage.TAG_METER_NAME, meterName.getBytes());
+    message.putTag(KegboardMeterStatusMessage.TAG_METER_READING,
+        new byte[]{(byte) ticks, (byte) (ticks >> 8), (byte) (ticks >> 16), (byte) (ticks >> 24)});
+    return message.toBytes();
+  }
+
+  private byte[] readAsset(String name) throws IOException {
+    final InputStream is =
+        getInstrumentation().getTargetContext().getResources().getAssets().open(name);
+    try {
+      return ByteStreams.toByteArray(is);
+    } finally {
+      is.close();
+    }
+  }
+
+  private void dumpTags(KegboardMessage message) {
+    for (int i = 0; i < message.getTagCount(); i++) {
+      final int tagNum = message.getTagNumberAt(i);
+      System.out.println(String.format("%04x", Integer.valueOf(tagNum))
+          + HexDump.dumpHexString(message.readTag(tagNum)));
     }
   }
 
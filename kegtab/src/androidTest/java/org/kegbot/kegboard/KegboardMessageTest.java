@@ -0,0 +1,103 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.kegboard;
+
+import junit.framework.TestCase;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link KegboardMessage} encoding.
+ */
+public class KegboardMessageTest extends TestCase {
+
+  public void testPingEncoding() throws KegboardMessageException {
+    final byte[] bytes = KegboardPingCommand.getEncoded();
+    assertEquals(16, bytes.length);
+    assertEquals("KBSP v1:", new String(bytes, 0, 8));
+    assertEquals((byte) 0x81, bytes[8]);
+    assertEquals(0, bytes[9]);
+    assertEquals(0, bytes[10]);
+    assertEquals(0, bytes[11]);
+    assertEquals('\r', bytes[14]);
+    assertEquals('\n', bytes[15]);
+
+    // Parsing verifies the CRC.
+    new KegboardPingCommand(bytes);
+  }
+
+  public void testSetOutputRoundTrip() throws KegboardMessageException {
+    final byte[] bytes = new KegboardSetOutputCommand(2, true).toBytes();
+    final KegboardSetOutputCommand parsed = new KegboardSetOutputCommand(bytes);
+    assertEquals(2, parsed.getTagCount());
+    assertTrue(Arrays.equals(new byte[]{2}, parsed.readTag(KegboardSetOutputCommand.TAG_OUTPUT_ID)));
+    assertEquals(1, parsed.readTagAsShort(KegboardSetOutputCommand.TAG_OUTPUT_MODE));
+  }
+
+  public void testTagEquals() throws KegboardMessageException {
+    final KegboardMeterStatusMessage built = new KegboardMeterStatusMessage();
+    built.putTag(KegboardMeterStatusMessage.TAG_METER_NAME, "flow1\0".getBytes());
+    final KegboardMeterStatusMessage message = new KegboardMeterStatusMessage(built.toBytes());
+
+    // Compares as readTagAsString reads, with NUL padding ignored.
+    assertEquals("flow1", message.getMeterName());
+    assertTrue(message.tagEquals(KegboardMeterStatusMessage.TAG_METER_NAME, "flow1".getBytes()));
+    assertFalse(message.tagEquals(KegboardMeterStatusMessage.TAG_METER_NAME, "flow".getBytes()));
+    assertFalse(message.tagEquals(KegboardMeterStatusMessage.TAG_METER_NAME, "flow10".getBytes()));
+    assertFalse(message.tagEquals(KegboardMeterStatusMessage.TAG_METER_READING, new byte[0]));
+  }
+
+  public void testCachedFramesMatchEncoder() {
+    for (int outputId = 0; outputId < KegboardSetOutputCommand.NUM_OUTPUTS; outputId++) {
+      for (final boolean enabled : new boolean[]{false, true}) {
+        final byte[] cached = KegboardSetOutputCommand.getEncoded(outputId, enabled);
+        assertSame(cached, KegboardSetOutputCommand.getEncoded(outputId, enabled));
+        assertTrue(Arrays.equals(new KegboardSetOutputCommand(outputId, enabled).toBytes(), cached));
+      }
+    }
+    assertTrue(Arrays.equals(new KegboardPingCommand().toBytes(), KegboardPingCommand.getEncoded()));
+  }
+
+  public void testWriteToSharedBuffer() {
+    final ByteBuffer buffer = ByteBuffer.allocate(64);
+    final KegboardMessage first = new KegboardSetOutputCommand(0, true);
+    final KegboardMessage second = new KegboardPingCommand();
+
+    assertEquals(first.getEncodedLength(), first.writeTo(buffer));
+    assertEquals(second.getEncodedLength(), second.writeTo(buffer));
+    assertEquals(first.getEncodedLength() + second.getEncodedLength(), buffer.position());
+
+    final byte[] expected = new byte[buffer.position()];
+    System.arraycopy(first.toBytes(), 0, expected, 0, first.getEncodedLength());
+    System.arraycopy(second.toBytes(), 0, expected, first.getEncodedLength(),
+        second.getEncodedLength());
+    assertTrue(Arrays.equals(expected, Arrays.copyOf(buffer.array(), buffer.position())));
+
+    final ByteBuffer tooSmall = ByteBuffer.allocate(first.getEncodedLength() - 1);
+    try {
+      first.writeTo(tooSmall);
+      fail("Expected BufferOverflowException");
+    } catch (BufferOverflowException e) {
+      assertEquals(0, tooSmall.position());
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.kegboard;
+
+/**
+ * Builds the messages a kegboard sends, for tests outside this package. Messages are filled in
+ * with {@link KegboardMessage#putTag(int, byte[])}, so {@link KegboardMessage#toBytes()} gives the
+ * frame the real encoder would.
+ */
+public final class KegboardTestMessages {
+
+  private KegboardTestMessages() {
+  }
+
+  public static KegboardHelloMessage hello(int firmwareVersion, int protocolVersion,
+      String serialNumber) {
+    final KegboardHelloMessage message = new KegboardHelloMessage();
+    message.putTag(KegboardHelloMessage.TAG_FIRMWARE_VERSION, littleEndian(firmwareVersion, 2));
+    message.putTag(KegboardHelloMessage.TAG_PROTOCOL_VERSION, littleEndian(protocolVersion, 2));
+    message.putTag(KegboardHelloMessage.TAG_SERIAL_NUMBER, serialNumber.getBytes());
+    return message;
+  }
+
+  public static KegboardMeterStatusMessage meterStatus(String meterName, long ticks) {
+    final KegboardMeterStatusMessage message = new KegboardMeterStatusMessage();
+    message.putTag(KegboardMeterStatusMessage.TAG_METER_NAME, meterName.getBytes());
+    message.putTag(KegboardMeterStatusMessage.TAG_METER_READING, littleEndian(ticks, 4));
+    return message;
+  }
+
+  public static KegboardTemperatureReadingMessage temperatureReading(String sensorName,
+      double celsius) {
+    final KegboardTemperatureReadingMessage message = new KegboardTemperatureReadingMessage();
+    message.putTag(KegboardTemperatureReadingMessage.TAG_SENSOR_NAME, sensorName.getBytes());
+    message.putTag(KegboardTemperatureReadingMessage.TAG_SENSOR_VALUE,
+        littleEndian((long) (celsius * 1e6), 4));
+    return message;
+  }
+
+  public static KegboardAuthTokenMessage authToken(String deviceName, byte[] token,
+      boolean present) {
+    final KegboardAuthTokenMessage message = new KegboardAuthTokenMessage();
+    message.putTag(KegboardAuthTokenMessage.TAG_DEVICE_NAME, deviceName.getBytes());
+    message.putTag(KegboardAuthTokenMessage.TAG_TOKEN, token);
+    message.putTag(KegboardAuthTokenMessage.TAG_STATUS, new byte[] {(byte) (present ? 1 : 0)});
+    return message;
+  }
+
+  private static byte[] littleEndian(long value, int length) {
+    final byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (value >> (8 * i));
+    }
+    return bytes;
+  }
+
+}
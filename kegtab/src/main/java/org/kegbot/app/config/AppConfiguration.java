@@ -294,4 +294,39 @@ public class AppConfiguration {
     return Integer.valueOf(get(ConfigKey.NETWORK_CONTROLLER_PORT)).intValue();
   }
 
+  /** Returns the directory to record kegboard serial captures to, or empty if disabled. */
+  public String getKegboardCaptureDirectory() {
+    return get(ConfigKey.KEGBOARD_CAPTURE_DIRECTORY);
+  }
+
+  /** Returns the kegboard capture file to replay as a controller, or empty if disabled. */
+  public String getKegboardReplayFile() {
+    return get(ConfigKey.KEGBOARD_REPLAY_FILE);
+  }
+
+  /** Returns the kegboard replay speed multiplier; {@code 0} replays as fast as possible. */
+  public double getKegboardReplaySpeed() {
+    return Double.valueOf(get(ConfigKey.KEGBOARD_REPLAY_SPEED)).doubleValue();
+  }
+
+  /** Returns the interval between pings sent to a newly-attached kegboard until it answers. */
+  public long getKegboardPingIntervalMillis() {
+    return Long.valueOf(get(ConfigKey.KEGBOARD_PING_INTERVAL_MILLIS)).longValue();
+  }
+
+  /** Returns how long a newly-attached kegboard has to answer a ping before it is unresponsive. */
+  public long getKegboardAttachTimeoutMillis() {
+    return Long.valueOf(get(ConfigKey.KEGBOARD_ATTACH_TIMEOUT_MILLIS)).longValue();
+  }
+
+  /** Returns how long an attached kegboard may stay silent before its link is probed. */
+  public long getKegboardLinkIdleMillis() {
+    return Long.valueOf(get(ConfigKey.KEGBOARD_LINK_IDLE_MILLIS)).longValue();
+  }
+
+  /** Returns the longest a connected network controller may stay silent before reconnecting. */
+  public long getNetworkControllerReadTimeoutMillis() {
+    return Long.valueOf(get(ConfigKey.NETWORK_CONTROLLER_READ_TIMEOUT_MILLIS)).longValue();
+  }
+
 }
@@ -67,7 +67,15 @@ enum ConfigKey {
   LAST_USED_KEG_SIZE(""),
 
   NETWORK_CONTROLLER_HOST(""),
-  NETWORK_CONTROLLER_PORT("8321");
+  NETWORK_CONTROLLER_PORT("8321"),
+
+  KEGBOARD_CAPTURE_DIRECTORY(""),
+  KEGBOARD_REPLAY_FILE(""),
+  KEGBOARD_REPLAY_SPEED("1"),
+  KEGBOARD_PING_INTERVAL_MILLIS("1000"),
+  KEGBOARD_ATTACH_TIMEOUT_MILLIS("12000"),
+  KEGBOARD_LINK_IDLE_MILLIS("10000"),
+  NETWORK_CONTROLLER_READ_TIMEOUT_MILLIS("30000");
 
 
   private final String mDefaultValue;
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kegbot.app.util;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A histogram of latencies, counted in power-of-two microsecond buckets. Recording does not
+ * allocate.
+ */
+public class LatencyHistogram {
+
+  /** Bucket {@code i} counts latencies below {@code 2^i} microseconds; the last is unbounded. */
+  private static final int NUM_BUCKETS = 32;
+
+  @GuardedBy("this")
+  private final long[] mBuckets = new long[NUM_BUCKETS];
+
+  @GuardedBy("this")
+  private long mCount = 0;
+
+  @GuardedBy("this")
+  private long mTotalNanos = 0;
+
+  @GuardedBy("this")
+  private long mMaxNanos = 0;
+
+  public synchronized void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    final long micros = nanos / 1000;
+    final int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+    mBuckets[Math.min(bucket, NUM_BUCKETS - 1)]++;
+    mCount++;
+    mTotalNanos += nanos;
+    if (nanos > mMaxNanos) {
+      mMaxNanos = nanos;
+    }
+  }
+
+  public synchronized long getCount() {
+    return mCount;
+  }
+
+  public synchronized long getMeanNanos() {
+    return mCount == 0 ? 0 : mTotalNanos / mCount;
+  }
+
+  public synchronized long getMaxNanos() {
+    return mMaxNanos;
+  }
+
+  /**
+   * Returns an upper bound, in microseconds, on the given percentile of recorded latencies, or
+   * {@code 0} if none have been recorded.
+   *
+   * @param percentile a value between 0 and 100
+   */
+  public synchronized long getPercentileMicros(double percentile) {
+    if (mCount == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS - 1; i++) {
+      seen += mBuckets[i];
+      if (seen >= rank) {
+        return 1L << i;
+      }
+    }
+    return mMaxNanos / 1000;
+  }
+
+  /** Returns an independent copy of this histogram. */
+  public synchronized LatencyHistogram copy() {
+    final LatencyHistogram result = new LatencyHistogram();
+    System.arraycopy(mBuckets, 0, result.mBuckets, 0, NUM_BUCKETS);
+    result.mCount = mCount;
+    result.mTotalNanos = mTotalNanos;
+    result.mMaxNanos = mMaxNanos;
+    return result;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("count=%s mean=%sus p50<%sus p99<%sus max=%sus",
+        Long.valueOf(mCount), Long.valueOf(getMeanNanos() / 1000),
+        Long.valueOf(getPercentileMicros(50)), Long.valueOf(getPercentileMicros(99)),
+        Long.valueOf(mMaxNanos / 1000));
+  }
+
+}
@@ -169,7 +169,8 @@ public class TimeSeries {
     }
 
     /**
-     * Adds a new data point.  {@code time} values must be added in increasing order.
+     * Adds a new data point.  {@code time} values should be added in increasing order; a point
+     * earlier than the last one, such as a late-delivered reading, is coalesced into it.
      *
      * @param time  the event time
      * @param value the event value
@@ -193,7 +194,7 @@ public class TimeSeries {
 
       final int lastLocation = mPoints.size() - 1;
       final Point lastPoint = mPoints.get(lastLocation);
-      if (time == lastPoint.time || mMinResolution > 0 && (lastPoint.time + mMinResolution) > time) {
+      if (time <= lastPoint.time || mMinResolution > 0 && (lastPoint.time + mMinResolution) > time) {
         // Last point is recent; coalesce.
         mPoints.remove(lastLocation);
         mPoints.add(new Point(lastPoint.time, lastPoint.value + value));
@@ -61,7 +61,7 @@ public class Flow {
    */
   private long mEndTimeMillis;
 
-  /** Time of the last call to {@link #addTicks(int)}. */
+  /** Latest acquisition time passed to {@link #addTicks(int, long)}. */
   private long mLastUpdateTimeMillis;
 
   /**
@@ -87,6 +87,15 @@ public class Flow {
   private final TimeSeries.Builder mTimeSeries = TimeSeries.newBuilder(100, true);
 
   public Flow(Clock clock, String meterName, int flowId, KegTap tap, long maxIdleTimeMs) {
+    this(clock, meterName, flowId, tap, maxIdleTimeMs, clock.elapsedRealtime());
+  }
+
+  /**
+   * Creates a flow that started at {@code startTimeMillis}, in {@link Clock#elapsedRealtime()},
+   * such as the acquisition time of the meter reading that started it.
+   */
+  public Flow(Clock clock, String meterName, int flowId, KegTap tap, long maxIdleTimeMs,
+      long startTimeMillis) {
     mClock = clock;
     mMeterName = meterName;
     mFlowId = flowId;
@@ -94,10 +103,10 @@ public class Flow {
     mMaxIdleTimeMillis = maxIdleTimeMs;
     mUsername = "";
     mTicks = 0;
-    mStartTimeMillis = clock.elapsedRealtime();
-    mLastUpdateTimeMillis = clock.elapsedRealtime();
+    mStartTimeMillis = startTimeMillis;
+    mLastUpdateTimeMillis = startTimeMillis;
     mLastActivityTimeMillis = mLastUpdateTimeMillis;
-    mTimeSeries.add(clock.elapsedRealtime(), 0);
+    mTimeSeries.add(startTimeMillis, 0);
   }
 
   @Override
@@ -127,18 +136,31 @@ public class Flow {
   }
 
   /**
-   * Increments the flow by the specified number of ticks.
+   * Increments the flow by the specified number of ticks, acquired now.
    *
    * @param ticks number of ticks to add
    */
   public void addTicks(int ticks) {
+    addTicks(ticks, mClock.elapsedRealtime());
+  }
+
+  /**
+   * Increments the flow by the specified number of ticks.
+   * <p/>
+   * Ticks are recorded in the time series at {@code acquiredTimeMillis}, when they were read from
+   * the meter, rather than when they were delivered here. Ticks acquired before the latest ones
+   * already recorded are coalesced into those.
+   *
+   * @param ticks number of ticks to add
+   * @param acquiredTimeMillis time the ticks were read, in {@link Clock#elapsedRealtime()}
+   */
+  public void addTicks(int ticks, long acquiredTimeMillis) {
     Preconditions.checkState(!mIsFinished, "Flow is already finished, cannot add ticks.");
     mTicks += ticks;
 
-    long now = mClock.elapsedRealtime();
-    mLastUpdateTimeMillis = now;
-    mLastActivityTimeMillis = now;
-    mTimeSeries.add(now, ticks);
+    mLastUpdateTimeMillis = Math.max(mLastUpdateTimeMillis, acquiredTimeMillis);
+    mLastActivityTimeMillis = Math.max(mLastActivityTimeMillis, acquiredTimeMillis);
+    mTimeSeries.add(acquiredTimeMillis, ticks);
   }
 
   public String getMeterName() {
@@ -245,11 +245,24 @@ public class FlowManager extends Manager {
 
   @Subscribe
   public void onMeterUpdateEvent(final MeterUpdateEvent event) {
-    handleMeterActivity(event.getMeter().getMeterName(), (int) event.getMeter().getTicks());
+    handleMeterActivity(event.getMeter().getMeterName(), (int) event.getTicks(),
+        event.getAcquiredElapsedRealtime());
   }
 
   @VisibleForTesting
   protected Flow handleMeterActivity(final String meterName, final int ticks) {
+    return handleMeterActivity(meterName, ticks, mClock.elapsedRealtime());
+  }
+
+  /**
+   * Applies a meter reading to the meter's flow, starting one if needed.
+   *
+   * @param acquiredTimeMillis time the reading was read from the controller, in
+   *     {@link Clock#elapsedRealtime()}
+   */
+  @VisibleForTesting
+  protected Flow handleMeterActivity(final String meterName, final int ticks,
+      final long acquiredTimeMillis) {
     final Integer lastReading = mLastTapReading.get(meterName);
     final int delta;
     if (lastReading == null || lastReading.intValue() > ticks) {
@@ -276,12 +289,12 @@ public class FlowManager extends Manager {
           Log.d(TAG, "  ! not starting new flow, autostart disabled.");
           return null;
         }
-        flow = startFlow(meterName, mConfig.getIdleTimeoutMs());
+        flow = startFlow(meterName, mConfig.getIdleTimeoutMs(), acquiredTimeMillis);
         Log.d(TAG, "  + started new flow: " + flow);
       } else {
         Log.d(TAG, "  ~ found existing flow: " + flow);
       }
-      flow.addTicks(delta);
+      flow.addTicks(delta, acquiredTimeMillis);
       publishFlowUpdate(flow);
     }
 
@@ -384,6 +397,11 @@ public class FlowManager extends Manager {
   }
 
   public Flow startFlow(final String meterName, final long maxIdleTimeMs) {
+    return startFlow(meterName, maxIdleTimeMs, mClock.elapsedRealtime());
+  }
+
+  private Flow startFlow(final String meterName, final long maxIdleTimeMs,
+      final long startTimeMillis) {
     Log.d(TAG, "Starting flow on meter " + meterName);
 
     final KegTap tap = mTapManager.getTapForMeterName(meterName);
@@ -394,7 +412,7 @@ public class FlowManager extends Manager {
     }
 
     final Flow flow = new Flow(mClock, meterName, mNextFlowId++, tap,
-        tap != null ? maxIdleTimeMs : UNBOUND_FLOW_MAX_IDLE_MILLIS);
+        tap != null ? maxIdleTimeMs : UNBOUND_FLOW_MAX_IDLE_MILLIS, startTimeMillis);
     mRecentFlows.addLast(flow);
     if (mRecentFlows.size() > MAX_RECENT_FLOWS) {
       mRecentFlows.removeFirst();
@@ -25,6 +25,7 @@ import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.common.base.Strings;
@@ -103,7 +104,7 @@ public class KegbotCore {
   private final FlowManager.Clock mClock = new Clock() {
     @Override
     public long elapsedRealtime() {
-      return System.currentTimeMillis();
+      return SystemClock.elapsedRealtime();
     }
   };
 
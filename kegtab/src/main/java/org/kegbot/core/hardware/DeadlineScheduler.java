@@ -0,0 +1,126 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kegbot.core.hardware;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import javax.annotation.Nullable;
+
+/**
+ * Tracks one deadline per key, in a priority queue ordered by deadline.
+ * <p>
+ * Rescheduling a key leaves its old queue entry in place, to be skipped when it reaches the head;
+ * the queue is rebuilt if such stale entries come to outnumber live ones. Not thread-safe.
+ * </p>
+ */
+class DeadlineScheduler<T> {
+
+  private static final class Entry<T> implements Comparable<Entry<T>> {
+    final T key;
+    final long deadline;
+
+    Entry(T key, long deadline) {
+      this.key = key;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public int compareTo(Entry<T> other) {
+      return deadline < other.deadline ? -1 : (deadline == other.deadline ? 0 : 1);
+    }
+  }
+
+  /** Live deadline of each scheduled key. */
+  private final Map<T, Long> mDeadlines = Maps.newHashMap();
+
+  private final PriorityQueue<Entry<T>> mQueue = new PriorityQueue<Entry<T>>();
+
+  /**
+   * Sets the deadline of {@code key}, replacing any earlier one. A deadline of
+   * {@link Long#MAX_VALUE} cancels it.
+   */
+  void schedule(T key, long deadline) {
+    if (deadline == Long.MAX_VALUE) {
+      cancel(key);
+      return;
+    }
+    final Long previous = mDeadlines.put(key, Long.valueOf(deadline));
+    if (previous != null && previous.longValue() == deadline) {
+      return;
+    }
+    mQueue.add(new Entry<T>(key, deadline));
+    if (mQueue.size() > 2 * mDeadlines.size() + 16) {
+      compact();
+    }
+  }
+
+  void cancel(T key) {
+    mDeadlines.remove(key);
+  }
+
+  /** Returns the earliest deadline, or {@link Long#MAX_VALUE} if nothing is scheduled. */
+  long getNextDeadline() {
+    final Entry<T> head = peekLive();
+    return head == null ? Long.MAX_VALUE : head.deadline;
+  }
+
+  /** Removes and returns a key whose deadline is no later than {@code now}, if there is one. */
+  @Nullable
+  T pollDue(long now) {
+    final Entry<T> head = peekLive();
+    if (head == null || head.deadline > now) {
+      return null;
+    }
+    mQueue.remove();
+    mDeadlines.remove(head.key);
+    return head.key;
+  }
+
+  /** Returns the number of scheduled keys. */
+  int size() {
+    return mDeadlines.size();
+  }
+
+  /** Discards stale entries from the head of the queue, returning the first live one. */
+  @Nullable
+  private Entry<T> peekLive() {
+    Entry<T> head;
+    while ((head = mQueue.peek()) != null && !isLive(head)) {
+      mQueue.remove();
+    }
+    return head;
+  }
+
+  private boolean isLive(Entry<T> entry) {
+    final Long deadline = mDeadlines.get(entry.key);
+    return deadline != null && deadline.longValue() == entry.deadline;
+  }
+
+  private void compact() {
+    mQueue.clear();
+    for (final Map.Entry<T, Long> entry : mDeadlines.entrySet()) {
+      mQueue.add(new Entry<T>(entry.getKey(), entry.getValue().longValue()));
+    }
+  }
+
+}
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.util.Log;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.squareup.otto.Bus;
@@ -36,6 +37,7 @@ import org.kegbot.core.Manager;
 import org.kegbot.proto.Models.FlowToggle;
 import org.kegbot.proto.Models.KegTap;
 
+import java.io.File;
 import java.util.Map;
 import java.util.Set;
 
@@ -87,10 +89,16 @@ public class HardwareManager extends Manager {
   public HardwareManager(Bus bus, Context context, AppConfiguration config) {
     super(bus);
 
-    mKegboardManager = new KegboardManager(getBus(), context, mListener);
+    mKegboardManager = new KegboardManager(getBus(), context, mListener, config);
     mManagers.add(mKegboardManager);
     mManagers.add(new FakeControllerManager(getBus(), mListener));
     mManagers.add(new NetworkControllerManager(getBus(), mListener, config));
+
+    final String replayFile = config.getKegboardReplayFile();
+    if (!Strings.isNullOrEmpty(replayFile)) {
+      mManagers.add(new KegboardReplayManager(mListener, new File(replayFile),
+          config.getKegboardReplaySpeed()));
+    }
   }
 
   @Override
@@ -24,40 +24,69 @@ import android.util.Log;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 
 import org.apache.commons.codec.binary.Hex;
+import org.kegbot.app.util.LatencyHistogram;
 import org.kegbot.core.FlowMeter;
 import org.kegbot.core.ThermoSensor;
+import org.kegbot.kegboard.KegboardCaptureWriter;
 import org.kegbot.kegboard.KegboardHelloMessage;
 import org.kegbot.kegboard.KegboardMessage;
 import org.kegbot.kegboard.KegboardMessageFactory;
-import org.kegbot.kegboard.KegboardMeterStatusMessage;
 import org.kegbot.kegboard.KegboardPingCommand;
 import org.kegbot.kegboard.KegboardSetOutputCommand;
-import org.kegbot.kegboard.KegboardTemperatureReadingMessage;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.List;
+import java.util.Collections;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
 /**
  * A directly-attached Kegboard (Arduino or Pro Mini) USB controller.
  */
 public class KegboardController implements Controller {
 
+  /** Immutable snapshot of a controller's link statistics. */
+  public static final class LinkStats {
+    /** Counters of the controller's byte stream. */
+    public final KegboardMessageFactory.Stats stream;
+
+    /** Meter status messages folded into a later message for the same meter. */
+    public final long collapsedMeterFrames;
+
+    /**
+     * Time from each read returning to the messages it completed being delivered, by message
+     * class name.
+     */
+    public final Map<String, LatencyHistogram> decodeLatency;
+
+    /** Counters of the controller's write queue. */
+    public final KegboardWriteQueue.Stats writes;
+
+    LinkStats(KegboardMessageFactory.Stats stream, long collapsedMeterFrames,
+        Map<String, LatencyHistogram> decodeLatency, KegboardWriteQueue.Stats writes) {
+      this.stream = stream;
+      this.collapsedMeterFrames = collapsedMeterFrames;
+      this.decodeLatency = decodeLatency;
+      this.writes = writes;
+    }
+  }
+
   private static final String TAG = KegboardController.class.getSimpleName();
 
+  /** Logs every read; formatting it allocates, so it is kept off the normal read path. */
+  private static final boolean DEBUG = false;
+
   private static final Pattern SERIAL_RE =
       Pattern.compile("^KB-([0-9a-fA-F]{4})-([0-9a-fA-F]{4})-([0-9a-fA-F]{4,8})$");
 
@@ -68,8 +97,15 @@ public class KegboardController implements Controller {
 
   private static final long OUTPUT_REFRESH_INTERVAL = TimeUnit.SECONDS.toMillis(5);
 
+  private static final int WRITE_TIMEOUT_MILLIS = 500;
+
+  /** Write queue key of pings; outputs are keyed by their number. */
+  private static final Object PING_KEY = new Object();
+
   private static final Pattern PORT_NAME_PATTERN = Pattern.compile("[a-zA-Z]+(\\d+)");
 
+  /** The board's port, or {@code null} for a controller fed by {@link #handleBytes}. */
+  @Nullable
   private final UsbSerialPort mSerialPort;
 
   private String mStatus = STATUS_UNKNOWN;
@@ -80,19 +116,51 @@ public class KegboardController implements Controller {
 
   private final KegboardMessageFactory mReader = new KegboardMessageFactory();
 
-  private final Map<String, FlowMeter> mFlowMetersByName = Maps.newLinkedHashMap();
+  @Nullable
+  private volatile KegboardCaptureWriter mCaptureWriter;
+
+  /** Written only by the reader thread; see {@link LinkStats#decodeLatency}. */
+  private final Map<Class<? extends KegboardMessage>, LatencyHistogram> mDecodeLatency =
+      Maps.newConcurrentMap();
+
+  private final Object mHelloLock = new Object();
+
+  /** Most recent hello message not yet claimed by {@link #takeHelloMessage()}. */
+  @GuardedBy("mHelloLock")
+  private KegboardHelloMessage mLastHelloMessage;
+
+  private final KegboardSensorIndex mSensors = new KegboardSensorIndex();
+
+  private final KegboardMessageDispatcher mDispatcher =
+      new KegboardMessageDispatcher(this, mSensors, false);
+
+  /** {@link SystemClock#uptimeMillis()} of the last decoded frame, or of the controller's creation. */
+  private volatile long mLastFrameUptimeMillis = SystemClock.uptimeMillis();
 
-  private final Map<String, ThermoSensor> mThermoSensors = Maps.newLinkedHashMap();
+  /** {@link SystemClock#uptimeMillis()} of the last ping sent, or {@code 0} if none. */
+  private volatile long mLastPingUptimeMillis = 0;
+
+  /** Commands for the board, written by the controller's writer thread. */
+  private final KegboardWriteQueue mWriteQueue = new KegboardWriteQueue();
+
+  private final Object mOutputLock = new Object();
+
+  /** Desired state of each output. */
+  @GuardedBy("mOutputLock")
+  private final boolean[] mOutputEnabled = new boolean[KegboardSetOutputCommand.NUM_OUTPUTS];
 
   /**
-   * Map of toggle number to next desired "enable" refresh time.
+   * {@link SystemClock#uptimeMillis()} at which each output's command is next due: a refresh for
+   * an enabled output, or a single "off" for one just disabled. {@link Long#MAX_VALUE} if none.
    */
-  private final Map<Integer, Long> mEnabledOutputsToRefreshUptimeMillis = Maps.newLinkedHashMap();
+  @GuardedBy("mOutputLock")
+  private final long[] mOutputDueUptimeMillis = newIdleOutputDeadlines();
 
-  /** Keys that were present in #mLastEnabledOutputs during last refreshOutputs call. */
-  private final Set<Integer> mLastEnabledOutputs = Sets.newLinkedHashSet();
-
-  public KegboardController(UsbSerialPort port) {
+  /**
+   * @param port the board's serial port, or {@code null} for a controller whose bytes are fed in
+   *     through {@link #handleBytes(byte[], int, long, long)}, such as a capture replay
+   */
+  public KegboardController(@Nullable UsbSerialPort port) {
     mSerialPort = port;
   }
 
@@ -131,86 +199,148 @@ public class KegboardController implements Controller {
 
   @Override
   public Collection<FlowMeter> getFlowMeters() {
-    return ImmutableList.copyOf(mFlowMetersByName.values());
+    return ImmutableList.copyOf(mSensors.getFlowMeters());
   }
 
   @Override
   public FlowMeter getFlowMeter(final String meterName) {
-    return mFlowMetersByName.get(meterName);
+    return mSensors.getFlowMeter(meterName);
   }
 
   @Override
   public Collection<ThermoSensor> getThermoSensors() {
-    return mThermoSensors.values();
+    return mSensors.getThermoSensors();
   }
 
   @Override
   public ThermoSensor getThermoSensor(String sensorName) {
-    return mThermoSensors.get(sensorName);
+    return mSensors.getThermoSensor(sensorName);
   }
 
+  @Nullable
   UsbSerialPort getPort() {
     return mSerialPort;
   }
 
+  private UsbSerialPort requirePort() throws IOException {
+    if (mSerialPort == null) {
+      throw new IOException("Controller has no serial port.");
+    }
+    return mSerialPort;
+  }
+
   boolean scheduleToggleOutput(final int outputId, final boolean enable) {
     Log.d(TAG, "scheduleToggleOutput: outputId=" + outputId + " enable=" + enable);
-    if (outputId < 0 || outputId >= 4) {
+    if (outputId < 0 || outputId >= KegboardSetOutputCommand.NUM_OUTPUTS) {
       Log.w(TAG, "Unknown output number: " + outputId);
       return false;
     }
-    final Integer outputInteger = Integer.valueOf(outputId);
-
-    synchronized (mEnabledOutputsToRefreshUptimeMillis) {
-      if (!enable) {
-        mEnabledOutputsToRefreshUptimeMillis.remove(outputInteger);
-      } else {
-        final Long nextRefresh = Long.valueOf(SystemClock.uptimeMillis() + OUTPUT_REFRESH_INTERVAL);
-        mEnabledOutputsToRefreshUptimeMillis.put(outputInteger, nextRefresh);
+
+    synchronized (mOutputLock) {
+      if (mOutputEnabled[outputId] != enable) {
+        // Write the change right away; an enabled output is then refreshed from there.
+        mOutputEnabled[outputId] = enable;
+        mOutputDueUptimeMillis[outputId] = SystemClock.uptimeMillis();
       }
     }
 
     return true;
   }
 
-  private void toggleOutput(final int outputId, final boolean enable) throws IOException {
-    if (outputId < 0 || outputId >= 4) {
-      throw new IOException("Illegal output id.");
-    }
-    final KegboardSetOutputCommand enableCmd = new KegboardSetOutputCommand(outputId, enable);
-    mSerialPort.write(enableCmd.toBytes(), 500);
-  }
-
-  void refreshOutputs() throws IOException {
-    final long now = SystemClock.uptimeMillis();
-    synchronized (mEnabledOutputsToRefreshUptimeMillis) {
-      for (final Map.Entry<Integer, Long> entry : mEnabledOutputsToRefreshUptimeMillis.entrySet()) {
-        final int outputId = entry.getKey().intValue();
-        final long deadline = entry.getValue().longValue();
-        if (deadline >= now) {
-          toggleOutput(outputId, true);
-          final Long nextRefresh = Long.valueOf(SystemClock.uptimeMillis() + OUTPUT_REFRESH_INTERVAL);
-          mEnabledOutputsToRefreshUptimeMillis.put(entry.getKey(), nextRefresh);
-        }
+  /**
+   * Returns the {@link SystemClock#uptimeMillis()} at which an output command is next due, or
+   * {@link Long#MAX_VALUE} if none is pending.
+   */
+  long getNextOutputUptimeMillis() {
+    synchronized (mOutputLock) {
+      long next = Long.MAX_VALUE;
+      for (final long due : mOutputDueUptimeMillis) {
+        next = Math.min(next, due);
       }
+      return next;
+    }
+  }
 
-      final Set<Integer> missing = Sets.newLinkedHashSet(mLastEnabledOutputs);
-      missing.removeAll(mEnabledOutputsToRefreshUptimeMillis.keySet());
-      if (!missing.isEmpty()) {
-        for (final Integer outputId : missing) {
-          Log.d(TAG, "refreshOutputs: missing id " + outputId);
-          toggleOutput(outputId.intValue(), false);
+  /**
+   * Queues every output command due by {@code now} for the writer: an "on" for each enabled output
+   * whose refresh interval has elapsed, and an "off" for each output disabled since its last
+   * command. A command still pending for the same output is replaced, so the board only ever gets
+   * an output's latest state.
+   *
+   * @return the {@link SystemClock#uptimeMillis()} at which an output command is next due, or
+   *     {@link Long#MAX_VALUE} if none is pending
+   * @throws IOException if the controller is closed
+   */
+  long writeDueOutputs(final long now) throws IOException {
+    synchronized (mOutputLock) {
+      for (int outputId = 0; outputId < mOutputDueUptimeMillis.length; outputId++) {
+        if (mOutputDueUptimeMillis[outputId] <= now) {
+          final boolean enabled = mOutputEnabled[outputId];
+          queueCommand(Integer.valueOf(outputId),
+              KegboardSetOutputCommand.getEncoded(outputId, enabled));
+          mOutputDueUptimeMillis[outputId] =
+              enabled ? now + OUTPUT_REFRESH_INTERVAL : Long.MAX_VALUE;
         }
       }
-
-      mLastEnabledOutputs.clear();
-      mLastEnabledOutputs.addAll(mEnabledOutputsToRefreshUptimeMillis.keySet());
+      return getNextOutputUptimeMillis();
     }
   }
 
+  private static long[] newIdleOutputDeadlines() {
+    final long[] deadlines = new long[KegboardSetOutputCommand.NUM_OUTPUTS];
+    Arrays.fill(deadlines, Long.MAX_VALUE);
+    return deadlines;
+  }
+
+  /**
+   * Queues a ping for the writer, unless one is already pending.
+   *
+   * @throws IOException if the controller is closed
+   */
   void ping() throws IOException {
-    final KegboardPingCommand cmd = new KegboardPingCommand();
-    mSerialPort.write(cmd.toBytes(), 500);
+    mLastPingUptimeMillis = SystemClock.uptimeMillis();
+    queueCommand(PING_KEY, KegboardPingCommand.getEncoded());
+  }
+
+  private void queueCommand(Object key, byte[] command) throws IOException {
+    if (!mWriteQueue.offer(key, command)) {
+      throw new IOException("Write queue closed or full.");
+    }
+  }
+
+  /**
+   * Waits for queued commands and writes them all to the port in a single transfer. Called only
+   * by the controller's writer thread.
+   *
+   * @return {@code false} once the controller has been closed
+   */
+  boolean blockingWrite() throws IOException {
+    final byte[] transfer;
+    try {
+      transfer = mWriteQueue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    if (transfer == null) {
+      return false;
+    }
+    requirePort().write(transfer, WRITE_TIMEOUT_MILLIS);
+    mWriteQueue.onWritten(transfer.length);
+    return true;
+  }
+
+  /**
+   * Returns the {@link SystemClock#uptimeMillis()} at which a complete frame was last received,
+   * or at which this controller was created if none has been.
+   */
+  long getLastFrameUptimeMillis() {
+    return mLastFrameUptimeMillis;
+  }
+
+  /** Returns the {@link SystemClock#uptimeMillis()} of the last ping, or {@code 0} if none. */
+  long getLastPingUptimeMillis() {
+    return mLastPingUptimeMillis;
   }
 
   synchronized void setSerialNumber(final String serialNumber) {
@@ -246,73 +376,151 @@ public class KegboardController implements Controller {
         DEFAULT_BOARD_NAME, serialNumber.substring(dashPos + 1).toLowerCase(Locale.US));
   }
 
+  void setMessageListener(@Nullable KegboardMessageDispatcher.MessageListener listener) {
+    mDispatcher.setMessageListener(listener);
+  }
+
+  /**
+   * Claims the most recent hello message received since the last claim, without waiting.
+   *
+   * @return the message, or {@code null} if none has arrived
+   */
+  @Nullable
+  KegboardHelloMessage takeHelloMessage() {
+    synchronized (mHelloLock) {
+      final KegboardHelloMessage result = mLastHelloMessage;
+      mLastHelloMessage = null;
+      return result;
+    }
+  }
+
+  /**
+   * Reads available bytes from the port and delivers every message they complete, on the calling
+   * thread, to the {@link KegboardMessageDispatcher.MessageListener}.
+   */
+  void blockingRead() throws IOException {
+    final int amtRead = requirePort().read(mReadBuffer, Integer.MAX_VALUE);
+    if (amtRead < 0) {
+      Log.w(TAG, "Error!");
+      throw new IOException("Device closed.");
+    }
+    final long readNanos = System.nanoTime();
+    final long readElapsedRealtime = SystemClock.elapsedRealtime();
+
+    final KegboardCaptureWriter capture = mCaptureWriter;
+    if (capture != null) {
+      try {
+        capture.write(mReadBuffer, amtRead, readNanos);
+      } catch (IOException e) {
+        Log.w(TAG, "Error writing capture, stopping capture: " + e);
+        stopCapture();
+      }
+    }
+
+    handleBytes(mReadBuffer, amtRead, readNanos, readElapsedRealtime);
+  }
+
+  /**
+   * Processes bytes received from the board, delivering every message they complete to the
+   * {@link KegboardMessageDispatcher.MessageListener}.
+   *
+   * @param readNanos arrival time of the bytes, from {@link System#nanoTime()}
+   * @param readElapsedRealtime arrival time of the bytes, from
+   *     {@link SystemClock#elapsedRealtime()}
+   */
+  void handleBytes(byte[] bytes, int length, long readNanos, long readElapsedRealtime) {
+    if (DEBUG) {
+      Log.d(TAG, "Read bytes: " + Hex.encodeHexString(Arrays.copyOf(bytes, length)));
+    }
+    final int accepted = mReader.addBytes(bytes, length);
+    if (accepted < length) {
+      Log.w(TAG, "Message buffer full, dropped " + (length - accepted) + " bytes.");
+    }
+    dispatchMessages(readNanos, readElapsedRealtime);
+  }
+
   /**
-   * Reads and returns a single message.
+   * Starts recording all bytes read from the board to {@code writer}, replacing any capture in
+   * progress.
    */
-  KegboardMessage readMessage() {
-    final KegboardMessage message = mReader.getMessage();
-    if (message != null) {
-      handleMessage(message);
+  void startCapture(KegboardCaptureWriter writer) {
+    stopCapture();
+    mCaptureWriter = writer;
+  }
+
+  /**
+   * Releases the controller once its port is closed: stops any capture, and discards queued
+   * commands, letting the writer thread finish.
+   */
+  void close() {
+    mWriteQueue.close();
+    stopCapture();
+  }
+
+  /** Stops and closes the capture in progress, if any. */
+  void stopCapture() {
+    final KegboardCaptureWriter capture = mCaptureWriter;
+    mCaptureWriter = null;
+    if (capture != null) {
+      try {
+        capture.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Error closing capture: " + e);
+      }
     }
-    return message;
   }
 
-  List<KegboardMessage> readMessages() {
-    final List<KegboardMessage> result = Lists.newArrayList();
+  private void dispatchMessages(final long readNanos, final long readElapsedRealtime) {
+    boolean framed = false;
     while (true) {
-      final KegboardMessage message = readMessage();
+      final KegboardMessage message = mReader.getReusableMessage();
       if (message == null) {
         break;
       }
-      result.add(message);
+      framed = true;
+      if (message instanceof KegboardHelloMessage) {
+        handleHelloMessage((KegboardHelloMessage) message);
+      }
+      recordDecodeLatency(message, System.nanoTime() - readNanos);
+      mDispatcher.onMessage(getName(), message);
     }
-    return result;
+    if (framed) {
+      mLastFrameUptimeMillis = SystemClock.uptimeMillis();
+    }
+
+    mDispatcher.flushMeterUpdates(readElapsedRealtime);
   }
 
 
-  void blockingRead() throws IOException {
-    final int amtRead = mSerialPort.read(mReadBuffer, Integer.MAX_VALUE);
-    if (amtRead < 0) {
-      Log.w(TAG, "Error!");
-      throw new IOException("Device closed.");
+  private void recordDecodeLatency(KegboardMessage message, long nanos) {
+    LatencyHistogram histogram = mDecodeLatency.get(message.getClass());
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      mDecodeLatency.put(message.getClass(), histogram);
     }
-    Log.d(TAG, "Read bytes: " + Hex.encodeHex(ByteBuffer.wrap(mReadBuffer, 0, amtRead)));
-    mReader.addBytes(mReadBuffer, amtRead);
+    histogram.record(nanos);
   }
 
-  private void handleMessage(KegboardMessage message) {
-    if (message instanceof KegboardHelloMessage) {
-      // Update cached serial number.
-      final String serialNumber = ((KegboardHelloMessage) message).getSerialNumber();
-      if (!serialNumber.isEmpty()) {
-        Log.d(TAG, "Updating serial number");
-        setSerialNumber(serialNumber);
-      }
-    } else if (message instanceof KegboardMeterStatusMessage) {
-      final KegboardMeterStatusMessage meterStatus = (KegboardMeterStatusMessage) message;
-
-      final String portName = meterStatus.getMeterName();
-      final String meterName = String.format("%s.%s", getName(), portName);
-
-      final FlowMeter meter;
-      if (mFlowMetersByName.containsKey(meterName)) {
-        meter = mFlowMetersByName.get(meterName);
-      } else {
-        meter = new FlowMeter(meterName);
-        mFlowMetersByName.put(meterName, meter);
-      }
-      meter.setTicks(meterStatus.getMeterReading());
-    } else if (message instanceof KegboardTemperatureReadingMessage) {
-      final KegboardTemperatureReadingMessage tempMessage =
-          (KegboardTemperatureReadingMessage) message;
-
-      final String name = tempMessage.getName();
-      if (!mThermoSensors.containsKey(name)) {
-        mThermoSensors.put(name, new ThermoSensor(name));
-      }
+  /** Returns a snapshot of this controller's link statistics. */
+  public LinkStats getLinkStats() {
+    final Map<String, LatencyHistogram> latency = Maps.newTreeMap();
+    for (final Map.Entry<Class<? extends KegboardMessage>, LatencyHistogram> entry :
+        mDecodeLatency.entrySet()) {
+      latency.put(entry.getKey().getSimpleName(), entry.getValue().copy());
+    }
+    return new LinkStats(mReader.getStats(), mDispatcher.getCollapsedMeterFrames(),
+        Collections.unmodifiableMap(latency), mWriteQueue.getStats());
+  }
 
-      final ThermoSensor sensor = mThermoSensors.get(name);
-      sensor.setTemperatureC(tempMessage.getValue());
+  private void handleHelloMessage(KegboardHelloMessage message) {
+    // Update cached serial number.
+    final String serialNumber = message.getSerialNumber();
+    if (!serialNumber.isEmpty()) {
+      Log.d(TAG, "Updating serial number");
+      setSerialNumber(serialNumber);
+    }
+    synchronized (mHelloLock) {
+      mLastHelloMessage = (KegboardHelloMessage) message.copy();
     }
   }
 
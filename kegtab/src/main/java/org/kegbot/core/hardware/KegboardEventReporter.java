@@ -0,0 +1,93 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kegbot.core.hardware;
+
+import android.util.Log;
+
+import org.kegbot.app.event.Event;
+import org.kegbot.core.AuthenticationToken;
+import org.kegbot.core.FlowMeter;
+import org.kegbot.core.ThermoSensor;
+import org.kegbot.kegboard.KegboardAuthTokenMessage;
+import org.kegbot.kegboard.KegboardHelloMessage;
+import org.kegbot.kegboard.KegboardMessage;
+
+import java.util.List;
+
+/**
+ * Reports the messages and readings of a kegboard, USB or network, to a
+ * {@link ControllerManager.Listener} as controller events.
+ */
+class KegboardEventReporter implements KegboardMessageDispatcher.MessageListener {
+
+  private static final String TAG = KegboardEventReporter.class.getSimpleName();
+
+  private final ControllerManager.Listener mListener;
+
+  KegboardEventReporter(ControllerManager.Listener listener) {
+    mListener = listener;
+  }
+
+  @Override
+  public void onMessage(Controller controller, KegboardMessage message) {
+    Log.d(TAG, String.format("Handling message: %s", message));
+
+    final Event controllerEvent = getControllerEvent(message);
+    if (controllerEvent != null) {
+      mListener.onControllerEvent(controller, controllerEvent);
+    }
+  }
+
+  @Override
+  public void onThermoSensorUpdate(Controller controller, ThermoSensor sensor) {
+    mListener.onControllerEvent(controller, new ThermoSensorUpdateEvent(sensor));
+  }
+
+  @Override
+  public void onMeterUpdates(Controller controller, List<FlowMeter> meters,
+      long readElapsedRealtime) {
+    for (int i = 0; i < meters.size(); i++) {
+      mListener.onControllerEvent(controller,
+          new MeterUpdateEvent(meters.get(i), readElapsedRealtime));
+    }
+  }
+
+  private static Event getControllerEvent(final KegboardMessage message) {
+    Event controllerEvent = null;
+
+    if (message instanceof KegboardHelloMessage) {
+      // TODO
+    } else if (message instanceof KegboardAuthTokenMessage) {
+      final KegboardAuthTokenMessage authMessage = (KegboardAuthTokenMessage) message;
+
+      final AuthenticationToken token =
+          new AuthenticationToken(authMessage.getName(), authMessage.getToken());
+      if (authMessage.getStatus() == KegboardAuthTokenMessage.Status.PRESENT) {
+        controllerEvent = new TokenAttachedEvent(token);
+      } else {
+        controllerEvent = new TokenDetachedEvent(token);
+      }
+    } else {
+      Log.w(TAG, "Unhandled message: " + message);
+    }
+    return controllerEvent;
+  }
+
+}
@@ -29,8 +29,11 @@ import android.hardware.usb.UsbManager;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
@@ -42,21 +45,23 @@ import com.hoho.android.usbserial.driver.UsbSerialProber;
 import com.squareup.otto.Bus;
 
 import org.apache.commons.codec.binary.Hex;
-import org.kegbot.app.event.Event;
+import org.kegbot.app.config.AppConfiguration;
 import org.kegbot.app.util.IndentingPrintWriter;
-import org.kegbot.core.AuthenticationToken;
+import org.kegbot.app.util.LatencyHistogram;
 import org.kegbot.core.BackgroundManager;
 import org.kegbot.core.FlowMeter;
-import org.kegbot.kegboard.KegboardAuthTokenMessage;
+import org.kegbot.core.ThermoSensor;
+import org.kegbot.kegboard.KegboardCaptureWriter;
 import org.kegbot.kegboard.KegboardHelloMessage;
 import org.kegbot.kegboard.KegboardMessage;
-import org.kegbot.kegboard.KegboardMeterStatusMessage;
-import org.kegbot.kegboard.KegboardTemperatureReadingMessage;
 import org.kegbot.proto.Models;
 
+import java.io.File;
 import java.io.IOException;
-import java.security.SecureRandom;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -64,6 +69,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -75,20 +81,29 @@ import javax.annotation.concurrent.GuardedBy;
  */
 public class KegboardManager extends BackgroundManager implements ControllerManager {
 
-  private final String TAG = KegboardManager.class.getSimpleName();
+  private static final String TAG = KegboardManager.class.getSimpleName();
 
   private static final String ACTION_USB_PERMISSION = KegboardManager.class.getCanonicalName()
       + ".ACTION_USB_PERMISSION";
 
-  /** Default interval for scanning the USB device tree. */
-  private static final long USB_REFRESH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  /**
+   * Interval for rescanning the whole USB device tree. Attach and detach broadcasts keep the tree
+   * up to date, so this is only a safety net for missed ones: notably, detach is not always sent.
+   */
+  private static final long USB_REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
-  private static final long PING_WAIT_FOR_RESPONSE_MILLIS = 200;
-  private static final long PING_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
-  private static final long PING_ATTEMPTS = 10;
+  /** Interval for checking whether devices awaiting permission have been granted it. */
+  private static final long PERMISSION_CHECK_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
 
   private static final int MIN_FIRMWARE_VERSION = 17;
 
+  /** Unanswered probe pings after which a silent controller's link is deemed stalled. */
+  private static final int LINK_PROBE_PINGS = 3;
+
+  /** Delay before first reopening a stalled driver; doubled after each failed reopen. */
+  private static final long LINK_REOPEN_MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  private static final long LINK_REOPEN_MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
   private static final ProbeTable PROBE_TABLE = UsbSerialProber.getDefaultProbeTable();
 
   static {
@@ -99,6 +114,92 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
 
   private static final Pattern RELAY_PATTERN = Pattern.compile("relay(\\d+)");
 
+  /**
+   * Tracks a controller from the moment its port is opened until it is verified by answering a
+   * ping, or given up on. Attaches are advanced by the service loop, never blocking it, so any
+   * number of boards are probed in parallel.
+   */
+  private static final class PendingAttach {
+    enum State {
+      /** Port open and reader running; no ping sent yet. */
+      OPENED,
+      /** Pinged at least once, awaiting a hello. */
+      PINGING,
+      /** Answered with a hello. */
+      VERIFIED,
+      /** Did not answer before the attach timeout. */
+      UNRESPONSIVE,
+    }
+
+    final KegboardController controller;
+    final long openedNanos = System.nanoTime();
+    final long timeoutUptimeMillis;
+
+    State state = State.OPENED;
+    int pings = 0;
+    long nextPingUptimeMillis;
+
+    PendingAttach(KegboardController controller, long nowUptimeMillis, long timeoutMillis) {
+      this.controller = controller;
+      this.nextPingUptimeMillis = nowUptimeMillis;
+      this.timeoutUptimeMillis = nowUptimeMillis + timeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "%s: state=%s pings=%d", controller, state,
+          Integer.valueOf(pings));
+    }
+  }
+
+  /**
+   * Tracks a driver torn down by the link watchdog, from the stall until a reopened controller is
+   * verified. The driver's ports share a connection, so they are torn down and reopened together.
+   */
+  private static final class LinkRecovery {
+    final long stalledNanos = System.nanoTime();
+
+    /** Last readings of the stalled controller's meters, by meter name. */
+    final Map<String, Long> meterTicks = Maps.newLinkedHashMap();
+
+    int reopens = 0;
+    long backoffMillis = LINK_REOPEN_MIN_BACKOFF_MILLIS;
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "stalled=%d ms ago reopens=%d backoff=%d ms",
+          Long.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stalledNanos)),
+          Integer.valueOf(reopens), Long.valueOf(backoffMillis));
+    }
+  }
+
+  /** Immutable snapshot of the link watchdog's statistics. */
+  public static final class WatchdogStats {
+    /** Pings sent to controllers silent for longer than the link idle time. */
+    public final long probes;
+
+    /** Controllers torn down for not answering their probes. */
+    public final long stalls;
+
+    /** Times a stalled driver was reopened, whether or not it then answered. */
+    public final long reopens;
+
+    /** Time from each stall being detected to a reopened controller being verified. */
+    public final LatencyHistogram timeToRecover;
+
+    /** Meter ticks first reported after a stall, which may have been poured while it lasted. */
+    public final long outageTicks;
+
+    WatchdogStats(long probes, long stalls, long reopens, LatencyHistogram timeToRecover,
+        long outageTicks) {
+      this.probes = probes;
+      this.stalls = stalls;
+      this.reopens = reopens;
+      this.timeToRecover = timeToRecover;
+      this.outageTicks = outageTicks;
+    }
+  }
+
   private ExecutorService mExecutorService;
 
   /**
@@ -113,10 +214,50 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
   /** Callback interface to parent {@link HardwareManager}. */
   private final ControllerManager.Listener mListener;
 
+  private final AppConfiguration mConfig;
+
   /**
    * {@link SystemClock#uptimeMillis()} value at which the USB device tree will be rescanned.
    */
-  private long mNextUsbRefreshUptimeMillis = Long.MIN_VALUE;
+  private volatile long mNextUsbRefreshUptimeMillis = Long.MIN_VALUE;
+
+  /**
+   * {@link SystemClock#uptimeMillis()} value at which devices needing permission are checked
+   * again, if there are any.
+   */
+  private long mNextPermissionCheckUptimeMillis = Long.MIN_VALUE;
+
+  /** USB broadcasts received but not yet applied by the service loop. */
+  private final Queue<Intent> mUsbBroadcasts = Queues.newConcurrentLinkedQueue();
+
+  private volatile long mUsbRescans = 0;
+  private volatile long mUsbBroadcastsApplied = 0;
+
+  /** Time {@link #findNewControllers()} held the manager lock, per rescan. */
+  private final LatencyHistogram mRescanLockHold = new LatencyHistogram();
+
+  /**
+   * Lock on which {@link #runInBackground()} waits for its next deadline, or for another thread to
+   * request a pass with {@link #requestService()}.
+   */
+  private final Object mServiceLock = new Object();
+
+  @GuardedBy("mServiceLock")
+  private boolean mServiceRequested = false;
+
+  /** Number of passes made by the service loop. */
+  private volatile long mServicePasses = 0;
+
+  /**
+   * When each controller next has output commands due. A controller's entry is always rescheduled
+   * while holding this lock, so the last one written reflects its latest output state.
+   */
+  @GuardedBy("mOutputScheduler")
+  private final DeadlineScheduler<KegboardController> mOutputScheduler =
+      new DeadlineScheduler<KegboardController>();
+
+  /** Number of output command batches queued by the service loop. */
+  private volatile long mOutputWrites = 0;
 
   /**
    * Maps a connected device ID to the supporting driver, or {@code null} if unsupported.
@@ -130,6 +271,12 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
   @GuardedBy("this")
   private final Map<Integer, UsbSerialDriver> mConnectedDeviceToDriver = Maps.newLinkedHashMap();
 
+  /**
+   * Drivers added with {@link #addUnmanagedDriver(UsbSerialDriver)}, outside the USB device tree.
+   */
+  @GuardedBy("this")
+  private final Set<UsbSerialDriver> mUnmanagedDrivers = Sets.newLinkedHashSet();
+
   /**
    * Connected devices for which we are awaiting permission.
    */
@@ -143,26 +290,105 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
   /** Maps active {@link UsbSerialPort}s to {@link Controller} instances. */
   private final Map<UsbSerialPort, KegboardController> mControllers = Maps.newLinkedHashMap();
 
+  /**
+   * Maps names to controllers in {@link #mControllers}. Where several share a name, the first to
+   * attach holds it. Written with the manager lock held; read without it.
+   */
+  private final Map<String, KegboardController> mControllersByName = Maps.newConcurrentMap();
+
+  /** Ports whose controllers are still being verified. */
+  @GuardedBy("this")
+  private final Map<UsbSerialPort, PendingAttach> mPendingAttaches = Maps.newLinkedHashMap();
+
+  /** Time from opening a port to its controller being verified. */
+  private final LatencyHistogram mTimeToReady = new LatencyHistogram();
+
+  private volatile long mAttachesVerified = 0;
+  private volatile long mAttachesUnresponsive = 0;
+
+  /** Drivers torn down by the link watchdog and not yet verified again. */
+  @GuardedBy("this")
+  private final Map<UsbSerialDriver, LinkRecovery> mLinkRecoveries = Maps.newLinkedHashMap();
+
+  /** When each stalled driver is next reopened. */
+  @GuardedBy("this")
+  private final DeadlineScheduler<UsbSerialDriver> mReopenScheduler =
+      new DeadlineScheduler<UsbSerialDriver>();
+
+  /**
+   * Readings of the meters of recovered controllers as their links stalled, by meter name. Each is
+   * consumed by the meter's first update after the recovery.
+   */
+  private final Map<String, Long> mOutageMeterTicks = Maps.newConcurrentMap();
+
+  /** Time from a link stall being detected to a reopened controller being verified. */
+  private final LatencyHistogram mTimeToRecover = new LatencyHistogram();
+
+  private volatile long mLinkProbes = 0;
+  private volatile long mLinkStalls = 0;
+  private volatile long mLinkReopens = 0;
+
+  /** Meter ticks first reported after a link outage, which may have been poured during it. */
+  private final AtomicLong mOutageTicks = new AtomicLong();
+
   /**
    * Queue of controllers pending removal. <p> Controllers are added to this queue by their service
-   * thread (via {@link #handleControllerError(KegboardController, Exception)}) and removed in
-   * {@link #serviceControllers()}. </p>
+   * thread (via {@link #handleControllerError(KegboardController, Exception)}) and removed by the
+   * service loop in {@link #runInBackground()}. </p>
    */
   private final Queue<KegboardController> mControllerErrors = Queues.newLinkedBlockingQueue();
 
+  /**
+   * Receives messages directly from each controller's service thread. Messages from controllers
+   * still being verified are left to {@link #serviceAttaches()}.
+   */
+  private final KegboardMessageDispatcher.MessageListener mMessageListener;
+
   private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
     @Override
     public void onReceive(Context context, Intent intent) {
       final String action = intent.getAction();
       Log.d(TAG, "Received broadcast: " + action);
-      refreshSoon();
+      mUsbBroadcasts.add(intent);
+      requestService();
     }
   };
 
-  public KegboardManager(Bus bus, Context context, ControllerManager.Listener listener) {
+  public KegboardManager(Bus bus, Context context, ControllerManager.Listener listener,
+      AppConfiguration config) {
     super(bus);
     mContext = context.getApplicationContext();
     mListener = listener;
+    mConfig = config;
+    mMessageListener = new KegboardEventReporter(listener) {
+      @Override
+      public void onMessage(Controller controller, KegboardMessage message) {
+        if (Controller.STATUS_OK.equals(controller.getStatus())) {
+          super.onMessage(controller, message);
+        } else if (message instanceof KegboardHelloMessage) {
+          // Possibly a ping response to a pending attach.
+          requestService();
+        }
+      }
+
+      @Override
+      public void onThermoSensorUpdate(Controller controller, ThermoSensor sensor) {
+        if (Controller.STATUS_OK.equals(controller.getStatus())) {
+          super.onThermoSensorUpdate(controller, sensor);
+        }
+      }
+
+      @Override
+      public void onMeterUpdates(Controller controller, List<FlowMeter> meters,
+          long readElapsedRealtime) {
+        if (Controller.STATUS_OK.equals(controller.getStatus())) {
+          if (!mOutageMeterTicks.isEmpty()) {
+            recordOutageTicks(meters);
+          }
+          super.onMeterUpdates(controller, meters, readElapsedRealtime);
+        }
+      }
+    };
   }
 
   @Override
@@ -184,11 +410,21 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
   public synchronized void stop() {
     Log.d(TAG, "Stopping ...");
     mRunning.set(false);
+    requestService();
 
     for (final UsbSerialDriver driver : mConnectedDeviceToDriver.values()) {
       removeDriver(driver);
     }
+    for (final UsbSerialDriver driver : mUnmanagedDrivers) {
+      removeDriver(driver);
+    }
+    mUnmanagedDrivers.clear();
     mConnectedDevicesNeedingPermission.clear();
+    for (final UsbSerialDriver driver : mLinkRecoveries.keySet()) {
+      mReopenScheduler.cancel(driver);
+    }
+    mLinkRecoveries.clear();
+    mOutageMeterTicks.clear();
 
     mContext.unregisterReceiver(mUsbReceiver);
     mExecutorService.shutdown();
@@ -201,12 +437,43 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
   public void refreshSoon() {
     Log.d(TAG, "refreshSoon");
     mNextUsbRefreshUptimeMillis = SystemClock.uptimeMillis();
+    requestService();
+  }
+
+  /** Wakes the service loop for an immediate pass. */
+  private void requestService() {
+    synchronized (mServiceLock) {
+      mServiceRequested = true;
+      mServiceLock.notifyAll();
+    }
+  }
+
+  /**
+   * Waits until {@code deadlineUptimeMillis}, or until a pass is requested with
+   * {@link #requestService()}, whichever comes first.
+   */
+  private void awaitService(long deadlineUptimeMillis) {
+    synchronized (mServiceLock) {
+      while (!mServiceRequested && mRunning.get()) {
+        final long waitMillis = deadlineUptimeMillis - SystemClock.uptimeMillis();
+        if (waitMillis <= 0) {
+          break;
+        }
+        try {
+          mServiceLock.wait(waitMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      mServiceRequested = false;
+    }
   }
 
   public boolean toggleOutput(final Models.FlowToggle toggle, final boolean enable) {
     Log.d(TAG, "toggleOutput: toggle=" + toggle.getName() + " enable=" + enable);
     final String boardName = toggle.getController().getName();
-    final KegboardController controller = getControllerByName(toggle.getController().getName());
+    final KegboardController controller = mControllersByName.get(boardName);
     if (controller == null) {
       Log.w(TAG, "No controller with name " + boardName);
       return false;
@@ -220,11 +487,12 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
     }
     final int portNumber = Integer.valueOf(matcher.group(1)).intValue();
 
-    try {
-      return controller.scheduleToggleOutput(portNumber, enable);
-    } finally {
-      refreshSoon();
+    if (!controller.scheduleToggleOutput(portNumber, enable)) {
+      return false;
     }
+    scheduleOutputs(controller);
+    requestService();
+    return true;
   }
 
   @Override
@@ -241,69 +509,143 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
 
     try {
       while (mRunning.get()) {
-        while (mControllerErrors.size() > 0) {
-          removeSerialPort(mControllerErrors.remove().getPort());
+        mServicePasses++;
+        KegboardController failed;
+        while ((failed = mControllerErrors.poll()) != null) {
+          removeFailedController(failed);
+        }
+
+        Intent broadcast;
+        while ((broadcast = mUsbBroadcasts.poll()) != null) {
+          applyUsbBroadcast(broadcast);
         }
 
         final long now = SystemClock.uptimeMillis();
         if (now > mNextUsbRefreshUptimeMillis) {
           findNewControllers();
           mNextUsbRefreshUptimeMillis = SystemClock.uptimeMillis() + USB_REFRESH_INTERVAL_MILLIS;
+          mNextPermissionCheckUptimeMillis = now + PERMISSION_CHECK_INTERVAL_MILLIS;
+        } else if (now >= mNextPermissionCheckUptimeMillis) {
+          checkDevicesNeedingPermission();
+          mNextPermissionCheckUptimeMillis = now + PERMISSION_CHECK_INTERVAL_MILLIS;
         }
+        final long nextUsbUptimeMillis = getNextUsbUptimeMillis();
 
-        boolean didWork = serviceControllers();
+        // Attaches just completed are watched, and stalls found by the watchdog are reopened.
+        final long nextAttachUptimeMillis = serviceAttaches();
+        final long nextWatchdogUptimeMillis = serviceWatchdog();
+        final long nextReopenUptimeMillis = serviceReopens();
+        final long nextOutputUptimeMillis = writeDueOutputs();
 
         if (Thread.currentThread().isInterrupted()) {
           Log.w(TAG, "Thread interrupted, exiting.");
           break;
         }
 
-        if (!didWork) {
-          SystemClock.sleep(100);
-        }
+        // Messages are delivered by the controllers' own threads, so there is nothing to do until
+        // the next deadline or until an error, broadcast or output change requests a pass.
+        awaitService(Math.min(Math.min(nextUsbUptimeMillis, nextWatchdogUptimeMillis),
+            Math.min(nextReopenUptimeMillis,
+                Math.min(nextAttachUptimeMillis, nextOutputUptimeMillis))));
       }
     } finally {
       Log.d(TAG, "runInBackground(): exiting.");
     }
   }
 
+  /**
+   * Applies an attach, detach or permission broadcast to the single device it names. Broadcasts
+   * naming no device fall back to a full rescan.
+   */
+  private void applyUsbBroadcast(final Intent intent) {
+    final UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+    if (device == null) {
+      refreshSoon();
+      return;
+    }
+    mUsbBroadcastsApplied++;
+    if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+      onDeviceDetached(Integer.valueOf(device.getDeviceId()));
+    } else {
+      reconcileDevice(device);
+    }
+  }
+
+  /** Returns when the service loop next needs to look at the USB device tree. */
+  private synchronized long getNextUsbUptimeMillis() {
+    if (mConnectedDevicesNeedingPermission.isEmpty()) {
+      return mNextUsbRefreshUptimeMillis;
+    }
+    return Math.min(mNextUsbRefreshUptimeMillis, mNextPermissionCheckUptimeMillis);
+  }
+
   /**
    * Refreshes the internal list of controllers, by identifying newly-added and removed controllers
    * via {@link android.hardware.usb.UsbManager#getDeviceList()}.
    */
   private synchronized void findNewControllers() {
-    final Collection<UsbDevice> devices = mUsbManager.getDeviceList().values();
-    final Set<Integer> connectedIds = Sets.newLinkedHashSet();
+    final long startNanos = System.nanoTime();
+    mUsbRescans++;
+    try {
+      final Collection<UsbDevice> devices = mUsbManager.getDeviceList().values();
+      final Set<Integer> connectedIds = Sets.newLinkedHashSet();
 
-    // Call onDeviceAdded for each added device.
-    for (final UsbDevice device : devices) {
-      final Integer deviceId = Integer.valueOf(device.getDeviceId());
-      connectedIds.add(deviceId);
+      for (final UsbDevice device : devices) {
+        connectedIds.add(Integer.valueOf(device.getDeviceId()));
+        reconcileDevice(device);
+      }
 
-      if (mConnectedDeviceToDriver.containsKey(deviceId)) {
-        // We already know about this device; ignore it.
-        continue;
-      } else if (mConnectedDevicesNeedingPermission.containsKey(deviceId)) {
-        // We're waiting for permission to use this device.
-        if (!mUsbManager.hasPermission(device)) {
-          continue;
-        }
+      final Set<Integer> removedIds = Sets.newLinkedHashSet(mConnectedDeviceToDriver.keySet());
+      removedIds.removeAll(connectedIds);
+
+      // Call onDeviceRemoved for each removed device.
+      for (final Integer deviceId : removedIds) {
+        onDeviceRemoved(deviceId);
       }
+    } finally {
+      mRescanLockHold.record(System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Brings a single attached device up to date: devices already known, with or without a driver,
+   * are left alone, so no device is ever probed twice.
+   */
+  private synchronized void reconcileDevice(final UsbDevice device) {
+    final Integer deviceId = Integer.valueOf(device.getDeviceId());
 
+    if (mConnectedDeviceToDriver.containsKey(deviceId)) {
+      // We already know about this device; ignore it.
+      return;
+    } else if (mConnectedDevicesNeedingPermission.containsKey(deviceId)) {
+      // We're waiting for permission to use this device.
       if (!mUsbManager.hasPermission(device)) {
-        Log.i(TAG, "No permission for device: " + deviceId);
-        onNeedDevicePermission(device);
-      } else {
-        mConnectedDevicesNeedingPermission.remove(deviceId);
-        onDeviceAdded(device);
+        return;
       }
     }
 
-    final Set<Integer> removedIds = Sets.newLinkedHashSet(mConnectedDeviceToDriver.keySet());
-    removedIds.removeAll(connectedIds);
+    if (!mUsbManager.hasPermission(device)) {
+      Log.i(TAG, "No permission for device: " + deviceId);
+      onNeedDevicePermission(device);
+    } else {
+      mConnectedDevicesNeedingPermission.remove(deviceId);
+      onDeviceAdded(device);
+    }
+  }
+
+  /** Adds any device awaiting permission which has since been granted it. */
+  private synchronized void checkDevicesNeedingPermission() {
+    if (mConnectedDevicesNeedingPermission.isEmpty()) {
+      return;
+    }
+    for (final UsbDevice device : Lists.newArrayList(mConnectedDevicesNeedingPermission.values())) {
+      reconcileDevice(device);
+    }
+  }
 
-    // Call onDeviceRemoved for each removed device.
-    for (final Integer deviceId : removedIds) {
+  private synchronized void onDeviceDetached(final Integer deviceId) {
+    mConnectedDevicesNeedingPermission.remove(deviceId);
+    if (mConnectedDeviceToDriver.containsKey(deviceId)) {
       onDeviceRemoved(deviceId);
     }
   }
@@ -360,20 +702,40 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
     }
   }
 
+  /**
+   * Attaches the ports of a driver that needs no USB permission or connection, such as a simulated
+   * kegboard. The ports are opened with a {@code null} connection and go through the same attach
+   * as any other; they are closed when the manager stops.
+   */
+  @VisibleForTesting
+  synchronized void addUnmanagedDriver(UsbSerialDriver driver) {
+    Log.d(TAG, "Adding unmanaged driver " + driver);
+    mUnmanagedDrivers.add(driver);
+    for (final UsbSerialPort port : driver.getPorts()) {
+      addSerialPort(null, port);
+    }
+  }
+
+  /**
+   * Opens the port and starts its controller's reader, leaving the controller to be verified by
+   * {@link #serviceAttaches()}.
+   */
   private synchronized void addSerialPort(final UsbDeviceConnection connection, final UsbSerialPort port) {
-    final KegboardController controller;
-    final KegboardHelloMessage verified;
+    KegboardController controller = null;
     try {
       port.open(connection);
       port.setParameters(115200, 8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
       port.setDTR(true);
 
       controller = new KegboardController(port);
-      startServiceThreadForController(controller);
-
-      verified = verifyFirmware(controller);
+      controller.setMessageListener(mMessageListener);
+      maybeStartCapture(controller);
+      startServiceThreadsForController(controller);
     } catch (IOException e) {
       Log.w(TAG, "Error adding serial port: " + e, e);
+      if (controller != null) {
+        controller.close();
+      }
       Log.d(TAG, "Closing device.");
       try {
         port.close();
@@ -383,47 +745,267 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
       return;
     }
 
+    mPendingAttaches.put(port, new PendingAttach(controller, SystemClock.uptimeMillis(),
+        mConfig.getKegboardAttachTimeoutMillis()));
+    requestService();
+  }
+
+  /**
+   * Advances every pending attach: completes those whose controller has answered or timed out,
+   * and pings the rest when due.
+   *
+   * @return the {@link SystemClock#uptimeMillis()} at which an attach next needs attention, or
+   *     {@link Long#MAX_VALUE} if none are pending
+   */
+  private synchronized long serviceAttaches() {
+    long nextUptimeMillis = Long.MAX_VALUE;
+    if (mPendingAttaches.isEmpty()) {
+      return nextUptimeMillis;
+    }
+
+    final long now = SystemClock.uptimeMillis();
+    final long pingIntervalMillis = mConfig.getKegboardPingIntervalMillis();
+    final Iterator<PendingAttach> it = mPendingAttaches.values().iterator();
+    while (it.hasNext()) {
+      final PendingAttach attach = it.next();
+      final KegboardHelloMessage hello = attach.controller.takeHelloMessage();
+      if (hello != null) {
+        attach.state = PendingAttach.State.VERIFIED;
+      } else if (now >= attach.timeoutUptimeMillis) {
+        attach.state = PendingAttach.State.UNRESPONSIVE;
+      } else {
+        if (now >= attach.nextPingUptimeMillis) {
+          Log.d(TAG, "serviceAttaches: Pinging " + attach);
+          try {
+            attach.controller.ping();
+          } catch (IOException e) {
+            // The reader will hit the same error and remove the port.
+            Log.w(TAG, "serviceAttaches: Error pinging " + attach.controller + ": " + e);
+          }
+          attach.pings++;
+          attach.state = PendingAttach.State.PINGING;
+          attach.nextPingUptimeMillis = now + pingIntervalMillis;
+        }
+        nextUptimeMillis = Math.min(nextUptimeMillis,
+            Math.min(attach.nextPingUptimeMillis, attach.timeoutUptimeMillis));
+        continue;
+      }
+
+      it.remove();
+      finishAttach(attach, hello);
+    }
+    return nextUptimeMillis;
+  }
+
+  private synchronized void finishAttach(final PendingAttach attach,
+      @Nullable final KegboardHelloMessage verified) {
+    final KegboardController controller = attach.controller;
+    final long elapsedNanos = System.nanoTime() - attach.openedNanos;
+
+    final UsbSerialDriver driver = controller.getPort().getDriver();
+    final LinkRecovery recovery = mLinkRecoveries.get(driver);
+    if (recovery != null && verified == null) {
+      // Still stalled: back off further rather than leave the board attached but unresponsive.
+      Log.w(TAG, "finishAttach: No response from reopened controller: " + controller);
+      mAttachesUnresponsive++;
+      controller.close();
+      removeDriver(driver);
+      scheduleReopen(driver, recovery);
+      return;
+    }
+
     String status;
     if (verified == null) {
       // Board is unresponsive.
+      Log.w(TAG, "finishAttach: No response from controller: " + controller);
       status = Controller.STATUS_UNRESPONSIVE;
-    } else if (verified.getFirmwareVersion() < MIN_FIRMWARE_VERSION) {
-      // Board firmware too old.
-      status = Controller.STATUS_NEED_UPDATE;
-    } else if (Strings.isNullOrEmpty(verified.getSerialNumber())) {
-      // Board needs a serial number.  OK for now.
-      status = Controller.STATUS_OK;
+      mAttachesUnresponsive++;
     } else {
-      // All good! This baby's ready to report!
-      status = Controller.STATUS_OK;
+      Log.d(TAG, String.format(Locale.US, "finishAttach: Verified after %d ms: %s",
+          Long.valueOf(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)), verified));
+      mTimeToReady.record(elapsedNanos);
+      mAttachesVerified++;
+      if (verified.getFirmwareVersion() < MIN_FIRMWARE_VERSION) {
+        // Board firmware too old.
+        status = Controller.STATUS_NEED_UPDATE;
+      } else if (Strings.isNullOrEmpty(verified.getSerialNumber())) {
+        // Board needs a serial number.  OK for now.
+        Log.w(TAG, "finishAttach: Board has no serial number.");
+        status = Controller.STATUS_OK;
+      } else {
+        // All good! This baby's ready to report!
+        status = Controller.STATUS_OK;
+      }
     }
 
-    for (final KegboardController existingController : mControllers.values()) {
-      if (existingController.getName().equals(controller.getName())) {
-        Log.w(TAG, "Already have a controller named " + controller.getName());
-        status = Controller.STATUS_NAME_CONFLICT;
-        break;
-      }
+    if (recovery != null) {
+      final long recoverNanos = System.nanoTime() - recovery.stalledNanos;
+      Log.i(TAG, String.format(Locale.US, "finishAttach: Link recovered after %d ms: %s",
+          Long.valueOf(TimeUnit.NANOSECONDS.toMillis(recoverNanos)), controller));
+      mLinkRecoveries.remove(driver);
+      mTimeToRecover.record(recoverNanos);
+      mOutageMeterTicks.putAll(recovery.meterTicks);
     }
 
-    Log.d(TAG, "addSerialPort: setting controller status " + status);
+    final String name = controller.getName();
+    if (mControllersByName.containsKey(name)) {
+      Log.w(TAG, "Already have a controller named " + name);
+      status = Controller.STATUS_NAME_CONFLICT;
+    } else {
+      mControllersByName.put(name, controller);
+    }
+
+    Log.d(TAG, "finishAttach: setting controller status " + status);
     controller.setStatus(status);
-    mControllers.put(port, controller);
+    mControllers.put(controller.getPort(), controller);
 
     if (Controller.STATUS_OK.equals(status)) {
+      if (recovery != null) {
+        // Readings which arrived while the controller was being verified were not reported.
+        recordOutageTicks(controller.getFlowMeters());
+      }
       mListener.onControllerAttached(controller);
     }
   }
 
+  /**
+   * Probes each attached controller which has been silent for longer than the link idle time, with
+   * a ping every ping interval. A controller still silent after {@link #LINK_PROBE_PINGS} pings
+   * has its driver torn down, to be reopened by {@link #serviceReopens()}.
+   *
+   * @return the {@link SystemClock#uptimeMillis()} at which a link next needs checking, or
+   *     {@link Long#MAX_VALUE} if no controllers are attached
+   */
+  private synchronized long serviceWatchdog() {
+    long nextUptimeMillis = Long.MAX_VALUE;
+    if (mControllers.isEmpty()) {
+      return nextUptimeMillis;
+    }
+
+    final long now = SystemClock.uptimeMillis();
+    final long idleMillis = mConfig.getKegboardLinkIdleMillis();
+    final long pingIntervalMillis = mConfig.getKegboardPingIntervalMillis();
+    final long stallMillis = idleMillis + LINK_PROBE_PINGS * pingIntervalMillis;
+    List<KegboardController> stalled = null;
+    for (final KegboardController controller : mControllers.values()) {
+      if (!Controller.STATUS_OK.equals(controller.getStatus())) {
+        continue;
+      }
+      final long lastFrameUptimeMillis = controller.getLastFrameUptimeMillis();
+      final long silentMillis = now - lastFrameUptimeMillis;
+      if (silentMillis < idleMillis) {
+        nextUptimeMillis = Math.min(nextUptimeMillis, lastFrameUptimeMillis + idleMillis);
+        continue;
+      } else if (silentMillis >= stallMillis) {
+        if (stalled == null) {
+          stalled = Lists.newArrayList();
+        }
+        stalled.add(controller);
+        continue;
+      }
+
+      if (now >= controller.getLastPingUptimeMillis() + pingIntervalMillis) {
+        Log.d(TAG, String.format(Locale.US, "serviceWatchdog: Silent for %d ms, pinging %s",
+            Long.valueOf(silentMillis), controller));
+        mLinkProbes++;
+        try {
+          controller.ping();
+        } catch (IOException e) {
+          // The reader will hit the same error and remove the port.
+          Log.w(TAG, "serviceWatchdog: Error pinging " + controller + ": " + e);
+        }
+      }
+      nextUptimeMillis = Math.min(nextUptimeMillis,
+          Math.min(controller.getLastPingUptimeMillis() + pingIntervalMillis,
+              lastFrameUptimeMillis + stallMillis));
+    }
+
+    if (stalled != null) {
+      for (final KegboardController controller : stalled) {
+        stallController(controller);
+      }
+    }
+    return nextUptimeMillis;
+  }
+
+  /** Tears down a stalled controller's driver, and schedules it to be reopened. */
+  private synchronized void stallController(final KegboardController controller) {
+    Log.w(TAG, "Link stalled, tearing down controller: " + controller);
+    mLinkStalls++;
+    final UsbSerialDriver driver = controller.getPort().getDriver();
+    final LinkRecovery recovery = new LinkRecovery();
+    for (final FlowMeter meter : controller.getFlowMeters()) {
+      recovery.meterTicks.put(meter.getMeterName(), Long.valueOf(meter.getTicks()));
+    }
+    mLinkRecoveries.put(driver, recovery);
+    removeDriver(driver);
+    scheduleReopen(driver, recovery);
+  }
+
+  /** Schedules a stalled driver to be reopened after its backoff, and doubles the backoff. */
+  private synchronized void scheduleReopen(final UsbSerialDriver driver,
+      final LinkRecovery recovery) {
+    Log.d(TAG, "Reopening " + driver + " in " + recovery.backoffMillis + " ms");
+    mReopenScheduler.schedule(driver, SystemClock.uptimeMillis() + recovery.backoffMillis);
+    recovery.backoffMillis = Math.min(2 * recovery.backoffMillis, LINK_REOPEN_MAX_BACKOFF_MILLIS);
+  }
+
+  /**
+   * Reopens the ports of each stalled driver whose backoff has elapsed, leaving their controllers
+   * to be verified by {@link #serviceAttaches()} like any other.
+   *
+   * @return the {@link SystemClock#uptimeMillis()} at which a driver is next reopened, or
+   *     {@link Long#MAX_VALUE} if none are waiting
+   */
+  private synchronized long serviceReopens() {
+    final long now = SystemClock.uptimeMillis();
+    UsbSerialDriver driver;
+    while ((driver = mReopenScheduler.pollDue(now)) != null) {
+      final LinkRecovery recovery = mLinkRecoveries.get(driver);
+      recovery.reopens++;
+      mLinkReopens++;
+      Log.i(TAG, "Reopening stalled driver " + driver + ": " + recovery);
+      if (mUnmanagedDrivers.contains(driver)) {
+        for (final UsbSerialPort port : driver.getPorts()) {
+          addSerialPort(null, port);
+        }
+      } else {
+        addDriver(driver);
+      }
+
+      boolean reopened = false;
+      for (final UsbSerialPort port : driver.getPorts()) {
+        reopened |= mPendingAttaches.containsKey(port);
+      }
+      if (!reopened) {
+        scheduleReopen(driver, recovery);
+      }
+    }
+    return mReopenScheduler.getNextDeadline();
+  }
+
+  /**
+   * Counts the ticks between each meter's reading when its link stalled and its first after the
+   * link recovered. A lower reading means the board was reset, and counts in full.
+   */
+  private void recordOutageTicks(final Collection<FlowMeter> meters) {
+    for (final FlowMeter meter : meters) {
+      final Long before = mOutageMeterTicks.remove(meter.getMeterName());
+      if (before != null) {
+        final long ticks = meter.getTicks();
+        mOutageTicks.addAndGet(ticks >= before.longValue() ? ticks - before.longValue() : ticks);
+      }
+    }
+  }
+
   private synchronized void onDeviceRemoved(final Integer deviceId) {
     Log.i(TAG, "onDeviceRemoved: " + deviceId);
     final UsbSerialDriver driver = mConnectedDeviceToDriver.remove(deviceId);
     if (driver != null) {
-      removeDriver(driver);
-      final UsbDeviceConnection connection = mOpenConnections.remove(driver);
-      if (connection != null) {
-        connection.close();
+      if (mLinkRecoveries.remove(driver) != null) {
+        mReopenScheduler.cancel(driver);
       }
+      removeDriver(driver);
     }
   }
 
@@ -432,7 +1014,32 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
     for (final UsbSerialPort port : driver.getPorts()) {
       removeSerialPort(port);
     }
-    mOpenConnections.remove(driver);
+    final UsbDeviceConnection connection = mOpenConnections.remove(driver);
+    if (connection != null) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Removes the port of a controller which hit an error, unless the port has since been reopened
+   * for another controller. A stalled driver being reopened is scheduled to be tried again.
+   */
+  private synchronized void removeFailedController(final KegboardController controller) {
+    final UsbSerialPort port = controller.getPort();
+    final PendingAttach attach = mPendingAttaches.get(port);
+    if (mControllers.get(port) != controller
+        && (attach == null || attach.controller != controller)) {
+      Log.d(TAG, "Ignoring error from replaced controller " + controller);
+      return;
+    }
+    final UsbSerialDriver driver = port.getDriver();
+    final LinkRecovery recovery = mLinkRecoveries.get(driver);
+    if (recovery != null) {
+      removeDriver(driver);
+      scheduleReopen(driver, recovery);
+    } else {
+      removeSerialPort(port);
+    }
   }
 
   private synchronized void removeSerialPort(final UsbSerialPort port) {
@@ -441,15 +1048,52 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
     if (controller != null) {
       removeController(controller);
     }
+    final PendingAttach attach = mPendingAttaches.remove(port);
+    if (attach != null) {
+      Log.d(TAG, "---- Abandoning attach " + attach);
+      attach.controller.close();
+    }
     closePort(port);
   }
 
   private synchronized void removeController(final KegboardController controller) {
     Log.d(TAG, "---- Removing controller " + controller);
     mControllers.remove(controller.getPort());
+    final String name = controller.getName();
+    if (mControllersByName.remove(name, controller)) {
+      // Hand the name to any other controller sharing it, as a scan of the controllers would.
+      for (final KegboardController other : mControllers.values()) {
+        if (name.equals(other.getName())) {
+          mControllersByName.put(name, other);
+          break;
+        }
+      }
+    }
+    synchronized (mOutputScheduler) {
+      mOutputScheduler.cancel(controller);
+    }
+    controller.close();
     mListener.onControllerRemoved(controller);
   }
 
+  /** Records the controller's serial stream, if a capture directory is configured. */
+  private void maybeStartCapture(final KegboardController controller) {
+    final String captureDirectory = mConfig.getKegboardCaptureDirectory();
+    if (Strings.isNullOrEmpty(captureDirectory)) {
+      return;
+    }
+    final UsbSerialPort port = controller.getPort();
+    final File file = new File(captureDirectory, String.format(Locale.US,
+        "kegboard-%d-%d-%d.kbcap", Integer.valueOf(port.getDriver().getDevice().getDeviceId()),
+        Integer.valueOf(port.getPortNumber()), Long.valueOf(System.currentTimeMillis())));
+    try {
+      controller.startCapture(new KegboardCaptureWriter(file));
+      Log.i(TAG, "Capturing controller bytes to " + file);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not start capture to " + file + ": " + e);
+    }
+  }
+
   /** Quietly closes the given {@link UsbSerialPort}. */
   private void closePort(UsbSerialPort port) {
     try {
@@ -459,63 +1103,11 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
     }
   }
 
-  private KegboardHelloMessage verifyFirmware(KegboardController controller) throws IOException {
-    Log.d(TAG, "verifyFirmware: Pinging controller: " + controller);
-
-    final KegboardHelloMessage pingResponse = pingController(controller);
-    if (pingResponse == null) {
-      Log.w(TAG, "verifyFirmware: No response from controller: " + controller);
-      return null;
-    }
-
-    if (!Strings.isNullOrEmpty(pingResponse.getSerialNumber())) {
-      Log.d(TAG, "verifyFirmware: Success: " + pingResponse);
-    }
-    Log.w(TAG, "verifyFirmware: Board has no serial number.");
-
-    return pingResponse;
-  }
-
-  private KegboardHelloMessage pingController(KegboardController controller) throws IOException {
-    for (int i = 0; i < PING_ATTEMPTS; i++) {
-      Log.d(TAG, "pingController: Try " + i + " of " + PING_ATTEMPTS + " ...");
-      controller.ping();
-      SystemClock.sleep(PING_WAIT_FOR_RESPONSE_MILLIS);
-
-      for (final KegboardMessage message : controller.readMessages()) {
-        if (message instanceof KegboardHelloMessage) {
-          Log.d(TAG, "pingController: Success! " + message);
-          return (KegboardHelloMessage) message;
-        }
-        Log.d(TAG, "pingController: Discarding message: " + message);
-      }
-      SystemClock.sleep(PING_RETRY_DELAY_MILLIS);
-    }
-
-    return null;
-  }
-
-  private KegboardHelloMessage setControllerSerialNumber(final KegboardController controller) throws IOException {
-    final int randInt = new SecureRandom().nextInt();
-    final String randStr = Integer.toHexString(randInt);
-    assert randStr.length() == 8;
-    final String serialNumber = String.format("KB-0000-0000-%s", randStr);
-
-    Log.i(TAG, "Setting serial number: " + serialNumber);
-    controller.setSerialNumber(serialNumber);
-    return pingController(controller);
-  }
-
-  private KegboardController getControllerByName(final String name) {
-    for (final KegboardController controller : mControllers.values()) {
-      if (name.equals(controller.getName())) {
-        return controller;
-      }
-    }
-    return null;
-  }
-
-  private void startServiceThreadForController(final KegboardController controller) {
+  /**
+   * Starts the controller's reader thread, and its writer thread, the only one to write to its
+   * port. Either exits once the controller is closed, reporting any other error.
+   */
+  private void startServiceThreadsForController(final KegboardController controller) {
     mExecutorService.submit(new Runnable() {
       @Override
       public void run() {
@@ -543,74 +1135,71 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
         }
       }
     });
+    mExecutorService.submit(new Runnable() {
+      @Override
+      public void run() {
+        final int deviceId = controller.getPort().getDriver().getDevice().getDeviceId();
+        final int portNumber = controller.getPort().getPortNumber();
+        final String threadName = String.format("kegboard-wr:%s-%s", deviceId, portNumber);
+        Thread.currentThread().setName(threadName);
+
+        try {
+          while (mRunning.get()) {
+            try {
+              if (!controller.blockingWrite()) {
+                return;
+              }
+            } catch (IOException e) {
+              handleControllerError(controller, e);
+              Log.d(TAG, String.format("Thread %s finishing, write failed: %s", threadName, e));
+              return;
+            }
+          }
+        } catch (Throwable t) {
+          Log.wtf(TAG, String.format("Uncaught exception in thread %s: %s", threadName, t), t);
+          throw new RuntimeException(t);
+        }
+      }
+    });
   }
 
-  private boolean serviceControllers() {
-    boolean didIo = false;
-    for (final KegboardController controller : mControllers.values()) {
+  /**
+   * Queues the output commands of each controller whose next command is due, for its writer
+   * thread. Controllers with nothing due are not visited.
+   *
+   * @return the {@link SystemClock#uptimeMillis()} at which output commands are next due, or
+   *     {@link Long#MAX_VALUE} if none are pending
+   */
+  private long writeDueOutputs() {
+    final long now = SystemClock.uptimeMillis();
+    while (true) {
+      final KegboardController controller;
+      synchronized (mOutputScheduler) {
+        controller = mOutputScheduler.pollDue(now);
+        if (controller == null) {
+          return mOutputScheduler.getNextDeadline();
+        }
+      }
       if (!Controller.STATUS_OK.equals(controller.getStatus())) {
         continue;
       }
 
-      //Log.d(TAG, "Service controller " + controller);
-      // Refresh all enabled outputs. Best effort.
+      // Never blocks on the port; a failed write takes the controller down from its writer.
       try {
-        controller.refreshOutputs();
+        controller.writeDueOutputs(now);
+        mOutputWrites++;
       } catch (IOException e) {
         handleControllerError(controller, e);
         continue;
       }
-
-      // Consume all available messages.
-      while (true) {
-        final KegboardMessage message = controller.readMessage();
-        if (message == null) {
-          break;
-        }
-        handleControllerMessage(controller, message);
-        didIo = true;
-      }
+      scheduleOutputs(controller);
     }
-    return didIo;
   }
 
-  private void handleControllerMessage(final KegboardController controller,
-      final KegboardMessage message) {
-    Log.d(TAG, String.format("Handling message: %s", message));
-
-    Event controllerEvent = null;
-
-    if (message instanceof KegboardHelloMessage) {
-      // TODO
-    } else if (message instanceof KegboardMeterStatusMessage) {
-      final KegboardMeterStatusMessage meterStatus = (KegboardMeterStatusMessage) message;
-
-      final String meterName = String.format("%s.%s", controller.getName(), meterStatus.getMeterName());
-      final FlowMeter meter = controller.getFlowMeter(meterName);
-      if (meter != null) {
-        controllerEvent = new MeterUpdateEvent(meter);
-      }
-    } else if (message instanceof KegboardTemperatureReadingMessage) {
-      final KegboardTemperatureReadingMessage tempMessage =
-          (KegboardTemperatureReadingMessage) message;
-
-      final String sensorName = tempMessage.getName();
-      controllerEvent = new ThermoSensorUpdateEvent(controller.getThermoSensor(sensorName));
-    } else if (message instanceof KegboardAuthTokenMessage) {
-      final KegboardAuthTokenMessage authMessage = (KegboardAuthTokenMessage) message;
-
-      final AuthenticationToken token =
-          new AuthenticationToken(authMessage.getName(), authMessage.getToken());
-      if (authMessage.getStatus() == KegboardAuthTokenMessage.Status.PRESENT) {
-        controllerEvent = new TokenAttachedEvent(token);
-      } else {
-        controllerEvent = new TokenDetachedEvent(token);
-      }
-    } else {
-      Log.w(TAG, "Unhandled message: " + message);
-    }
-    if (controllerEvent != null) {
-      mListener.onControllerEvent(controller, controllerEvent);
+  /** Schedules the controller's next output commands, if it has any pending. */
+  private void scheduleOutputs(final KegboardController controller) {
+    synchronized (mOutputScheduler) {
+      mOutputScheduler.schedule(controller, controller.getNextOutputUptimeMillis());
     }
   }
 
@@ -618,10 +1207,40 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
     Log.w(TAG, String.format("Marking controller %s disabled to error: %s", controller, e));
     controller.setStatus(Controller.STATUS_OPEN_ERROR);
     mControllerErrors.add(controller);
+    requestService();
+  }
+
+  /** Returns a snapshot of the link statistics of each attached controller. */
+  public synchronized Map<KegboardController, KegboardController.LinkStats> getLinkStats() {
+    final ImmutableMap.Builder<KegboardController, KegboardController.LinkStats> builder =
+        ImmutableMap.builder();
+    for (final KegboardController controller : mControllers.values()) {
+      builder.put(controller, controller.getLinkStats());
+    }
+    return builder.build();
+  }
+
+  /** Returns a snapshot of the link watchdog's statistics. */
+  public WatchdogStats getWatchdogStats() {
+    return new WatchdogStats(mLinkProbes, mLinkStalls, mLinkReopens, mTimeToRecover.copy(),
+        mOutageTicks.get());
   }
 
   @Override
   public synchronized void dump(IndentingPrintWriter writer) {
+    writer.printPair("servicePasses", Long.valueOf(mServicePasses))
+        .printPair("outputWrites", Long.valueOf(mOutputWrites)).println();
+    writer.printPair("attachesVerified", Long.valueOf(mAttachesVerified))
+        .printPair("attachesUnresponsive", Long.valueOf(mAttachesUnresponsive)).println();
+    writer.printPair("timeToReady", mTimeToReady).println();
+    writer.printPair("linkProbes", Long.valueOf(mLinkProbes))
+        .printPair("linkStalls", Long.valueOf(mLinkStalls))
+        .printPair("linkReopens", Long.valueOf(mLinkReopens))
+        .printPair("outageTicks", Long.valueOf(mOutageTicks.get())).println();
+    writer.printPair("timeToRecover", mTimeToRecover).println();
+    writer.printPair("usbRescans", Long.valueOf(mUsbRescans))
+        .printPair("usbBroadcastsApplied", Long.valueOf(mUsbBroadcastsApplied)).println();
+    writer.printPair("rescanLockHold", mRescanLockHold).println();
     if (mControllers.isEmpty()) {
       writer.println("Controllers: none.");
     } else {
@@ -632,6 +1251,45 @@ public class KegboardManager extends BackgroundManager implements ControllerMana
         writer.print(i++);
         writer.print(": ");
         writer.println(controller);
+
+        final KegboardController.LinkStats stats = controller.getLinkStats();
+        writer.increaseIndent();
+        writer.printPair("link", stats.stream).println();
+        writer.printPair("writes", stats.writes).println();
+        writer.printPair("collapsedMeterFrames", Long.valueOf(stats.collapsedMeterFrames))
+            .println();
+        for (final Map.Entry<String, LatencyHistogram> entry : stats.decodeLatency.entrySet()) {
+          writer.printPair("decodeLatency." + entry.getKey(), entry.getValue()).println();
+        }
+        writer.decreaseIndent();
+      }
+      writer.decreaseIndent();
+      writer.println();
+    }
+
+    if (!mPendingAttaches.isEmpty()) {
+      writer.println("Pending attaches: ");
+      writer.increaseIndent();
+      int i = 1;
+      for (final PendingAttach attach : mPendingAttaches.values()) {
+        writer.print(i++);
+        writer.print(": ");
+        writer.println(attach);
+      }
+      writer.decreaseIndent();
+      writer.println();
+    }
+
+    if (!mLinkRecoveries.isEmpty()) {
+      writer.println("Stalled drivers: ");
+      writer.increaseIndent();
+      int i = 1;
+      for (final Map.Entry<UsbSerialDriver, LinkRecovery> entry : mLinkRecoveries.entrySet()) {
+        writer.print(i++);
+        writer.print(": ");
+        writer.print(entry.getKey());
+        writer.print(": ");
+        writer.println(entry.getValue());
       }
       writer.decreaseIndent();
       writer.println();
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kegbot.core.hardware;
+
+import android.os.SystemClock;
+
+import com.google.common.collect.Lists;
+
+import org.kegbot.core.FlowMeter;
+import org.kegbot.core.ThermoSensor;
+import org.kegbot.kegboard.KegboardMessage;
+import org.kegbot.kegboard.KegboardMeterStatusMessage;
+import org.kegbot.kegboard.KegboardTemperatureReadingMessage;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Applies the readings of one kegboard to its {@link FlowMeter FlowMeters} and
+ * {@link ThermoSensor ThermoSensors}, and hands them and its other messages to a
+ * {@link MessageListener}.
+ * <p>
+ * Shared by {@link KegboardController} and {@link NetworkController}, so readings take the same
+ * path whether they arrive as KBSP frames over USB or the network, or as network text lines. Meter
+ * updates are held until the read which brought them has been handled, then delivered together.
+ * </p>
+ * <p>
+ * Used only by the controller's reader thread, apart from the listener and statistics.
+ * </p>
+ */
+class KegboardMessageDispatcher {
+
+  /** Receives messages and readings as the controller's reader thread handles them. */
+  interface MessageListener {
+    /**
+     * Called for each message other than a sensor reading. The message instance is reused for the
+     * next message of its type, so it must be copied to be kept.
+     */
+    void onMessage(Controller controller, KegboardMessage message);
+
+    /** Called for each temperature reading, once applied to its sensor. */
+    void onThermoSensorUpdate(Controller controller, ThermoSensor sensor);
+
+    /**
+     * Called once all readings brought by a read have been handled, with each meter they updated.
+     * Meter readings are absolute, so several readings of one meter collapse into a single update
+     * without losing ticks. The list is reused.
+     *
+     * @param readElapsedRealtime the {@link SystemClock#elapsedRealtime()} at which the read
+     *     returned, the acquisition time of every update
+     */
+    void onMeterUpdates(Controller controller, List<FlowMeter> meters, long readElapsedRealtime);
+  }
+
+  private final Controller mController;
+  private final KegboardSensorIndex mSensors;
+
+  /**
+   * Whether thermo sensors named in frames are prefixed with the board name, as meters are.
+   * Kegboard sensor names are unique on their own, but a network controller's are not.
+   */
+  private final boolean mBoardScopedThermoSensors;
+
+  @Nullable
+  private volatile MessageListener mListener;
+
+  /** Meters updated by the current read. */
+  private final List<FlowMeter> mUpdatedMeters = Lists.newArrayList();
+
+  private volatile long mCollapsedMeterFrames = 0;
+
+  KegboardMessageDispatcher(Controller controller, KegboardSensorIndex sensors,
+      boolean boardScopedThermoSensors) {
+    mController = controller;
+    mSensors = sensors;
+    mBoardScopedThermoSensors = boardScopedThermoSensors;
+  }
+
+  void setMessageListener(@Nullable MessageListener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Handles a decoded message: a reading is applied to its sensor, anything else goes to the
+   * listener.
+   *
+   * @param boardName the board's current name, which meter names are prefixed with
+   */
+  void onMessage(String boardName, KegboardMessage message) {
+    if (message instanceof KegboardMeterStatusMessage) {
+      final KegboardMeterStatusMessage status = (KegboardMeterStatusMessage) message;
+      onMeterReading(mSensors.getFlowMeter(boardName, status), status.getMeterReading());
+    } else if (message instanceof KegboardTemperatureReadingMessage) {
+      final KegboardTemperatureReadingMessage reading =
+          (KegboardTemperatureReadingMessage) message;
+      final ThermoSensor sensor = mBoardScopedThermoSensors
+          ? mSensors.getThermoSensor(boardName, reading) : mSensors.getThermoSensor(reading);
+      onTemperatureReading(sensor, reading.getValue());
+    } else {
+      final MessageListener listener = mListener;
+      if (listener != null) {
+        listener.onMessage(mController, message);
+      }
+    }
+  }
+
+  /** Sets a meter's reading, to be delivered by {@link #flushMeterUpdates(long)}. */
+  void onMeterReading(FlowMeter meter, long ticks) {
+    meter.setTicks(ticks);
+    if (mUpdatedMeters.contains(meter)) {
+      mCollapsedMeterFrames++;
+    } else {
+      mUpdatedMeters.add(meter);
+    }
+  }
+
+  /** Sets a sensor's temperature and delivers it. */
+  void onTemperatureReading(ThermoSensor sensor, double temperatureC) {
+    sensor.setTemperatureC(temperatureC);
+    final MessageListener listener = mListener;
+    if (listener != null) {
+      listener.onThermoSensorUpdate(mController, sensor);
+    }
+  }
+
+  /** Delivers the meters updated since the last call, if any. Called once per read. */
+  void flushMeterUpdates(long readElapsedRealtime) {
+    if (mUpdatedMeters.isEmpty()) {
+      return;
+    }
+    final MessageListener listener = mListener;
+    if (listener != null) {
+      listener.onMeterUpdates(mController, mUpdatedMeters, readElapsedRealtime);
+    }
+    mUpdatedMeters.clear();
+  }
+
+  /** Returns the number of meter readings folded into a later reading of the same meter. */
+  long getCollapsedMeterFrames() {
+    return mCollapsedMeterFrames;
+  }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kegbot.core.hardware;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.base.Preconditions;
+
+import org.kegbot.app.util.IndentingPrintWriter;
+import org.kegbot.core.FlowMeter;
+import org.kegbot.core.ThermoSensor;
+import org.kegbot.kegboard.KegboardCaptureReader;
+import org.kegbot.kegboard.KegboardCaptureWriter;
+import org.kegbot.kegboard.KegboardMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Replays a capture recorded by {@link KegboardCaptureWriter} as if it were an attached kegboard.
+ * <p>
+ * The captured bytes are fed through a {@link KegboardController}, so they are framed, decoded
+ * and reported exactly as a live board's would be. Bytes are released on the capture's original
+ * schedule, scaled by a speed multiplier, or as fast as possible.
+ * </p>
+ */
+public class KegboardReplayManager implements ControllerManager {
+
+  private static final String TAG = KegboardReplayManager.class.getSimpleName();
+
+  /** Speed at which the capture is replayed as fast as it can be read. */
+  public static final double MAX_SPEED = 0;
+
+  private final ControllerManager.Listener mListener;
+  private final File mCaptureFile;
+  private final double mSpeed;
+
+  private Thread mThread;
+
+  private volatile KegboardController mController;
+  private volatile long mRecordsReplayed = 0;
+  private volatile long mBytesReplayed = 0;
+
+  /**
+   * @param speed replay speed, as a multiple of the capture's original rate, or
+   *     {@link #MAX_SPEED}
+   */
+  public KegboardReplayManager(ControllerManager.Listener listener, File captureFile,
+      double speed) {
+    Preconditions.checkArgument(speed >= 0, "Bad speed: %s", speed);
+    mListener = listener;
+    mCaptureFile = captureFile;
+    mSpeed = speed;
+  }
+
+  @Override
+  public synchronized void start() {
+    if (mThread != null) {
+      return;
+    }
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          replay();
+        } catch (IOException e) {
+          Log.w(TAG, "Error replaying " + mCaptureFile + ": " + e, e);
+        }
+      }
+    }, "kegboard-replay");
+    mThread.start();
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (mThread != null) {
+      mThread.interrupt();
+      mThread = null;
+    }
+  }
+
+  @Override
+  public void refreshSoon() {
+  }
+
+  /** Replays the whole capture on the calling thread, returning when it ends or is stopped. */
+  void replay() throws IOException {
+    Log.d(TAG, "Replaying " + mCaptureFile + " at speed " + mSpeed);
+    final KegboardCaptureReader reader = new KegboardCaptureReader(mCaptureFile);
+    final KegboardController controller = new KegboardController(null);
+    controller.setStatus(Controller.STATUS_OK);
+    final AtomicBoolean attached = new AtomicBoolean(false);
+    controller.setMessageListener(new KegboardEventReporter(mListener) {
+      @Override
+      public void onMessage(Controller controller, KegboardMessage message) {
+        // Attach on the first message, which normally names the board with a hello.
+        if (attached.compareAndSet(false, true)) {
+          mListener.onControllerAttached(controller);
+        }
+        super.onMessage(controller, message);
+      }
+
+      @Override
+      public void onThermoSensorUpdate(Controller controller, ThermoSensor sensor) {
+        if (attached.compareAndSet(false, true)) {
+          mListener.onControllerAttached(controller);
+        }
+        super.onThermoSensorUpdate(controller, sensor);
+      }
+
+      @Override
+      public void onMeterUpdates(Controller controller, List<FlowMeter> meters,
+          long readElapsedRealtime) {
+        if (attached.compareAndSet(false, true)) {
+          mListener.onControllerAttached(controller);
+        }
+        super.onMeterUpdates(controller, meters, readElapsedRealtime);
+      }
+    });
+    mController = controller;
+
+    final byte[] buffer = new byte[KegboardCaptureWriter.MAX_RECORD_LENGTH];
+    final long startNanos = System.nanoTime();
+    try {
+      while (!Thread.currentThread().isInterrupted() && reader.next()) {
+        if (mSpeed != MAX_SPEED) {
+          final long dueNanos = startNanos + (long) (reader.getTimestampMicros() * 1000 / mSpeed);
+          final long waitNanos = dueNanos - System.nanoTime();
+          if (waitNanos > 0) {
+            try {
+              TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              break;
+            }
+          }
+        }
+        final int length = reader.read(buffer);
+        // Replayed bytes are acquired as they are fed, so flows see the replay's own timing.
+        controller.handleBytes(buffer, length, System.nanoTime(), SystemClock.elapsedRealtime());
+        mRecordsReplayed++;
+        mBytesReplayed += length;
+      }
+      Log.d(TAG, "Replay finished after " + mRecordsReplayed + " records.");
+    } finally {
+      reader.close();
+      controller.setStatus(Controller.STATUS_UNKNOWN);
+      if (attached.get()) {
+        mListener.onControllerRemoved(controller);
+      }
+    }
+  }
+
+  @Override
+  public void dump(IndentingPrintWriter writer) {
+    writer.printPair("captureFile", mCaptureFile).println();
+    writer.printPair("speed", mSpeed == MAX_SPEED ? "max" : Double.valueOf(mSpeed)).println();
+    writer.printPair("recordsReplayed", Long.valueOf(mRecordsReplayed))
+        .printPair("bytesReplayed", Long.valueOf(mBytesReplayed)).println();
+    final KegboardController controller = mController;
+    if (controller != null) {
+      writer.printPair("controller", controller).println();
+      final KegboardController.LinkStats stats = controller.getLinkStats();
+      writer.printPair("link", stats.stream).println();
+      writer.printPair("collapsedMeterFrames", Long.valueOf(stats.collapsedMeterFrames))
+          .println();
+    }
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kegbot.core.hardware;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+
+import org.kegbot.core.FlowMeter;
+import org.kegbot.core.ThermoSensor;
+import org.kegbot.kegboard.KegboardMeterStatusMessage;
+import org.kegbot.kegboard.KegboardTemperatureReadingMessage;
+
+import java.util.Collection;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Resolves the meter and sensor names in a kegboard's messages to its {@link FlowMeter} and
+ * {@link ThermoSensor} instances.
+ * <p>
+ * The first message naming a port creates its instance and claims a slot for it, holding the raw
+ * port name to match later messages against, and the meter's full name, computed and interned
+ * once. After that, resolving a message compares a few bytes per slot and never allocates. Boards
+ * with more ports than slots still work, through the name maps.
+ * </p>
+ * <p>
+ * Lookups by message are made only by the controller's reader thread.
+ * </p>
+ */
+class KegboardSensorIndex {
+
+  /** Slots for meters and for sensors; a kegboard has at most six of either. */
+  static final int MAX_SLOTS = 8;
+
+  private final Map<String, FlowMeter> mFlowMetersByName = Maps.newLinkedHashMap();
+  private final Map<String, ThermoSensor> mThermoSensorsByName = Maps.newLinkedHashMap();
+
+  /** Board name the meter slots were filled under; meter names are prefixed with it. */
+  private String mBoardName;
+
+  private final byte[][] mMeterPortNames = new byte[MAX_SLOTS][];
+  private final FlowMeter[] mMeterSlots = new FlowMeter[MAX_SLOTS];
+  private int mMeterCount = 0;
+
+  /**
+   * Board name the sensor slots were filled under, or {@code null} if sensors are named as the
+   * board names them.
+   */
+  private String mSensorBoardName;
+
+  private final byte[][] mSensorNames = new byte[MAX_SLOTS][];
+  private final ThermoSensor[] mSensorSlots = new ThermoSensor[MAX_SLOTS];
+  private int mSensorCount = 0;
+
+  /**
+   * Returns the meter named by {@code message} on the board named {@code boardName}, creating it
+   * if needed.
+   */
+  FlowMeter getFlowMeter(String boardName, KegboardMeterStatusMessage message) {
+    if (!boardName.equals(mBoardName)) {
+      // Meter names include the board name, so a renamed board starts afresh.
+      mBoardName = boardName;
+      mMeterCount = 0;
+    }
+    for (int i = 0; i < mMeterCount; i++) {
+      if (message.tagEquals(KegboardMeterStatusMessage.TAG_METER_NAME, mMeterPortNames[i])) {
+        return mMeterSlots[i];
+      }
+    }
+
+    final String portName = message.getMeterName();
+    final FlowMeter meter = getOrAddFlowMeter((boardName + "." + portName).intern());
+    if (mMeterCount < MAX_SLOTS) {
+      mMeterPortNames[mMeterCount] = portName.getBytes();
+      mMeterSlots[mMeterCount] = meter;
+      mMeterCount++;
+    }
+    return meter;
+  }
+
+  /** Returns the sensor named by {@code message}, creating it if needed. */
+  ThermoSensor getThermoSensor(KegboardTemperatureReadingMessage message) {
+    return getThermoSensor(null, message);
+  }
+
+  /**
+   * Returns the sensor named by {@code message} on the board named {@code boardName}, creating it
+   * if needed. Its name is prefixed with the board name, unless that is {@code null}.
+   */
+  ThermoSensor getThermoSensor(@Nullable String boardName,
+      KegboardTemperatureReadingMessage message) {
+    if (!Objects.equal(boardName, mSensorBoardName)) {
+      mSensorBoardName = boardName;
+      mSensorCount = 0;
+    }
+    for (int i = 0; i < mSensorCount; i++) {
+      if (message.tagEquals(KegboardTemperatureReadingMessage.TAG_SENSOR_NAME, mSensorNames[i])) {
+        return mSensorSlots[i];
+      }
+    }
+
+    final String name = message.getName();
+    final ThermoSensor sensor =
+        getOrAddThermoSensor(boardName == null ? name : (boardName + "." + name).intern());
+    if (mSensorCount < MAX_SLOTS) {
+      mSensorNames[mSensorCount] = name.getBytes();
+      mSensorSlots[mSensorCount] = sensor;
+      mSensorCount++;
+    }
+    return sensor;
+  }
+
+  /** Returns the meter with the given full name, creating it if needed. */
+  FlowMeter getOrAddFlowMeter(String meterName) {
+    FlowMeter meter = mFlowMetersByName.get(meterName);
+    if (meter == null) {
+      meter = new FlowMeter(meterName);
+      mFlowMetersByName.put(meterName, meter);
+    }
+    return meter;
+  }
+
+  /** Returns the sensor with the given name, creating it if needed. */
+  ThermoSensor getOrAddThermoSensor(String name) {
+    ThermoSensor sensor = mThermoSensorsByName.get(name);
+    if (sensor == null) {
+      sensor = new ThermoSensor(name);
+      mThermoSensorsByName.put(name, sensor);
+    }
+    return sensor;
+  }
+
+  FlowMeter getFlowMeter(String meterName) {
+    return mFlowMetersByName.get(meterName);
+  }
+
+  Collection<FlowMeter> getFlowMeters() {
+    return mFlowMetersByName.values();
+  }
+
+  ThermoSensor getThermoSensor(String sensorName) {
+    return mThermoSensorsByName.get(sensorName);
+  }
+
+  Collection<ThermoSensor> getThermoSensors() {
+    return mThermoSensorsByName.values();
+  }
+
+}
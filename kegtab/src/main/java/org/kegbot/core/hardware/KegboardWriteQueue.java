@@ -0,0 +1,203 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kegbot.core.hardware;
+
+import com.google.common.collect.Maps;
+
+import org.kegbot.app.util.LatencyHistogram;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Commands waiting to be written to a kegboard, taken by a single writer thread and merged into
+ * one transfer.
+ * <p>
+ * Each command is queued under a key, and replaces any pending command with the same key: a newer
+ * state for a relay supersedes the pending one, and a ping is redundant while another is pending.
+ * At most {@link #CAPACITY} commands are held; beyond that, new keys are refused.
+ * </p>
+ */
+class KegboardWriteQueue {
+
+  static final int CAPACITY = 16;
+
+  /** Immutable snapshot of a queue's counters. */
+  public static final class Stats {
+    /** Commands pending when the snapshot was taken. */
+    public final int depth;
+    /** Most commands ever pending at once. */
+    public final int maxDepth;
+    /** Commands accepted, including those which replaced a pending one. */
+    public final long commands;
+    /** Commands which replaced a pending command with the same key. */
+    public final long coalesced;
+    /** Commands refused because the queue was full. */
+    public final long dropped;
+    /** Transfers made by the writer. */
+    public final long writes;
+    public final long bytesWritten;
+    /** Time from the oldest command of each transfer being queued to the transfer completing. */
+    public final LatencyHistogram writeLatency;
+
+    Stats(int depth, int maxDepth, long commands, long coalesced, long dropped, long writes,
+        long bytesWritten, LatencyHistogram writeLatency) {
+      this.depth = depth;
+      this.maxDepth = maxDepth;
+      this.commands = commands;
+      this.coalesced = coalesced;
+      this.dropped = dropped;
+      this.writes = writes;
+      this.bytesWritten = bytesWritten;
+      this.writeLatency = writeLatency;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("depth=%s maxDepth=%s commands=%s coalesced=%s dropped=%s writes=%s "
+              + "bytes=%s latency=[%s]",
+          Integer.valueOf(depth), Integer.valueOf(maxDepth), Long.valueOf(commands),
+          Long.valueOf(coalesced), Long.valueOf(dropped), Long.valueOf(writes),
+          Long.valueOf(bytesWritten), writeLatency);
+    }
+  }
+
+  private final Object mLock = new Object();
+
+  /** Pending commands by key, in the order their keys were first queued. */
+  @GuardedBy("mLock")
+  private final Map<Object, byte[]> mPending = Maps.newLinkedHashMap();
+
+  @GuardedBy("mLock")
+  private int mPendingBytes = 0;
+
+  /** {@link System#nanoTime()} at which the oldest pending command was queued. */
+  @GuardedBy("mLock")
+  private long mOldestNanos = 0;
+
+  @GuardedBy("mLock")
+  private boolean mClosed = false;
+
+  @GuardedBy("mLock")
+  private int mMaxDepth = 0;
+
+  @GuardedBy("mLock")
+  private long mCommands = 0;
+
+  @GuardedBy("mLock")
+  private long mCoalesced = 0;
+
+  @GuardedBy("mLock")
+  private long mDropped = 0;
+
+  /** Queue time of the oldest command in the transfer last taken. Used only by the writer. */
+  private long mTakenOldestNanos = 0;
+
+  private volatile long mWrites = 0;
+  private volatile long mBytesWritten = 0;
+
+  private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+
+  /**
+   * Queues a command, replacing any pending one with the same key. The command's bytes must not be
+   * modified afterwards.
+   *
+   * @return {@code false} if the queue is closed, or full without a pending command for the key
+   */
+  boolean offer(Object key, byte[] command) {
+    synchronized (mLock) {
+      if (mClosed) {
+        return false;
+      }
+      final byte[] previous = mPending.get(key);
+      if (previous == null && mPending.size() >= CAPACITY) {
+        mDropped++;
+        return false;
+      }
+      mCommands++;
+      if (previous != null) {
+        mCoalesced++;
+        mPendingBytes -= previous.length;
+      } else if (mPending.isEmpty()) {
+        mOldestNanos = System.nanoTime();
+      }
+      mPending.put(key, command);
+      mPendingBytes += command.length;
+      mMaxDepth = Math.max(mMaxDepth, mPending.size());
+      mLock.notifyAll();
+      return true;
+    }
+  }
+
+  /**
+   * Waits for pending commands, then takes them all, merged in queue order into a single
+   * transfer. Called only by the writer.
+   *
+   * @return the transfer, or {@code null} once the queue is closed
+   */
+  @Nullable
+  byte[] take() throws InterruptedException {
+    synchronized (mLock) {
+      while (mPending.isEmpty() && !mClosed) {
+        mLock.wait();
+      }
+      if (mClosed) {
+        return null;
+      }
+      final byte[] transfer = new byte[mPendingBytes];
+      int offset = 0;
+      for (final byte[] command : mPending.values()) {
+        System.arraycopy(command, 0, transfer, offset, command.length);
+        offset += command.length;
+      }
+      mPending.clear();
+      mPendingBytes = 0;
+      mTakenOldestNanos = mOldestNanos;
+      return transfer;
+    }
+  }
+
+  /** Records the completion of the transfer last returned by {@link #take()}. */
+  void onWritten(int length) {
+    mWriteLatency.record(System.nanoTime() - mTakenOldestNanos);
+    mWrites++;
+    mBytesWritten += length;
+  }
+
+  /** Discards pending commands and refuses new ones, releasing the writer. */
+  void close() {
+    synchronized (mLock) {
+      mClosed = true;
+      mPending.clear();
+      mPendingBytes = 0;
+      mLock.notifyAll();
+    }
+  }
+
+  Stats getStats() {
+    synchronized (mLock) {
+      return new Stats(mPending.size(), mMaxDepth, mCommands, mCoalesced, mDropped, mWrites,
+          mBytesWritten, mWriteLatency.copy());
+    }
+  }
+
+}
@@ -19,19 +19,54 @@
 
 package org.kegbot.core.hardware;
 
+import android.os.SystemClock;
+
 import org.kegbot.app.event.Event;
 import org.kegbot.core.FlowMeter;
 
+/**
+ * Reports a new reading of a {@link FlowMeter}.
+ * <p>
+ * The event holds the reading as it was when acquired, along with the
+ * {@link SystemClock#elapsedRealtime()} at which its bytes were read, so that subscribers on a busy
+ * thread still see when the ticks actually arrived.
+ * </p>
+ */
 public class MeterUpdateEvent implements Event {
 
   private final FlowMeter mMeter;
+  private final long mTicks;
+  private final long mAcquiredElapsedRealtime;
 
+  /** Creates an event for the meter's current reading, acquired now. */
   public MeterUpdateEvent(FlowMeter meter) {
+    this(meter, SystemClock.elapsedRealtime());
+  }
+
+  /**
+   * Creates an event for the meter's current reading.
+   *
+   * @param acquiredElapsedRealtime the {@link SystemClock#elapsedRealtime()} at which the reading
+   *     was read from the controller
+   */
+  public MeterUpdateEvent(FlowMeter meter, long acquiredElapsedRealtime) {
     mMeter = meter;
+    mTicks = meter.getTicks();
+    mAcquiredElapsedRealtime = acquiredElapsedRealtime;
   }
 
   public FlowMeter getMeter() {
     return mMeter;
   }
 
+  /** Returns the meter's reading when the event was created. */
+  public long getTicks() {
+    return mTicks;
+  }
+
+  /** Returns the {@link SystemClock#elapsedRealtime()} at which the reading was read. */
+  public long getAcquiredElapsedRealtime() {
+    return mAcquiredElapsedRealtime;
+  }
+
 }
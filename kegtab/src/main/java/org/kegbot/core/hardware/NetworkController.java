@@ -4,205 +4,476 @@ import android.os.SystemClock;
 import androidx.annotation.Nullable;
 import android.util.Log;
 
-import com.google.common.base.Joiner;
-import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Maps;
 
 import org.kegbot.core.FlowMeter;
 import org.kegbot.core.ThermoSensor;
+import org.kegbot.kegboard.KegboardMessage;
+import org.kegbot.kegboard.KegboardMessageFactory;
+import org.kegbot.kegboard.KegboardMeterStatusMessage;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Created by mikey on 9/11/16.
+ * A network-connected kegboard, reached over TCP and speaking a line-based text protocol.
+ * <p>
+ * A controller which lists {@value #KBSP_CAPABILITY} in its {@code info:} line can instead send
+ * the same KBSP frames as a USB kegboard. On seeing it, this side writes {@value #KBSP_MODE_LINE};
+ * the controller echoes that line and sends only frames from then on, which are decoded by a
+ * {@link KegboardMessageFactory} as on USB. Controllers which do not advertise it, or never
+ * answer, stay on the text protocol. Either way, readings are reported through a
+ * {@link KegboardMessageDispatcher}, as a USB kegboard's are, and sensors are named after the
+ * board.
+ * </p>
+ * <p>
+ * The connection is a non-blocking {@link SocketChannel}, driven by the
+ * {@link NetworkControllerManager}'s selector thread: every method here other than the
+ * {@link Controller} getters is called only from that thread.
+ * </p>
  */
-
 public class NetworkController implements Controller {
 
     private static final String TAG = NetworkController.class.getSimpleName();
 
+    /** Longest line accepted; longer ones are discarded. */
+    static final int READ_BUFFER_SIZE = 4096;
+
+    /** Token in the {@code info:} line of a controller which can send KBSP frames. */
+    static final String KBSP_CAPABILITY = "kbsp";
+
+    /** Line requesting KBSP frames, and acknowledging the switch in reply. */
+    static final String KBSP_MODE_LINE = "kb-mode: kbsp";
+
+    /** Holds a full read buffer along with the partial frame before it. */
+    private static final int DECODER_CAPACITY = 2 * READ_BUFFER_SIZE;
+
     private final String mHost;
     private final int mPort;
     private final ControllerManager.Listener mListener;
 
-    private String mStatus = Controller.STATUS_UNKNOWN;
-    private String mSerialNumber = "";
+    private volatile String mStatus = Controller.STATUS_UNKNOWN;
+    private volatile String mSerialNumber = "";
+    private volatile String mName = "kegboard-net-";
+
+    @Nullable
+    private SocketChannel mChannel;
+
+    /** Bytes read but not yet consumed as lines. Held in fill mode between reads. */
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /** Whether the controller has identified itself since connecting. */
+    private boolean mAttached;
+
+    /** Whether KBSP frames have been requested on this connection. */
+    private boolean mKbspRequested;
+
+    /** Decoder of KBSP frames, once the controller has switched to them on this connection. */
+    @Nullable
+    private volatile KegboardMessageFactory mDecoder;
+
+    private final NetworkLineParser mLineParser = new NetworkLineParser();
+
+    /**
+     * Sensors by {@link NetworkLineParser} slot, resolved on first use and reset whenever the
+     * controller identifies itself, since sensor names include its serial number.
+     */
+    private final FlowMeter[] mSlotMeters = new FlowMeter[NetworkLineParser.MAX_SLOTS];
+    private final ThermoSensor[] mSlotThermoSensors =
+        new ThermoSensor[NetworkLineParser.MAX_SLOTS];
+
+    private volatile long mBytesRead = 0;
+    private volatile long mLinesRead = 0;
+    private volatile long mLinesDiscarded = 0;
+    private volatile long mFramesRead = 0;
+
+    /** {@link SystemClock#uptimeMillis()} of the last line or frame, or of connecting if later. */
+    private long mLastMessageUptimeMillis;
+
+    /** {@link SystemClock#uptimeMillis()} of the last status report, or 0 since connecting. */
+    private long mLastStatusUptimeMillis;
+
+    /**
+     * Smoothed interval between status reports, or 0 until two have arrived. A report is a status
+     * line, or a read bringing meter status frames.
+     */
+    private volatile long mStatusIntervalMillis;
+
+    /** Connections which failed or were lost since the controller last identified itself. */
+    private int mConsecutiveFailures = 0;
+
+    private volatile long mReconnects = 0;
+
+    /** {@link SystemClock#uptimeMillis()} since which the controller has been unidentified. */
+    private volatile long mDisconnectedSinceUptimeMillis;
 
-    private Socket mSocket;
-    private BufferedReader mReader;
-    private ExecutorService mExecutor;
-    private boolean mConnected;
+    /** Time spent unidentified, not including the current outage. */
+    private volatile long mDisconnectedMillis = 0;
 
-    private AtomicBoolean mStopped = new AtomicBoolean(true);
-    private final Map<String, FlowMeter> mFlowMeters = Maps.newLinkedHashMap();
-    private final Map<String, ThermoSensor> mThermoSensors = Maps.newLinkedHashMap();
+    private final KegboardSensorIndex mSensors = new KegboardSensorIndex();
+
+    private final KegboardMessageDispatcher mDispatcher =
+        new KegboardMessageDispatcher(this, mSensors, true);
 
     public NetworkController(String host, int port, ControllerManager.Listener listener) {
         mHost = host;
         mPort = port;
         mListener = listener;
-
-        mSocket = null;
+        mDispatcher.setMessageListener(new KegboardEventReporter(listener));
+        mDisconnectedSinceUptimeMillis = SystemClock.uptimeMillis();
     }
 
-    void start() {
-        Log.d(TAG, "Starting!");
-        Preconditions.checkState(mStopped.compareAndSet(true, false));
+    @Override
+    public String toString() {
+        return String.format("<NetworkController %s:%s: serial_number=%s status=%s>",
+            mHost, Integer.valueOf(mPort), mSerialNumber, mStatus);
+    }
 
-        mExecutor = Executors.newSingleThreadExecutor();
-        mExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                networkWorker();
-            }
-        });
+    /**
+     * Starts connecting to the controller, registering the channel with {@code selector}. The
+     * connection completes in {@link #finishConnect(SelectionKey)}, unless it did so at once.
+     */
+    void connect(Selector selector) throws IOException {
+        Log.d(TAG, "Connecting to host: " + mHost + ":" + mPort);
+        mChannel = SocketChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.socket().setKeepAlive(true);
+        mReadBuffer.clear();
+        if (mChannel.connect(new InetSocketAddress(mHost, mPort))) {
+            onConnected();
+            mChannel.register(selector, SelectionKey.OP_READ, this);
+        } else {
+            mChannel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
     }
 
-    void stop() {
-        Preconditions.checkState(mStopped.compareAndSet(false, true));
-        if (mSocket != null) {
-            try {
-                mSocket.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Error closing socket: " + e.getMessage());
-            }
-            mSocket = null;
+    /** Completes a connection begun by {@link #connect(Selector)}, once it is connectable. */
+    void finishConnect(SelectionKey key) throws IOException {
+        if (mChannel.finishConnect()) {
+            onConnected();
+            key.interestOps(SelectionKey.OP_READ);
         }
     }
 
-    private void networkWorker() {
-        Log.d(TAG, "Worker starting.");
+    private void onConnected() {
+        Log.d(TAG, "Connected to host: " + mHost + ":" + mPort);
+        mStatus = Controller.STATUS_NEED_SERIAL_NUMBER;
+        mLastMessageUptimeMillis = SystemClock.uptimeMillis();
+        mLastStatusUptimeMillis = 0;
+        mStatusIntervalMillis = 0;
+    }
 
-        while (!mStopped.get()) {
-            if (mSocket == null) {
-                try {
-                    connect();
-                } catch (IOException e) {
-                    disconnect();
-                    SystemClock.sleep(1000);
-                    continue;
-                }
-            }
+    boolean isConnected() {
+        return mChannel != null && mChannel.isConnected();
+    }
+
+    boolean isConnecting() {
+        return mChannel != null && mChannel.isConnectionPending();
+    }
 
-            final NetworkMessage message = readNextMessage();
-            handleMessage(message);
+    /**
+     * Reads what the channel has available, and handles every line or frame it completes.
+     *
+     * @throws IOException if the channel fails or the controller disconnects
+     */
+    void onReadable() throws IOException {
+        final int amtRead = mChannel.read(mReadBuffer);
+        if (amtRead < 0) {
+            throw new IOException("Controller disconnected.");
+        }
+        mBytesRead += amtRead;
+        final long readElapsedRealtime = SystemClock.elapsedRealtime();
+        if (mDecoder == null) {
+            readLines();
         }
-        Log.d(TAG, "Worker exiting ...");
+        // Bytes following the line which switched to frames are decoded as such.
+        if (mDecoder != null) {
+            decodeFrames();
+        }
+        mDispatcher.flushMeterUpdates(readElapsedRealtime);
     }
 
-    private void handleMessage(NetworkMessage message) {
-        Log.d(TAG, "Got message: " + message);
-        if (message instanceof InfoMessage) {
-            mSerialNumber = ((InfoMessage) message).deviceId;
-            mStatus = Controller.STATUS_OK;
-            mListener.onControllerAttached(this);
-        } else if (message instanceof StatusMessage) {
-            final Map<String, Integer> meters = ((StatusMessage) message).meters;
-            for (Map.Entry<String, Integer> entry : meters.entrySet()) {
-                // TODO(mikey): Hacky approach to meter name :(
-                final String meterName = getName() + "." + entry.getKey().replace("meter", "flow");
-
-                if (!mFlowMeters.containsKey(meterName)) {
-                    mFlowMeters.put(meterName, new FlowMeter(meterName));
+    private void readLines() throws IOException {
+        final byte[] buffer = mReadBuffer.array();
+        final int end = mReadBuffer.position();
+        final long linesBefore = mLinesRead;
+        int lineStart = 0;
+        for (int i = 0; i < end && mDecoder == null; i++) {
+            if (buffer[i] == '\n') {
+                int lineEnd = i;
+                if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+                    lineEnd--;
                 }
-                final FlowMeter meter = mFlowMeters.get(meterName);
-
-                final long existingTicks = meter.getTicks();
-                final long newTicks = entry.getValue();
-
-                // Publish a MeterUpdate event if anything changed.
-                if (newTicks != existingTicks) {
-                    meter.setTicks(entry.getValue());
-                    mListener.onControllerEvent(this, new MeterUpdateEvent(meter));
+                mLinesRead++;
+                try {
+                    handleLine(buffer, lineStart, lineEnd);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Discarding malformed line from " + mHost + ": " + e.getMessage());
+                    mLinesDiscarded++;
                 }
+                lineStart = i + 1;
             }
-        } else if (message instanceof ThermoMessage) {
-            final Map<String, Double> temps = ((ThermoMessage) message).temps;
-            for (Map.Entry<String, Double> entry : temps.entrySet()) {
-                // TODO(mikey): Hacky approach to meter name :(
-                final String tempName = getName() + "." + entry.getKey().replace("temp_", "thermo-");
-
-                if (!mThermoSensors.containsKey(tempName)) {
-                    mThermoSensors.put(tempName, new ThermoSensor(tempName));
-                }
-                final ThermoSensor temp = mThermoSensors.get(tempName);
+        }
 
-                final double existingTemp = temp.getTemperatureC();
-                final double newTemp = entry.getValue();
+        if (mLinesRead != linesBefore) {
+            mLastMessageUptimeMillis = SystemClock.uptimeMillis();
+        }
 
-                // Publish a ThermoUpdate event if anything changed.
-                if (newTemp != existingTemp) {
-                    temp.setTemperatureC(entry.getValue());
-                    mListener.onControllerEvent(this, new ThermoSensorUpdateEvent(temp));
-                }
+        if (lineStart == 0 && end == buffer.length && mDecoder == null) {
+            Log.w(TAG, "Discarding overlong line from " + mHost);
+            mLinesDiscarded++;
+            mReadBuffer.clear();
+        } else {
+            mReadBuffer.flip();
+            mReadBuffer.position(lineStart);
+            mReadBuffer.compact();
+        }
+    }
+
+    private void decodeFrames() {
+        final KegboardMessageFactory decoder = mDecoder;
+        final int length = mReadBuffer.position();
+        final int accepted = decoder.addBytes(mReadBuffer.array(), length);
+        if (accepted < length) {
+            Log.w(TAG, "Frame buffer full, dropped " + (length - accepted) + " bytes from "
+                + mHost);
+        }
+        mReadBuffer.clear();
+
+        boolean framed = false;
+        boolean meterStatus = false;
+        KegboardMessage message;
+        while ((message = decoder.getReusableMessage()) != null) {
+            framed = true;
+            mFramesRead++;
+            if (message instanceof KegboardMeterStatusMessage) {
+                meterStatus = true;
+            }
+            mDispatcher.onMessage(mName, message);
+        }
+
+        if (framed) {
+            final long now = SystemClock.uptimeMillis();
+            mLastMessageUptimeMillis = now;
+            if (meterStatus) {
+                onStatusReport(now);
             }
         }
     }
 
-    private void connect() throws IOException {
-        if (mConnected) {
-            return;
+    private void onStatusReport(long now) {
+        if (mLastStatusUptimeMillis != 0) {
+            final long interval = now - mLastStatusUptimeMillis;
+            mStatusIntervalMillis = mStatusIntervalMillis == 0
+                ? interval : (3 * mStatusIntervalMillis + interval) / 4;
         }
-        mConnected = true;
+        mLastStatusUptimeMillis = now;
+    }
 
-        Log.d(TAG, "Connecting to host: " + mHost + ":" + mPort);
-        mSocket = new Socket(mHost, mPort);
-        mReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
-        mStatus = Controller.STATUS_NEED_SERIAL_NUMBER;
+    /**
+     * Closes the connection after a failure, counting the reconnect which follows.
+     *
+     * @return connections which have failed since the controller last identified itself
+     */
+    int onConnectionFailed() {
+        disconnect();
+        mReconnects++;
+        return ++mConsecutiveFailures;
     }
 
-    private NetworkMessage readNextMessage() {
-        Preconditions.checkState(mReader != null);
-        String line;
-        try {
-            line = mReader.readLine();
-            if (line == null) {
-                throw new IOException("Controller disconnected.");
+    /** Closes the connection, if open, and reports the controller removed if it was attached. */
+    void disconnect() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Close quietly.
             }
-        } catch (IOException e) {
-            Log.w(TAG, "Error reading from network: " + e.getMessage());
-            disconnect();
-            return null;
+            mChannel = null;
+        }
+        mReadBuffer.clear();
+        mKbspRequested = false;
+        mDecoder = null;
+        mStatus = Controller.STATUS_UNKNOWN;
+        if (mAttached) {
+            mAttached = false;
+            mDisconnectedSinceUptimeMillis = SystemClock.uptimeMillis();
+            mListener.onControllerRemoved(this);
+        }
+    }
+
+    String getHost() {
+        return mHost;
+    }
+
+    int getPort() {
+        return mPort;
+    }
+
+    long getBytesRead() {
+        return mBytesRead;
+    }
+
+    long getLinesRead() {
+        return mLinesRead;
+    }
+
+    long getLinesDiscarded() {
+        return mLinesDiscarded;
+    }
+
+    long getFramesRead() {
+        return mFramesRead;
+    }
+
+    /** Returns whether the current connection has switched to KBSP frames. */
+    boolean isKbsp() {
+        return mDecoder != null;
+    }
+
+    /** Returns the statistics of the current connection's frame decoder, if it has one. */
+    @Nullable
+    KegboardMessageFactory.Stats getDecoderStats() {
+        final KegboardMessageFactory decoder = mDecoder;
+        return decoder == null ? null : decoder.getStats();
+    }
+
+    long getLastMessageUptimeMillis() {
+        return mLastMessageUptimeMillis;
+    }
+
+    /** Returns the smoothed interval between status reports, or 0 if not yet known. */
+    long getStatusIntervalMillis() {
+        return mStatusIntervalMillis;
+    }
+
+    /** Returns the number of connection attempts made after a failure or disconnect. */
+    long getReconnects() {
+        return mReconnects;
+    }
+
+    /** Returns the total time the controller has spent not connected and identified. */
+    long getDisconnectedMillis() {
+        final long since = mDisconnectedSinceUptimeMillis;
+        final long current = since == 0 ? 0 : SystemClock.uptimeMillis() - since;
+        return mDisconnectedMillis + current;
+    }
+
+    /**
+     * Handles a line from the controller. Status and thermo lines, which make up nearly all of the
+     * traffic, are parsed in place; anything else is decoded as a {@link NetworkMessage}.
+     *
+     * @throws IllegalArgumentException if the line is malformed
+     * @throws IOException if a reply could not be written
+     */
+    private void handleLine(byte[] buffer, int start, int end) throws IOException {
+        switch (mLineParser.parse(buffer, start, end)) {
+            case NetworkLineParser.LINE_STATUS:
+                handleStatus();
+                break;
+            case NetworkLineParser.LINE_THERMO:
+                handleThermo();
+                break;
+            default:
+                final String line =
+                    new String(buffer, start, end - start, StandardCharsets.US_ASCII);
+                if (mKbspRequested && line.equals(KBSP_MODE_LINE)) {
+                    Log.i(TAG, "Switching to KBSP frames: " + this);
+                    mDecoder = new KegboardMessageFactory(DECODER_CAPACITY);
+                } else {
+                    handleMessage(NetworkMessage.fromString(line));
+                }
+                break;
         }
-        return NetworkMessage.fromString(line.replace("\n", ""));
     }
 
-    private void disconnect() {
-        if (!mConnected) {
-            return;
+    private void handleStatus() {
+        onStatusReport(SystemClock.uptimeMillis());
+
+        for (int i = 0; i < mLineParser.getReadingCount(); i++) {
+            final int slot = mLineParser.getSlot(i);
+            FlowMeter meter = mSlotMeters[slot];
+            if (meter == null) {
+                meter = mSensors.getOrAddFlowMeter(mName + "." + mLineParser.getMeterName(slot));
+                mSlotMeters[slot] = meter;
+            }
+
+            // Report the meter if anything changed.
+            final long newTicks = mLineParser.getTicks(i);
+            if (newTicks != meter.getTicks()) {
+                mDispatcher.onMeterReading(meter, newTicks);
+            }
         }
-        mConnected = false;
+    }
 
-        if (mReader != null) {
-            try {
-                mReader.close();
-            } catch (IOException e) {
-            } finally {
-                mReader = null;
+    private void handleThermo() {
+        for (int i = 0; i < mLineParser.getReadingCount(); i++) {
+            final int slot = mLineParser.getSlot(i);
+            ThermoSensor sensor = mSlotThermoSensors[slot];
+            if (sensor == null) {
+                sensor =
+                    mSensors.getOrAddThermoSensor(mName + "." + mLineParser.getThermoName(slot));
+                mSlotThermoSensors[slot] = sensor;
+            }
+
+            // Report the sensor if anything changed.
+            final double newTemp = mLineParser.getTemperatureC(i);
+            if (newTemp != sensor.getTemperatureC()) {
+                mDispatcher.onTemperatureReading(sensor, newTemp);
             }
         }
+    }
 
-        if (mSocket != null) {
-            try {
-                mSocket.close();
-            } catch (IOException e) {
-            } finally {
-                mSocket = null;
+    /**
+     * Handles a message from the controller, or a line which is not one, as {@code null}.
+     *
+     * @throws IOException if a reply could not be written
+     */
+    private void handleMessage(@Nullable NetworkMessage message) throws IOException {
+        Log.d(TAG, "Got message: " + message);
+        if (message instanceof InfoMessage) {
+            final InfoMessage info = (InfoMessage) message;
+            mSerialNumber = info.deviceId;
+            mName = "kegboard-net-" + info.deviceId;
+            mStatus = Controller.STATUS_OK;
+            mConsecutiveFailures = 0;
+            final long since = mDisconnectedSinceUptimeMillis;
+            if (since != 0) {
+                mDisconnectedMillis += SystemClock.uptimeMillis() - since;
+                mDisconnectedSinceUptimeMillis = 0;
+            }
+            Arrays.fill(mSlotMeters, null);
+            Arrays.fill(mSlotThermoSensors, null);
+            mAttached = true;
+            mListener.onControllerAttached(this);
+
+            if (info.kbsp && !mKbspRequested) {
+                Log.d(TAG, "Requesting KBSP frames: " + this);
+                write(KBSP_MODE_LINE + "\n");
+                mKbspRequested = true;
             }
         }
+    }
 
-        mStatus = Controller.STATUS_UNKNOWN;
-        mListener.onControllerRemoved(this);
+    /**
+     * Writes a short line to the controller. It is expected to fit the socket's empty send buffer
+     * at once, as nothing else is ever written.
+     */
+    private void write(String line) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+        mChannel.write(buffer);
+        if (buffer.hasRemaining()) {
+            throw new IOException("Short write to controller.");
+        }
     }
 
     @Override
@@ -212,7 +483,7 @@ public class NetworkController implements Controller {
 
     @Override
     public String getName() {
-        return "kegboard-net-" + getSerialNumber();
+        return mName;
     }
 
     @Override
@@ -227,117 +498,45 @@ public class NetworkController implements Controller {
 
     @Override
     public Collection<FlowMeter> getFlowMeters() {
-        return mFlowMeters.values();
+        return mSensors.getFlowMeters();
     }
 
     @Override
     public FlowMeter getFlowMeter(String meterName) {
-        return mFlowMeters.get(meterName);
+        return mSensors.getFlowMeter(meterName);
     }
 
     @Override
     public Collection<ThermoSensor> getThermoSensors() {
-        return mThermoSensors.values();
+        return mSensors.getThermoSensors();
     }
 
     @Override
     public ThermoSensor getThermoSensor(String sensorName) {
-        return mThermoSensors.get(sensorName);
+        return mSensors.getThermoSensor(sensorName);
     }
 
     static abstract class NetworkMessage {
         @Nullable
         static NetworkMessage fromString(String message) {
-            if (message.startsWith(StatusMessage.PREFIX)) {
-                return StatusMessage.fromString(message);
-            } else if (message.startsWith(ThermoMessage.PREFIX)) {
-                return ThermoMessage.fromString(message);
-            } else if (message.startsWith(InfoMessage.PREFIX)) {
+            if (message.startsWith(InfoMessage.PREFIX)) {
                 return InfoMessage.fromString(message);
             }
             return null;
         }
     }
 
-    static class StatusMessage extends NetworkMessage {
-        static final String PREFIX = "kb-status: ";
-        final Map<String, Integer> meters;
-
-        StatusMessage(Map<String, Integer> meters) {
-            this.meters = Collections.unmodifiableMap(meters);
-        }
-
-        @Override
-        public String toString() {
-            final StringBuilder builder = new StringBuilder("<StatusMessage ");
-            builder.append(Joiner.on(' ').withKeyValueSeparator("=").join(meters));
-            builder.append('>');
-            return builder.toString();
-        }
-
-        static StatusMessage fromString(String message) {
-            if (!message.startsWith(StatusMessage.PREFIX)) {
-                throw new IllegalArgumentException("Invalid message.");
-            }
-            message = message.substring(PREFIX.length());
-            final Map<String, Integer> meters = Maps.newLinkedHashMap();
-            for (final String meterReading : Splitter.on(' ').split(message)) {
-                final String parts[] = meterReading.split("=");
-                if (parts.length != 2) {
-                    continue;
-                }
-                final String name = parts[0].replace(".ticks", "");
-                final Integer reading = Integer.valueOf(parts[1]);
-                meters.put(name, reading);
-            }
-            return new StatusMessage(meters);
-        }
-    }
-
-    static class ThermoMessage extends NetworkMessage {
-        static final String PREFIX = "kb-thermo: ";
-        final Map<String, Double> temps;
-
-        ThermoMessage(Map<String, Double> temps) {
-            this.temps = Collections.unmodifiableMap(temps);
-        }
-
-        @Override
-        public String toString() {
-            final StringBuilder builder = new StringBuilder("<StatusMessage ");
-            builder.append(Joiner.on(' ').withKeyValueSeparator("=").join(temps));
-            builder.append('>');
-            return builder.toString();
-        }
-
-        static ThermoMessage fromString(String message) {
-            if (!message.startsWith(ThermoMessage.PREFIX)) {
-                throw new IllegalArgumentException("Invalid message.");
-            }
-            message = message.substring(PREFIX.length());
-            final Map<String, Double> temps = Maps.newLinkedHashMap();
-            for (final String tempReading : Splitter.on(' ').split(message)) {
-                final String parts[] = tempReading.split("=");
-                if (parts.length != 2) {
-                    continue;
-                }
-                final String name = parts[0].replace(".temp", "");
-                final Double reading = Double.valueOf(parts[1]);
-                temps.put(name, reading);
-            }
-            return new ThermoMessage(temps);
-        }
-    }
-
-
     static class InfoMessage extends NetworkMessage {
         static final String PREFIX = "info: ";
         final String deviceId;
         final String version;
+        /** Whether the controller can send KBSP frames. */
+        final boolean kbsp;
 
-        InfoMessage(final String deviceId, final String version) {
+        InfoMessage(final String deviceId, final String version, final boolean kbsp) {
             this.deviceId = deviceId;
             this.version = version;
+            this.kbsp = kbsp;
         }
 
         @Override
@@ -348,6 +547,10 @@ public class NetworkController implements Controller {
             builder.append(' ');
             builder.append("version=");
             builder.append(this.version);
+            if (this.kbsp) {
+                builder.append(' ');
+                builder.append(KBSP_CAPABILITY);
+            }
             builder.append('>');
             return builder.toString();
         }
@@ -365,7 +568,7 @@ public class NetworkController implements Controller {
 
             final String deviceId = args.get("device_id");
             final String version = args.get("version");
-            return new InfoMessage(deviceId, version);
+            return new InfoMessage(deviceId, version, args.containsKey(KBSP_CAPABILITY));
         }
     }
 
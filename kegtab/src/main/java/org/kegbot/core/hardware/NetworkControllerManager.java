@@ -19,69 +19,338 @@
 
 package org.kegbot.core.hardware;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.common.base.Strings;
-import com.google.common.collect.Maps;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.HostAndPort;
 import com.squareup.otto.Bus;
 import com.squareup.otto.Subscribe;
 
 import org.kegbot.app.config.AppConfiguration;
 import org.kegbot.app.util.IndentingPrintWriter;
-import org.kegbot.core.FlowMeter;
-import org.kegbot.core.ThermoSensor;
+import org.kegbot.kegboard.KegboardMessageFactory;
 
-import java.util.Collection;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Connects to the network kegboards named by {@link AppConfiguration#getNetworkControllerHost()},
+ * serving all of them from a single {@link Selector} thread. Each controller reads into its own
+ * buffer.
+ * <p>
+ * Connections are bounded in time: one that does not complete within
+ * {@link #CONNECT_TIMEOUT_MILLIS}, or whose controller falls silent, is closed. A controller is
+ * expected to send a status line every few seconds, so the silence allowed scales with its observed
+ * status interval, up to {@link AppConfiguration#getNetworkControllerReadTimeoutMillis()}. Failed
+ * controllers are retried with exponential backoff and jitter, so that an outage neither hammers
+ * the network nor brings every controller back at once.
+ * </p>
+ */
 public class NetworkControllerManager implements ControllerManager {
   private static final String TAG = NetworkControllerManager.class.getSimpleName();
 
   private static NetworkControllerManager sSingleton = null;
 
+  private static final long CONNECT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  private static final long RECONNECT_MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  private static final long RECONNECT_MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /** Status intervals a controller may miss before it is considered dead. */
+  private static final int LIVENESS_MISSED_STATUS = 4;
+
+  /** Least silence after which a controller is considered dead, however often it reports. */
+  private static final long LIVENESS_MIN_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  private static final Splitter HOST_SPLITTER =
+      Splitter.onPattern("[,\\s]+").omitEmptyStrings().trimResults();
+
   private final Bus mBus;
   private final Listener mListener;
   private final AppConfiguration mConfig;
-  private NetworkController mController;
+
+  /** Controllers for the configured hosts, fixed between {@link #start()} and {@link #stop()}. */
+  private volatile List<NetworkController> mControllers = ImmutableList.of();
+
+  private final AtomicBoolean mRunning = new AtomicBoolean(false);
+  private ExecutorService mExecutorService;
+  private Selector mSelector;
+
+  /**
+   * The next deadline of each controller: when to connect it if disconnected, to give up if
+   * connecting, or to check it is still alive if connected. Used only by the selector thread.
+   */
+  private final DeadlineScheduler<NetworkController> mDeadlines =
+      new DeadlineScheduler<NetworkController>();
+
+  /** Jitters reconnect delays. Used only by the selector thread. */
+  private final Random mRandom = new Random();
+
+  private long mReadTimeoutMillis;
+
+  private volatile long mSelectPasses = 0;
+  private volatile long mConnectAttempts = 0;
+  private volatile long mConnectTimeouts = 0;
+  private volatile long mLivenessTimeouts = 0;
 
   public NetworkControllerManager(Bus bus, Listener listener, AppConfiguration config) {
     mBus = bus;
     mListener = listener;
     mConfig = config;
+  }
 
-    mController = null;
+  /**
+   * Parses a list of hosts, separated by commas or whitespace, each optionally with its own port.
+   *
+   * @throws IllegalArgumentException if an entry is not a valid host and port
+   */
+  @VisibleForTesting
+  static List<HostAndPort> parseHosts(String hosts, int defaultPort) {
+    final ImmutableList.Builder<HostAndPort> builder = ImmutableList.builder();
+    for (final String host : HOST_SPLITTER.split(hosts)) {
+      builder.add(HostAndPort.fromString(host).withDefaultPort(defaultPort));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns how long to wait before reconnecting after consecutive failures: a backoff doubling
+   * from {@link #RECONNECT_MIN_BACKOFF_MILLIS} with each failure, capped at
+   * {@link #RECONNECT_MAX_BACKOFF_MILLIS}, of which a random latter half is taken.
+   */
+  @VisibleForTesting
+  static long getReconnectDelayMillis(int failures, Random random) {
+    final int doublings = Math.min(Math.max(failures - 1, 0), 16);
+    final long backoff =
+        Math.min(RECONNECT_MIN_BACKOFF_MILLIS << doublings, RECONNECT_MAX_BACKOFF_MILLIS);
+    return backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
   }
 
   @Override
-  public void start() {
+  public synchronized void start() {
     mBus.register(this);
 
-    final String networkHost = mConfig.getNetworkControllerHost();
-    if (!Strings.isNullOrEmpty(networkHost)) {
-      Log.i(TAG, "Network controller is configured.");
-      mController = new NetworkController(networkHost, mConfig.getNetworkControllerPort(), mListener);
-      mController.start();
-    } else {
+    final List<HostAndPort> hosts;
+    try {
+      hosts = parseHosts(mConfig.getNetworkControllerHost(), mConfig.getNetworkControllerPort());
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "Invalid network controller hosts: " + e.getMessage());
+      return;
+    }
+    if (hosts.isEmpty()) {
       Log.i(TAG, "Network controller is NOT configured.");
-      mController = null;
+      return;
     }
+    Log.i(TAG, "Network controllers are configured: " + hosts);
+    mReadTimeoutMillis = mConfig.getNetworkControllerReadTimeoutMillis();
+
+    try {
+      mSelector = Selector.open();
+    } catch (IOException e) {
+      Log.e(TAG, "Could not open selector: " + e, e);
+      return;
+    }
+    final ImmutableList.Builder<NetworkController> controllers = ImmutableList.builder();
+    for (final HostAndPort host : hosts) {
+      final NetworkController controller =
+          new NetworkController(host.getHost(), host.getPort(), mListener);
+      controllers.add(controller);
+      mDeadlines.schedule(controller, SystemClock.uptimeMillis());
+    }
+    mControllers = controllers.build();
+
+    mRunning.set(true);
+    mExecutorService = Executors.newSingleThreadExecutor();
+    final Selector selector = mSelector;
+    final List<NetworkController> running = mControllers;
+    mExecutorService.execute(new Runnable() {
+      @Override
+      public void run() {
+        Thread.currentThread().setName("network-controllers");
+        selectLoop(selector, running);
+      }
+    });
   }
 
   @Override
-  public void stop() {
-    if (mController != null) {
-      mController.stop();
-      mController = null;
+  public synchronized void stop() {
+    if (mRunning.compareAndSet(true, false)) {
+      mSelector.wakeup();
+      mExecutorService.shutdown();
+      try {
+        if (!mExecutorService.awaitTermination(1, TimeUnit.SECONDS)) {
+          Log.w(TAG, "Selector thread did not exit.");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      mExecutorService = null;
+      mSelector = null;
+      mControllers = ImmutableList.of();
     }
     mBus.unregister(this);
   }
 
+  /**
+   * Runs the selector until the manager is stopped, then disconnects every controller. Services
+   * due controller deadlines, completes pending connections, and reads from readable ones.
+   */
+  private void selectLoop(final Selector selector, final List<NetworkController> controllers) {
+    Log.d(TAG, "Selector thread starting.");
+    try {
+      while (mRunning.get()) {
+        mSelectPasses++;
+        final long now = SystemClock.uptimeMillis();
+        NetworkController due;
+        while ((due = mDeadlines.pollDue(now)) != null) {
+          serviceDeadline(selector, due, now);
+        }
+
+        final long nextDeadline = mDeadlines.getNextDeadline();
+        if (nextDeadline == Long.MAX_VALUE) {
+          selector.select();
+        } else {
+          // A timeout of zero would block indefinitely.
+          selector.select(Math.max(1, nextDeadline - SystemClock.uptimeMillis()));
+        }
+
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          final SelectionKey key = it.next();
+          it.remove();
+          final NetworkController controller = (NetworkController) key.attachment();
+          try {
+            if (key.isConnectable()) {
+              controller.finishConnect(key);
+              if (controller.isConnected()) {
+                mDeadlines.schedule(controller, getLivenessDeadline(controller));
+              }
+            } else if (key.isReadable()) {
+              controller.onReadable();
+            }
+          } catch (IOException e) {
+            Log.w(TAG, "Error on " + controller + ": " + e);
+            reconnectLater(controller);
+          }
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Selector failed: " + e, e);
+    } finally {
+      for (final NetworkController controller : controllers) {
+        controller.disconnect();
+        mDeadlines.cancel(controller);
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        // Close quietly.
+      }
+      Log.d(TAG, "Selector thread exiting.");
+    }
+  }
+
+  /**
+   * Handles a controller whose deadline has passed: connects it if disconnected, gives up on a
+   * connection still pending, and checks a connected one has not fallen silent.
+   */
+  private void serviceDeadline(Selector selector, NetworkController controller, long now) {
+    if (controller.isConnected()) {
+      final long deadline = getLivenessDeadline(controller);
+      if (deadline > now) {
+        // Lines arrived since the deadline was set.
+        mDeadlines.schedule(controller, deadline);
+        return;
+      }
+      Log.w(TAG, "Nothing from " + controller + " in "
+          + (now - controller.getLastMessageUptimeMillis()) + " ms, reconnecting.");
+      mLivenessTimeouts++;
+      reconnectLater(controller);
+    } else if (controller.isConnecting()) {
+      Log.w(TAG, "Timed out connecting to " + controller);
+      mConnectTimeouts++;
+      reconnectLater(controller);
+    } else {
+      mConnectAttempts++;
+      try {
+        controller.connect(selector);
+        mDeadlines.schedule(controller, controller.isConnected()
+            ? getLivenessDeadline(controller) : now + CONNECT_TIMEOUT_MILLIS);
+      } catch (IOException e) {
+        Log.w(TAG, "Error connecting to " + controller + ": " + e);
+        reconnectLater(controller);
+      }
+    }
+  }
+
+  /**
+   * Returns when a connected controller is considered dead if it sends nothing more: after a few
+   * missed status reports once its status interval is known, and the read timeout until then.
+   */
+  private long getLivenessDeadline(NetworkController controller) {
+    final long interval = controller.getStatusIntervalMillis();
+    final long idleMillis = interval == 0 ? mReadTimeoutMillis : Math.min(mReadTimeoutMillis,
+        Math.max(LIVENESS_MIN_IDLE_MILLIS, LIVENESS_MISSED_STATUS * interval));
+    return controller.getLastMessageUptimeMillis() + idleMillis;
+  }
+
+  private void reconnectLater(final NetworkController controller) {
+    final int failures = controller.onConnectionFailed();
+    final long delayMillis = getReconnectDelayMillis(failures, mRandom);
+    Log.d(TAG, "Reconnecting to " + controller + " in " + delayMillis + " ms");
+    mDeadlines.schedule(controller, SystemClock.uptimeMillis() + delayMillis);
+  }
+
   @Override
   public void refreshSoon() {
   }
 
   @Override
   public void dump(IndentingPrintWriter writer) {
+    writer.printPair("selectPasses", Long.valueOf(mSelectPasses))
+        .printPair("connectAttempts", Long.valueOf(mConnectAttempts))
+        .printPair("connectTimeouts", Long.valueOf(mConnectTimeouts))
+        .printPair("livenessTimeouts", Long.valueOf(mLivenessTimeouts)).println();
+    final List<NetworkController> controllers = mControllers;
+    if (controllers.isEmpty()) {
+      writer.println("Controllers: none.");
+      return;
+    }
+    writer.println("Controllers: ");
+    writer.increaseIndent();
+    int i = 1;
+    for (final NetworkController controller : controllers) {
+      writer.print(i++);
+      writer.print(": ");
+      writer.println(controller);
+      writer.increaseIndent();
+      writer.printPair("bytesRead", Long.valueOf(controller.getBytesRead()))
+          .printPair("linesRead", Long.valueOf(controller.getLinesRead()))
+          .printPair("linesDiscarded", Long.valueOf(controller.getLinesDiscarded()))
+          .printPair("protocol", controller.isKbsp() ? "kbsp" : "text")
+          .printPair("framesRead", Long.valueOf(controller.getFramesRead())).println();
+      final KegboardMessageFactory.Stats decoderStats = controller.getDecoderStats();
+      if (decoderStats != null) {
+        writer.printPair("decoder", decoderStats).println();
+      }
+      writer.printPair("reconnects", Long.valueOf(controller.getReconnects()))
+          .printPair("disconnectedMs", Long.valueOf(controller.getDisconnectedMillis()))
+          .printPair("statusIntervalMs", Long.valueOf(controller.getStatusIntervalMillis()))
+          .println();
+      writer.decreaseIndent();
+    }
+    writer.decreaseIndent();
   }
 
   @Subscribe
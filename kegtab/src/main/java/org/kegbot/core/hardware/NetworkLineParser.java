@@ -0,0 +1,280 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kegbot.core.hardware;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses the {@code kb-status} and {@code kb-thermo} lines of a network kegboard straight from the
+ * bytes read, without allocating once each of its sensors has been seen.
+ * <p>
+ * A line is a prefix followed by space-separated {@code key=value} readings, such as
+ * {@code kb-status: meter0.ticks=120 meter1.ticks=0}. Each distinct key is given a slot the first
+ * time it appears, along with the sensor name derived from it; after a line is parsed, its readings
+ * are available by position as slot numbers and values. Readings which are not a single
+ * {@code key=value} pair are skipped, as are keys beyond the first {@link #MAX_SLOTS} of each kind.
+ * </p>
+ */
+final class NetworkLineParser {
+
+  /** A line other than a status or thermo line. */
+  static final int LINE_OTHER = 0;
+
+  /** A {@code kb-status} line, with a meter tick count per reading. */
+  static final int LINE_STATUS = 1;
+
+  /** A {@code kb-thermo} line, with a temperature per reading. */
+  static final int LINE_THERMO = 2;
+
+  static final int MAX_SLOTS = 16;
+
+  private static final byte[] STATUS_PREFIX = "kb-status: ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] THERMO_PREFIX = "kb-thermo: ".getBytes(StandardCharsets.US_ASCII);
+
+  /** Largest mantissa for which a decimal is converted exactly by a single division. */
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  private static final double[] POWERS_OF_TEN = new double[23];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  /** Sensor keys seen so far, each with the sensor name derived from it. */
+  private static final class SlotTable {
+    final byte[][] keys = new byte[MAX_SLOTS][];
+    final String[] names = new String[MAX_SLOTS];
+    int count = 0;
+
+    /** Returns the slot for a key, assigning one if it is new, or -1 if the table is full. */
+    int getSlot(byte[] buffer, int start, int end, boolean meter) {
+      final int length = end - start;
+      for (int slot = 0; slot < count; slot++) {
+        final byte[] key = keys[slot];
+        if (key.length == length && regionMatches(buffer, start, key)) {
+          return slot;
+        }
+      }
+      if (count == MAX_SLOTS) {
+        return -1;
+      }
+      final byte[] key = Arrays.copyOfRange(buffer, start, end);
+      final String name = new String(key, StandardCharsets.US_ASCII);
+      keys[count] = key;
+      names[count] = meter
+          ? name.replace(".ticks", "").replace("meter", "flow")
+          : name.replace(".temp", "").replace("temp_", "thermo-");
+      return count++;
+    }
+  }
+
+  private final SlotTable mMeterSlots = new SlotTable();
+  private final SlotTable mThermoSlots = new SlotTable();
+
+  private int mReadingCount = 0;
+  private final int[] mReadingSlots = new int[MAX_SLOTS];
+  private final long[] mTicks = new long[MAX_SLOTS];
+  private final double[] mTemperatures = new double[MAX_SLOTS];
+
+  /**
+   * Parses a line, excluding its line terminator. A malformed line leaves no readings.
+   *
+   * @return the kind of line, one of {@link #LINE_STATUS}, {@link #LINE_THERMO} or
+   *     {@link #LINE_OTHER}; readings are parsed only for the first two
+   * @throws IllegalArgumentException if a reading's value is not a number
+   */
+  int parse(byte[] buffer, int start, int end) {
+    mReadingCount = 0;
+    final boolean meter;
+    if (startsWith(buffer, start, end, STATUS_PREFIX)) {
+      meter = true;
+      start += STATUS_PREFIX.length;
+    } else if (startsWith(buffer, start, end, THERMO_PREFIX)) {
+      meter = false;
+      start += THERMO_PREFIX.length;
+    } else {
+      return LINE_OTHER;
+    }
+
+    final SlotTable slots = meter ? mMeterSlots : mThermoSlots;
+    try {
+      int tokenStart = start;
+      for (int i = start; i <= end; i++) {
+        if (i == end || buffer[i] == ' ') {
+          parseReading(buffer, tokenStart, i, slots, meter);
+          tokenStart = i + 1;
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      mReadingCount = 0;
+      throw e;
+    }
+    return meter ? LINE_STATUS : LINE_THERMO;
+  }
+
+  private void parseReading(byte[] buffer, int start, int end, SlotTable slots, boolean meter) {
+    int separator = -1;
+    for (int i = start; i < end; i++) {
+      if (buffer[i] == '=') {
+        if (separator >= 0) {
+          return;
+        }
+        separator = i;
+      }
+    }
+    if (separator <= start || separator == end - 1) {
+      return;
+    }
+    final int slot = slots.getSlot(buffer, start, separator, meter);
+    if (slot < 0) {
+      return;
+    }
+
+    // A key repeated within a line keeps its first position and its last value.
+    int reading = 0;
+    while (reading < mReadingCount && mReadingSlots[reading] != slot) {
+      reading++;
+    }
+    if (meter) {
+      mTicks[reading] = parseInt(buffer, separator + 1, end);
+    } else {
+      mTemperatures[reading] = parseDouble(buffer, separator + 1, end);
+    }
+    if (reading == mReadingCount) {
+      mReadingSlots[reading] = slot;
+      mReadingCount++;
+    }
+  }
+
+  /** Number of readings in the line last parsed. */
+  int getReadingCount() {
+    return mReadingCount;
+  }
+
+  /** Slot of a reading's sensor, in the meter or thermo slots according to the line's kind. */
+  int getSlot(int reading) {
+    return mReadingSlots[reading];
+  }
+
+  /** Tick count of a reading from a status line. */
+  long getTicks(int reading) {
+    return mTicks[reading];
+  }
+
+  /** Temperature, in degrees Celsius, of a reading from a thermo line. */
+  double getTemperatureC(int reading) {
+    return mTemperatures[reading];
+  }
+
+  /** Meter name for a slot, such as {@code flow0} for {@code meter0.ticks}. */
+  String getMeterName(int slot) {
+    return mMeterSlots.names[slot];
+  }
+
+  /** Sensor name for a slot, such as {@code thermo-0} for {@code temp_0.temp}. */
+  String getThermoName(int slot) {
+    return mThermoSlots.names[slot];
+  }
+
+  /** Parses a decimal integer as {@link Integer#parseInt(String)} does. */
+  private static int parseInt(byte[] buffer, int start, int end) {
+    final boolean negative = buffer[start] == '-';
+    int i = (negative || buffer[start] == '+') ? start + 1 : start;
+    if (i == end) {
+      throw invalidNumber(buffer, start, end);
+    }
+    // Accumulates negatively, since Integer.MIN_VALUE has no positive counterpart.
+    final long limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+    long result = 0;
+    for (; i < end; i++) {
+      final int digit = buffer[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw invalidNumber(buffer, start, end);
+      }
+      result = result * 10 - digit;
+      if (result < limit) {
+        throw invalidNumber(buffer, start, end);
+      }
+    }
+    return (int) (negative ? result : -result);
+  }
+
+  /**
+   * Parses a decimal number as {@link Double#parseDouble(String)} does. Plain decimals with few
+   * enough digits are converted directly; anything else is left to {@link Double}.
+   */
+  private static double parseDouble(byte[] buffer, int start, int end) {
+    final boolean negative = buffer[start] == '-';
+    int i = (negative || buffer[start] == '+') ? start + 1 : start;
+    long mantissa = 0;
+    int digits = 0;
+    int fractionDigits = -1;
+    for (; i < end; i++) {
+      final byte b = buffer[i];
+      if (b == '.' && fractionDigits < 0) {
+        fractionDigits = 0;
+        continue;
+      }
+      final int digit = b - '0';
+      if (digit < 0 || digit > 9 || ++digits > 17) {
+        return parseDoubleSlowly(buffer, start, end);
+      }
+      mantissa = mantissa * 10 + digit;
+      if (fractionDigits >= 0) {
+        fractionDigits++;
+      }
+    }
+    if (digits == 0 || mantissa > MAX_EXACT_MANTISSA
+        || fractionDigits >= POWERS_OF_TEN.length) {
+      return parseDoubleSlowly(buffer, start, end);
+    }
+    // Both operands are exact, so the quotient is correctly rounded.
+    final double value = fractionDigits > 0
+        ? mantissa / POWERS_OF_TEN[fractionDigits] : (double) mantissa;
+    return negative ? -value : value;
+  }
+
+  private static double parseDoubleSlowly(byte[] buffer, int start, int end) {
+    return Double.parseDouble(new String(buffer, start, end - start, StandardCharsets.US_ASCII));
+  }
+
+  private static IllegalArgumentException invalidNumber(byte[] buffer, int start, int end) {
+    return new NumberFormatException("Invalid number: "
+        + new String(buffer, start, end - start, StandardCharsets.US_ASCII));
+  }
+
+  private static boolean startsWith(byte[] buffer, int start, int end, byte[] prefix) {
+    return end - start >= prefix.length && regionMatches(buffer, start, prefix);
+  }
+
+  private static boolean regionMatches(byte[] buffer, int start, byte[] other) {
+    for (int i = 0; i < other.length; i++) {
+      if (buffer[start + i] != other[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -33,19 +33,35 @@ public class KegboardAuthTokenMessage extends KegboardMessage {
 
   private static final String CORE_ONEWIRE = "core.onewire";
 
-  private final String mComputedName;
-  private final String mComputedToken;
-
   public enum Status {
     REMOVED,
     PRESENT,
     UNKNOWN;
   }
 
+  KegboardAuthTokenMessage() {
+  }
+
   public KegboardAuthTokenMessage(byte[] wholeMessage) throws KegboardMessageException {
     super(wholeMessage);
+  }
+
+  @Override
+  protected String getStringExtra() {
+    return String.format("name=%s token=%s status=%s", getName(), getToken(), getStatus());
+  }
 
+  public String getName() {
     final String tagName = readTagAsString(TAG_DEVICE_NAME);
+
+    // Rename "onewire" -> "core.onewire"
+    if ("onewire".equals(tagName)) {
+      return CORE_ONEWIRE;
+    }
+    return tagName;
+  }
+
+  public String getToken() {
     byte[] tokenBytes = readTag(TAG_TOKEN);
     if (tokenBytes == null) {
       tokenBytes = new byte[0];
@@ -56,27 +72,7 @@ public class KegboardAuthTokenMessage extends KegboardMessage {
     for (int i = 0; i < reversedBytes.length; i++) {
       reversedBytes[tokenBytes.length - i - 1] = tokenBytes[i];
     }
-    mComputedToken = Hex.encodeHexString(reversedBytes, true);
-
-    // Rename "onewire" -> "core.onewire"
-    if ("onewire".equals(tagName)) {
-      mComputedName = CORE_ONEWIRE;
-    } else {
-      mComputedName = tagName;
-    }
-  }
-
-  @Override
-  protected String getStringExtra() {
-    return String.format("name=%s token=%s status=%s", getName(), getToken(), getStatus());
-  }
-
-  public String getName() {
-    return mComputedName;
-  }
-
-  public String getToken() {
-    return mComputedToken;
+    return Hex.encodeHexString(reversedBytes, true);
   }
 
   public Status getStatus() {
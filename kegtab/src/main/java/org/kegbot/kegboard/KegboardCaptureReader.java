@@ -0,0 +1,193 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.kegboard;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a capture file written by {@link KegboardCaptureWriter}, one record at a time.
+ * <p>
+ * The file is memory-mapped a window at a time, so captures of any size can be read without
+ * copying them onto the heap. A truncated final record is treated as the end of the capture.
+ * </p>
+ */
+public class KegboardCaptureReader implements Closeable {
+
+  private static final long DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /** Two varints of at most 10 bytes each. */
+  private static final int MAX_RECORD_HEADER_LENGTH = 20;
+
+  private final RandomAccessFile mFile;
+  private final FileChannel mChannel;
+  private final long mSize;
+  private final long mWindowSize;
+
+  private MappedByteBuffer mWindow;
+  private long mWindowStart = 0;
+
+  /** File offset of the next record. */
+  private long mPosition;
+
+  private final long mStartTimeMillis;
+
+  private long mTimestampMicros = 0;
+  private long mDataPosition;
+  private int mLength = -1;
+
+  public KegboardCaptureReader(File file) throws IOException {
+    this(file, DEFAULT_WINDOW_SIZE);
+  }
+
+  KegboardCaptureReader(File file, long windowSize) throws IOException {
+    Preconditions.checkArgument(windowSize >= KegboardCaptureWriter.HEADER_LENGTH,
+        "Window too small: %s", windowSize);
+    mFile = new RandomAccessFile(file, "r");
+    mChannel = mFile.getChannel();
+    mSize = mChannel.size();
+    mWindowSize = windowSize;
+
+    try {
+      if (mSize < KegboardCaptureWriter.HEADER_LENGTH) {
+        throw new IOException("Not a kegboard capture: " + file);
+      }
+      map(0, KegboardCaptureWriter.HEADER_LENGTH);
+      final byte[] magic = new byte[KegboardCaptureWriter.MAGIC.length];
+      mWindow.get(magic);
+      if (!Arrays.equals(magic, KegboardCaptureWriter.MAGIC)) {
+        throw new IOException("Not a kegboard capture: " + file);
+      }
+      mStartTimeMillis = mWindow.getLong();
+    } catch (IOException e) {
+      mFile.close();
+      throw e;
+    }
+    mPosition = KegboardCaptureWriter.HEADER_LENGTH;
+  }
+
+  /** Returns the wall clock time at which the capture started. */
+  public long getStartTimeMillis() {
+    return mStartTimeMillis;
+  }
+
+  /**
+   * Advances to the next record.
+   *
+   * @return {@code false} at the end of the capture
+   */
+  public boolean next() throws IOException {
+    if (mPosition >= mSize) {
+      return false;
+    }
+    map(mPosition, (int) Math.min(MAX_RECORD_HEADER_LENGTH, mSize - mPosition));
+    final long delta = readVarint();
+    final long length = delta < 0 ? -1 : readVarint();
+    if (length < 0) {
+      return truncated();
+    }
+    if (length > KegboardCaptureWriter.MAX_RECORD_LENGTH) {
+      throw new IOException("Corrupt capture: record length " + length + " at offset "
+          + mPosition);
+    }
+
+    final long dataPosition = mWindowStart + mWindow.position();
+    if (dataPosition + length > mSize) {
+      return truncated();
+    }
+    mTimestampMicros += delta;
+    mDataPosition = dataPosition;
+    mLength = (int) length;
+    mPosition = dataPosition + length;
+    return true;
+  }
+
+  /** Returns the time of the current record, in microseconds since the capture started. */
+  public long getTimestampMicros() {
+    return mTimestampMicros;
+  }
+
+  /** Returns the number of bytes in the current record. */
+  public int getLength() {
+    return mLength;
+  }
+
+  /**
+   * Copies the bytes of the current record into {@code dest}, which must have room for
+   * {@link #getLength()} bytes.
+   *
+   * @return the number of bytes copied
+   */
+  public int read(byte[] dest) throws IOException {
+    Preconditions.checkState(mLength >= 0, "No current record.");
+    map(mDataPosition, mLength);
+    mWindow.get(dest, 0, mLength);
+    return mLength;
+  }
+
+  @Override
+  public void close() throws IOException {
+    mWindow = null;
+    mFile.close();
+  }
+
+  private boolean truncated() {
+    mPosition = mSize;
+    mLength = -1;
+    return false;
+  }
+
+  /**
+   * Ensures {@code [position, position + length)} is mapped, and positions the window at
+   * {@code position}.
+   */
+  private void map(long position, int length) throws IOException {
+    if (mWindow == null || position < mWindowStart
+        || position + length > mWindowStart + mWindow.limit()) {
+      final long size = Math.min(Math.max(mWindowSize, length), mSize - position);
+      mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+      mWindowStart = position;
+    }
+    mWindow.position((int) (position - mWindowStart));
+  }
+
+  /** Reads a varint from the window, returning {@code -1} if it runs off the end of the file. */
+  private long readVarint() throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!mWindow.hasRemaining()) {
+        return -1;
+      }
+      final byte b = mWindow.get();
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw new IOException("Corrupt capture: bad varint at offset " + mPosition);
+  }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2003-2020 The Kegbot Project contributors <info@kegbot.org>
+ *
+ * This file is part of the Kegtab package from the Kegbot project. For
+ * more information on Kegtab or Kegbot, see <http://kegbot.org/>.
+ *
+ * Kegtab is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 2.
+ *
+ * Kegtab is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Kegtab. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kegbot.kegboard;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Records the raw bytes received from a kegboard, with their arrival times, to a capture file
+ * which {@link KegboardCaptureReader} can read back.
+ * <p>
+ * The file starts with the 8 byte {@link #MAGIC} and the capture's start time, in milliseconds
+ * since the epoch, as a big-endian long. Records follow, each holding:
+ * <ul>
+ *   <li>the microseconds since the previous record (or the start of the capture), as a
+ *   varint;</li>
+ *   <li>the number of bytes read, as a varint;</li>
+ *   <li>the bytes themselves.</li>
+ * </ul>
+ * Records are only ever appended, so a capture cut short by a crash loses at most its last,
+ * partially-written record.
+ * </p>
+ */
+public class KegboardCaptureWriter implements Closeable {
+
+  static final byte[] MAGIC = {'K', 'B', 'C', 'A', 'P', 0, 0, 1};
+
+  static final int HEADER_LENGTH = MAGIC.length + 8;
+
+  /** Largest record, in bytes of data. */
+  public static final int MAX_RECORD_LENGTH = 0xffff;
+
+  private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  @GuardedBy("this")
+  private final OutputStream mOut;
+
+  private final long mStartNanos;
+
+  /** Time of the last record, in microseconds since {@link #mStartNanos}. */
+  @GuardedBy("this")
+  private long mLastMicros = 0;
+
+  @GuardedBy("this")
+  private long mLastFlushNanos;
+
+  @GuardedBy("this")
+  private long mRecordCount = 0;
+
+  /** Creates a new capture file, replacing any existing file. */
+  public KegboardCaptureWriter(File file) throws IOException {
+    this(new BufferedOutputStream(new FileOutputStream(file)), System.currentTimeMillis(),
+        System.nanoTime());
+  }
+
+  /**
+   * @param startMillis wall clock time of the start of the capture
+   * @param startNanos {@link System#nanoTime()} at the start of the capture
+   */
+  KegboardCaptureWriter(OutputStream out, long startMillis, long startNanos) throws IOException {
+    mOut = out;
+    mStartNanos = startNanos;
+    mLastFlushNanos = startNanos;
+    mOut.write(MAGIC);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      mOut.write((int) (startMillis >>> shift));
+    }
+  }
+
+  /**
+   * Appends a record.
+   *
+   * @param nanos arrival time of the bytes, from {@link System#nanoTime()}
+   */
+  public synchronized void write(byte[] data, int length, long nanos) throws IOException {
+    Preconditions.checkArgument(length >= 0 && length <= MAX_RECORD_LENGTH,
+        "Bad record length: %s", length);
+    final long micros = Math.max(mLastMicros, (nanos - mStartNanos) / 1000);
+    writeVarint(micros - mLastMicros);
+    writeVarint(length);
+    mOut.write(data, 0, length);
+    mLastMicros = micros;
+    mRecordCount++;
+
+    if (nanos - mLastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+      mOut.flush();
+      mLastFlushNanos = nanos;
+    }
+  }
+
+  public synchronized long getRecordCount() {
+    return mRecordCount;
+  }
+
+  public synchronized void flush() throws IOException {
+    mOut.flush();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    mOut.close();
+  }
+
+  private void writeVarint(long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      mOut.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    mOut.write((int) value);
+  }
+
+}
@@ -21,11 +21,19 @@ package org.kegbot.kegboard;
 import com.google.common.annotations.VisibleForTesting;
 
 /**
- * @author
+ * CRC-16/CCITT as used by the Kegboard serial protocol.
+ * <p>
+ * The CRC may be computed in one shot with {@link #crc16Ccitt(byte[], int)}, or incrementally as
+ * bytes arrive by seeding with {@link #INITIAL_VALUE} and feeding each chunk to
+ * {@link #update(int, byte[], int, int)}.
+ * </p>
  */
 public class KegboardCrc {
 
-  private static int[] sTable;
+  /** Starting value for an incremental CRC. */
+  public static final int INITIAL_VALUE = 0;
+
+  private static final int[] TABLE = buildTable();
 
   public static int crc16CcittUpdate(int crc, byte b) {
     int bval = b & 0xff;
@@ -38,26 +46,36 @@ public class KegboardCrc {
     return result;
   }
 
+  private static int[] buildTable() {
+    final int[] table = new int[256];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = crc16CcittUpdate(0, (byte) i);
+    }
+    return table;
+  }
+
   @VisibleForTesting
-  protected static synchronized int[] getTable() {
-    if (sTable == null) {
-      sTable = new int[256];
-      for (int i = 0; i < sTable.length; i++) {
-        sTable[i] = crc16CcittUpdate(0, (byte) i);
-      }
+  protected static int[] getTable() {
+    return TABLE;
+  }
+
+  /** Folds a single byte into {@code crc}. */
+  public static int update(int crc, byte b) {
+    return ((crc >> 8) ^ TABLE[(crc ^ b) & 0x00ff]) & 0x0ffff;
+  }
+
+  /** Folds {@code length} bytes of {@code bytes}, starting at {@code offset}, into {@code crc}. */
+  public static int update(int crc, byte[] bytes, int offset, int length) {
+    final int[] table = TABLE;
+    final int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      crc = (crc >> 8) ^ table[(crc ^ bytes[i]) & 0x00ff];
     }
-    return sTable;
+    return crc & 0x0ffff;
   }
 
   public static int crc16Ccitt(byte[] bytes, int length) {
-    int crc = 0;
-    final int[] table = getTable();
-    for (int i = 0; i < length; i++) {
-      final byte b = bytes[i];
-      crc = (crc >> 8) ^ table[(crc ^ b) & 0x00ff];
-      crc &= 0x0ffff;
-    }
-    return crc;
+    return update(INITIAL_VALUE, bytes, 0, length);
   }
 
 }
@@ -27,11 +27,14 @@ public class KegboardHelloMessage extends KegboardMessage {
 
   public static final int MESSAGE_TYPE = 0x01;
 
-  private static final int TAG_FIRMWARE_VERSION = 0x01;
-  private static final int TAG_PROTOCOL_VERSION = 0x02;
-  private static final int TAG_SERIAL_NUMBER = 0x03;
-  private static final int TAG_UPTIME_MILLIS = 0x04;
-  private static final int TAG_UPTIME_DAYS = 0x05;
+  static final int TAG_FIRMWARE_VERSION = 0x01;
+  static final int TAG_PROTOCOL_VERSION = 0x02;
+  static final int TAG_SERIAL_NUMBER = 0x03;
+  static final int TAG_UPTIME_MILLIS = 0x04;
+  static final int TAG_UPTIME_DAYS = 0x05;
+
+  KegboardHelloMessage() {
+  }
 
   public KegboardHelloMessage(byte[] wholeMessage) throws KegboardMessageException {
     super(wholeMessage);
@@ -68,19 +71,11 @@ public class KegboardHelloMessage extends KegboardMessage {
   }
 
   public long getUptimeDays() {
-    final Long value = readTagAsLong(TAG_UPTIME_DAYS);
-    if (value != null) {
-      return value.longValue();
-    }
-    return -1;
+    return readTagAsLong(TAG_UPTIME_DAYS, -1);
   }
 
   public long getUptimeMillis() {
-    final Long value = readTagAsLong(TAG_UPTIME_MILLIS);
-    if (value != null) {
-      return value.longValue();
-    }
-    return -1;
+    return readTagAsLong(TAG_UPTIME_MILLIS, -1);
   }
 
   public String getSerialNumber() {
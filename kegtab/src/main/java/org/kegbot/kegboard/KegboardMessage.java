@@ -18,50 +18,88 @@
  */
 package org.kegbot.kegboard;
 
-import com.google.common.collect.Maps;
-import com.google.common.primitives.Bytes;
 import com.google.common.primitives.Shorts;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Map;
 
 /**
  * Base message type for messages to/from a Kegboard device.
+ * <p>
+ * A parsed message is a view over its frame bytes: tag values are not copied out, but located
+ * through a small table of offsets built when the frame is parsed. Instances created with the
+ * no-argument constructor may be re-pointed at successive frames, which is how
+ * {@link KegboardMessageFactory#getReusableMessage()} decodes without allocating.
+ * </p>
  * @see <a href="http://kegbot.org/docs/kegboard-guide/">Kegboard Guide</a>
  */
 public abstract class KegboardMessage {
 
-  private static final int KBSP_HEADER_LENGTH = 12;
+  static final int KBSP_HEADER_LENGTH = 12;
 
-  private static final int KBSP_TRAILER_LENGTH = 4;
+  static final int KBSP_TRAILER_LENGTH = 4;
 
-  private static final int KBSP_MIN_LENGTH = KBSP_HEADER_LENGTH
+  static final int KBSP_MIN_LENGTH = KBSP_HEADER_LENGTH
       + KBSP_TRAILER_LENGTH;
 
   private static final byte[] KBSP_HEADER_BYTES = "KBSP v1:".getBytes();
 
   private static final byte[] KBSP_TRAILER_BYTES = {'\r', '\n'};
 
-  private static final int KBSP_MAX_LENGTH = 256;
+  static final int KBSP_MAX_LENGTH = 256;
 
-  private static final int KBSP_PAYLOAD_MAX_LENGTH = KBSP_MAX_LENGTH - KBSP_MIN_LENGTH;
+  static final int KBSP_PAYLOAD_MAX_LENGTH = KBSP_MAX_LENGTH - KBSP_MIN_LENGTH;
 
-  protected final Map<Integer, byte[]> mTags = Maps.newLinkedHashMap();
+  /** Every tag occupies at least a tag byte and a length byte. */
+  private static final int MAX_TAGS = KBSP_PAYLOAD_MAX_LENGTH / 2;
 
+  /** Frame backing this message. Tag values are read from here in place. */
+  private byte[] mFrame;
+
+  private int mPayloadLength;
+
+  /**
+   * One entry per tag, in payload order. Each entry packs the tag number, the offset of its value
+   * within {@link #mFrame}, and the value length as {@code tag << 16 | offset << 8 | length}.
+   */
+  private final int[] mTagTable = new int[MAX_TAGS];
+
+  private int mTagCount = 0;
+
+  /**
+   * Creates an empty message, either to be filled in with {@link #putTag(int, byte[])} or to be
+   * pointed at frames with {@link #parse(byte[], int, boolean)}.
+   */
   protected KegboardMessage() {
-    assert (false);
   }
 
   protected KegboardMessage(byte[] wholeMessage) throws KegboardMessageException {
-    if (wholeMessage.length < KBSP_MIN_LENGTH) {
+    parse(wholeMessage, wholeMessage.length, true);
+  }
+
+  /**
+   * Validates the first {@code length} bytes of {@code frame} as a message of this type and indexes
+   * its tags. The frame is referenced, not copied, and must not be modified while this message is
+   * in use.
+   *
+   * @param verifyCrc whether to check the frame CRC; callers which have already validated it as
+   *     the frame arrived may skip the second pass
+   */
+  final void parse(byte[] frame, int length, boolean verifyCrc) throws KegboardMessageException {
+    mFrame = null;
+    mPayloadLength = 0;
+    mTagCount = 0;
+
+    if (length < KBSP_MIN_LENGTH) {
       throw new KegboardMessageException("Raw message size too small: min=" + KBSP_MIN_LENGTH
-          + ", actual=" + wholeMessage.length);
-    } else if (wholeMessage.length > KBSP_MAX_LENGTH) {
+          + ", actual=" + length);
+    } else if (length > KBSP_MAX_LENGTH) {
       throw new KegboardMessageException("Raw message size too large: max=" + KBSP_MAX_LENGTH
-          + ", actual=" + wholeMessage.length);
+          + ", actual=" + length);
     }
 
-    final int payloadLength = Shorts.fromBytes(wholeMessage[11], wholeMessage[10]) & 0x0ffff;
+    final int payloadLength = Shorts.fromBytes(frame[11], frame[10]) & 0x0ffff;
     final int payloadEnd = KBSP_HEADER_LENGTH + payloadLength;
     if (payloadLength > KBSP_PAYLOAD_MAX_LENGTH) {
       throw new KegboardMessageException("Illegal payload size: max=" + KBSP_PAYLOAD_MAX_LENGTH
@@ -69,85 +107,129 @@ public abstract class KegboardMessage {
     }
 
     final int totalMessageSize = KBSP_HEADER_LENGTH + payloadLength + KBSP_TRAILER_LENGTH;
-    if (wholeMessage.length != totalMessageSize) {
+    if (length != totalMessageSize) {
       throw new KegboardMessageException("Input buffer size does not match computed size: "
           + "payloadLength=" + payloadLength + ", needed=" + totalMessageSize
-          + ", actual=" + wholeMessage.length);
+          + ", actual=" + length);
     }
 
-    final byte[] payload;
-    if (payloadLength > 0) {
-      payload = Arrays.copyOfRange(wholeMessage, KBSP_HEADER_LENGTH, payloadEnd);
-    } else {
-      payload = new byte[0];
-    }
-
-    final byte[] crcBytes = Arrays.copyOfRange(wholeMessage, payloadEnd, payloadEnd + 2);
-
-    final byte[] trailerBytes = Arrays.copyOfRange(wholeMessage, payloadEnd + 2, payloadEnd + 4);
-    if (!Arrays.equals(trailerBytes, KBSP_TRAILER_BYTES)) {
+    if (frame[payloadEnd + 2] != KBSP_TRAILER_BYTES[0]
+        || frame[payloadEnd + 3] != KBSP_TRAILER_BYTES[1]) {
       throw new KegboardMessageException("Illegal trailer value.");
     }
 
-    final int expectedCrc = KegboardCrc.crc16Ccitt(wholeMessage, wholeMessage.length - 4) & 0x0ffff;
-    final int computedCrc = Shorts.fromBytes(crcBytes[1], crcBytes[0]) & 0x0ffff;
+    if (verifyCrc) {
+      final int expectedCrc = KegboardCrc.crc16Ccitt(frame, length - 4) & 0x0ffff;
+      final int computedCrc = Shorts.fromBytes(frame[payloadEnd + 1], frame[payloadEnd]) & 0x0ffff;
 
-    if (expectedCrc != computedCrc) {
-      throw new KegboardMessageException("Bad CRC: "
-          + "expected=" + String.format("0x%04x ", Integer.valueOf(expectedCrc))
-          + "computed=" + String.format("0x%04x ", Integer.valueOf(computedCrc)));
+      if (expectedCrc != computedCrc) {
+        throw new KegboardMessageException("Bad CRC: "
+            + "expected=" + String.format("0x%04x ", Integer.valueOf(expectedCrc))
+            + "computed=" + String.format("0x%04x ", Integer.valueOf(computedCrc)));
+      }
     }
 
-    short messageType = Shorts.fromBytes(wholeMessage[9], wholeMessage[8]);
+    short messageType = Shorts.fromBytes(frame[9], frame[8]);
     if (messageType != getMessageType()) {
       throw new KegboardMessageException("Message type mismatch: expected=" + getMessageType()
           + " got=" + messageType);
     }
 
-    // System.out.println(HexDump.dumpHexString(wholeMessage));
-
-    for (int i = 0; i <= (payload.length - 2); ) {
-      final int tagNum = payload[i] & 0x00ff;
-      final int length = payload[i + 1] & 0x00ff;
+    for (int i = KBSP_HEADER_LENGTH; i <= (payloadEnd - 2); ) {
+      final int tagNum = frame[i] & 0x00ff;
+      final int tagLength = frame[i + 1] & 0x00ff;
 
       i += 2;
 
-      if ((i + length) <= payload.length) {
-        mTags.put(Integer.valueOf(tagNum),
-            Arrays.copyOfRange(payload, i, i + length));
+      if ((i + tagLength) <= payloadEnd) {
+        mTagTable[mTagCount++] = (tagNum << 16) | (i << 8) | tagLength;
       }
 
-      i += length;
+      i += tagLength;
     }
-  }
 
-  private static int getCrc(byte[] payload) {
-    byte[] message = Bytes.concat(KBSP_HEADER_BYTES, payload);
-    return KegboardCrc.crc16Ccitt(message, message.length);
+    mFrame = frame;
+    mPayloadLength = payloadLength;
   }
 
-  public byte[] toBytes() {
-    byte[] payload = new byte[0];
+  /** Appends a tag to the payload of an outgoing message. */
+  protected void putTag(int tagNum, byte[] value) {
+    if (mFrame == null) {
+      mFrame = new byte[KBSP_MAX_LENGTH];
+    }
+    final int offset = KBSP_HEADER_LENGTH + mPayloadLength + 2;
+    if (offset + value.length > KBSP_HEADER_LENGTH + KBSP_PAYLOAD_MAX_LENGTH) {
+      throw new IllegalArgumentException("Payload too large.");
+    }
+    mFrame[offset - 2] = (byte) tagNum;
+    mFrame[offset - 1] = (byte) value.length;
+    System.arraycopy(value, 0, mFrame, offset, value.length);
+    mTagTable[mTagCount++] = ((tagNum & 0xff) << 16) | (offset << 8) | value.length;
+    mPayloadLength += 2 + value.length;
+  }
 
-    for (Map.Entry<Integer, byte[]> entry : mTags.entrySet()) {
-      final byte[] tag = new byte[]{(byte) (entry.getKey().intValue() & 0x0ff)};
-      final byte[] value = entry.getValue();
-      final int len = value.length & 0x0ff;
-      final byte[] length = new byte[]{(byte) len};
+  /** Returns the number of bytes {@link #writeTo(ByteBuffer)} will write. */
+  public int getEncodedLength() {
+    return KBSP_HEADER_LENGTH + mPayloadLength + KBSP_TRAILER_LENGTH;
+  }
 
-      payload = Bytes.concat(payload, tag, length, value);
+  /**
+   * Encodes this message at the current position of {@code out}, computing the CRC as the header
+   * and payload are written. Nothing is allocated, so a single buffer may be reused, or filled with
+   * several messages for one write.
+   *
+   * @return the number of bytes written
+   * @throws BufferOverflowException if {@code out} has less than {@link #getEncodedLength()} bytes
+   *     remaining, in which case nothing is written
+   */
+  public int writeTo(ByteBuffer out) {
+    final int length = getEncodedLength();
+    if (out.remaining() < length) {
+      throw new BufferOverflowException();
     }
 
-    byte[] messageType = new byte[]{(byte) (getMessageType() & 0x0ff), 00};
-    byte[] messageLength = new byte[]{(byte) (payload.length & 0x0ff), 00};
+    final short messageType = getMessageType();
+    int crc = KegboardCrc.update(KegboardCrc.INITIAL_VALUE, KBSP_HEADER_BYTES, 0,
+        KBSP_HEADER_BYTES.length);
+    out.put(KBSP_HEADER_BYTES);
+    crc = putLittleEndianShort(out, crc, messageType);
+    crc = putLittleEndianShort(out, crc, mPayloadLength);
+    if (mPayloadLength > 0) {
+      out.put(mFrame, KBSP_HEADER_LENGTH, mPayloadLength);
+      crc = KegboardCrc.update(crc, mFrame, KBSP_HEADER_LENGTH, mPayloadLength);
+    }
+    out.put((byte) crc);
+    out.put((byte) (crc >> 8));
+    out.put(KBSP_TRAILER_BYTES);
+    return length;
+  }
 
-    byte[] message = Bytes.concat(KBSP_HEADER_BYTES, messageType, messageLength, payload);
+  private static int putLittleEndianShort(ByteBuffer out, int crc, int value) {
+    final byte low = (byte) value;
+    final byte high = (byte) (value >> 8);
+    out.put(low);
+    out.put(high);
+    return KegboardCrc.update(KegboardCrc.update(crc, low), high);
+  }
 
-    byte[] crc = Shorts.toByteArray((short) (getCrc(message) & 0x0ffff));
-    byte[] result = Bytes.concat(message, crc, KBSP_TRAILER_BYTES);
+  public byte[] toBytes() {
+    final byte[] result = new byte[getEncodedLength()];
+    writeTo(ByteBuffer.wrap(result));
     return result;
   }
 
+  /**
+   * Returns an independent copy of this message, for keeping a message obtained from
+   * {@link KegboardMessageFactory#getReusableMessage()}.
+   */
+  public KegboardMessage copy() {
+    try {
+      return fromBytes(toBytes());
+    } catch (KegboardMessageException e) {
+      throw new IllegalStateException("Cannot copy " + getClass().getSimpleName(), e);
+    }
+  }
+
   @Override
   public String toString() {
     Class<? extends KegboardMessage> clazz = this.getClass();
@@ -171,41 +253,109 @@ public abstract class KegboardMessage {
     return "";
   }
 
+  int getTagCount() {
+    return mTagCount;
+  }
+
+  int getTagNumberAt(int index) {
+    return mTagTable[index] >>> 16;
+  }
+
+  /** Returns the table entry for {@code tagNum}, or {@code -1} if the tag is absent. */
+  private int findTag(int tagNum) {
+    for (int i = 0; i < mTagCount; i++) {
+      final int entry = mTagTable[i];
+      if ((entry >>> 16) == tagNum) {
+        return entry;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the value length of the given tag, or {@code -1} if the tag is absent. */
+  public int getTagLength(int tagNum) {
+    final int entry = findTag(tagNum);
+    return entry < 0 ? -1 : entry & 0xff;
+  }
+
   public byte[] readTag(int tagNum) {
-    return mTags.get(Integer.valueOf(tagNum));
+    final int entry = findTag(tagNum);
+    if (entry < 0) {
+      return null;
+    }
+    final int offset = (entry >> 8) & 0xff;
+    return Arrays.copyOfRange(mFrame, offset, offset + (entry & 0xff));
   }
 
   public int readTagAsShort(int tagNum) {
-    final byte[] tagData = readTag(tagNum);
-    if (tagData != null && tagData.length == 2) {
-      int result = (tagData[1] & 0xff) << 8;
-      result |= tagData[0] & 0xff;
+    final int entry = findTag(tagNum);
+    if (entry >= 0 && (entry & 0xff) == 2) {
+      final int offset = (entry >> 8) & 0xff;
+      int result = (mFrame[offset + 1] & 0xff) << 8;
+      result |= mFrame[offset] & 0xff;
       return result;
     }
     return 0;
   }
 
+  /**
+   * Reads a 4-byte tag value, returning {@code defaultValue} if the tag is absent or has another
+   * length. Unlike {@link #readTagAsLong(int)}, never allocates.
+   */
+  public long readTagAsLong(int tagNum, long defaultValue) {
+    final int entry = findTag(tagNum);
+    if (entry >= 0 && (entry & 0xff) == 4) {
+      final int offset = (entry >> 8) & 0xff;
+      long result = (mFrame[offset + 3] & 0xff) << 24;
+      result |= (mFrame[offset + 2] & 0xff) << 16;
+      result |= (mFrame[offset + 1] & 0xff) << 8;
+      result |= mFrame[offset] & 0xff;
+      return result;
+    }
+    return defaultValue;
+  }
+
   public Long readTagAsLong(int tagNum) {
-    final byte[] tagData = readTag(tagNum);
-    if (tagData != null && tagData.length == 4) {
-      long result = (tagData[3] & 0xff) << 24;
-      result |= (tagData[2] & 0xff) << 16;
-      result |= (tagData[1] & 0xff) << 8;
-      result |= tagData[0] & 0xff;
-      return Long.valueOf(result);
+    if (getTagLength(tagNum) != 4) {
+      return null;
     }
-    return null;
+    return Long.valueOf(readTagAsLong(tagNum, 0));
   }
 
   public String readTagAsString(int tagNum) {
-    final byte[] tagData = readTag(tagNum);
-    if (tagData == null) {
+    final int entry = findTag(tagNum);
+    if (entry < 0) {
       return null;
     }
-    return new String(tagData).replace("\0", "");
+    return new String(mFrame, (entry >> 8) & 0xff, entry & 0xff).replace("\0", "");
+  }
+
+  /**
+   * Returns whether the value of the given tag, read as by {@link #readTagAsString(int)}, equals
+   * the ASCII string {@code value}. Never allocates.
+   */
+  public boolean tagEquals(int tagNum, byte[] value) {
+    final int entry = findTag(tagNum);
+    if (entry < 0) {
+      return false;
+    }
+    final int offset = (entry >> 8) & 0xff;
+    final int end = offset + (entry & 0xff);
+    int matched = 0;
+    for (int i = offset; i < end; i++) {
+      final byte b = mFrame[i];
+      if (b == 0) {
+        continue;
+      }
+      if (matched == value.length || value[matched] != b) {
+        return false;
+      }
+      matched++;
+    }
+    return matched == value.length;
   }
 
-  private static int extractType(final byte[] bytes) {
+  static int extractType(final byte[] bytes) {
     return Shorts.fromBytes(bytes[9], bytes[8]);
   }
 
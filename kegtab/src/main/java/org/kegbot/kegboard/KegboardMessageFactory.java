@@ -19,15 +19,44 @@
 package org.kegbot.kegboard;
 
 import com.google.common.base.Preconditions;
-import com.google.common.primitives.Shorts;
-
-import java.util.Arrays;
-
-import javax.annotation.concurrent.GuardedBy;
 
+/**
+ * Assembles {@link KegboardMessage KegboardMessages} from a raw KBSP byte stream.
+ * <p>
+ * Framing happens as bytes arrive: {@link #addBytes(byte[], int)} appends the new bytes to a
+ * fixed-size ring buffer and scans them, matching the frame prefix, reading the payload length, and
+ * folding header and payload bytes into a running CRC, so a frame is validated as soon as its
+ * trailer lands. The ring is divided by free-running cursors:
+ * </p>
+ * <pre>
+ *   mReadPosition .. mCompletePosition     validated frames, back to back
+ *   mCompletePosition .. mFrameStart       discarded bytes, reclaimed lazily
+ *   mFrameStart .. mScanPosition           the frame being received
+ *   mScanPosition .. mWritePosition        bytes not yet scanned
+ * </pre>
+ * <p>
+ * Consuming a frame is a cursor bump rather than a shift of the whole buffer. When out of sync, the
+ * scanner jumps to the next byte which could start a frame prefix; when a candidate frame is
+ * rejected, scanning resumes one byte after its start, so a real frame hidden inside a truncated
+ * one is still found. Each input byte is therefore examined a bounded number of times, no matter
+ * how noisy the line. Skipped bytes are counted in {@link #getDiscardedByteCount()}.
+ * </p>
+ * <p>
+ * When the buffer is full, {@link #addBytes(byte[], int)} takes only what fits; the remainder is
+ * counted in {@link #getDroppedByteCount()}.
+ * </p>
+ * <p>
+ * A factory is a lock-free single-producer, single-consumer queue of frames. One thread at a time
+ * may add bytes, and one thread at a time may take messages; the two may be different threads,
+ * and neither ever blocks the other. The producer owns every cursor but {@code mReadPosition}
+ * and publishes validated frames by advancing {@code mCompletePosition}; the consumer owns
+ * {@code mReadPosition} and frees space by advancing it. Each counter likewise has a single
+ * writer, so {@link #getStats()} may be called from any thread, though its snapshot is not atomic.
+ * </p>
+ */
 public class KegboardMessageFactory {
 
-  private static final boolean DEBUG = true;
+  private static final boolean DEBUG = false;
 
   private static final byte[] KBSP_PREFIX = "KBSP v1:".getBytes();
   private static final byte[] KBSP_TRAILER = "\r\n".getBytes();
@@ -35,81 +64,462 @@ public class KegboardMessageFactory {
   private static final int KBSP_HEADER_LENGTH = 12;
   private static final int KBSP_CRC_LENGTH = 2;
   private static final int KBSP_TRAILER_LENGTH = KBSP_CRC_LENGTH + KBSP_TRAILER.length;
-  private static final int KBSP_MIN_PACKET_SIZE = KBSP_HEADER_LENGTH + KBSP_TRAILER_LENGTH;
+  private static final int KBSP_PAYLOAD_MAX_LENGTH = 240;
+
+  /** Default ring buffer capacity. Must be a power of two. */
+  public static final int DEFAULT_CAPACITY = 2048;
+
+  private final byte[] mBuffer;
+
+  private final int mMask;
+
+  /**
+   * Free-running cursors into {@link #mBuffer}; see the class comment. Only their differences and
+   * their values modulo the capacity are meaningful, so integer overflow is harmless.
+   */
+  private volatile int mReadPosition = 0;
+
+  private volatile int mCompletePosition = 0;
+
+  private int mFrameStart = 0;
+
+  private int mScanPosition = 0;
+
+  private int mWritePosition = 0;
+
+  /** Payload length of the frame being received, known once its header is complete. */
+  private int mPayloadLength = 0;
+
+  /** Running CRC over the header and payload of the frame being received. */
+  private int mCrc = KegboardCrc.INITIAL_VALUE;
+
+  private volatile long mDroppedBytes = 0;
+
+  private volatile long mDiscardedBytes = 0;
+
+  private volatile long mRescannedBytes = 0;
+
+  private volatile long mBytesAdded = 0;
+
+  private volatile long mFramesValidated = 0;
+
+  private volatile long mMessagesDecoded = 0;
+
+  private volatile long mUndecodableFrames = 0;
+
+  private volatile long mCrcFailures = 0;
+
+  private volatile long mOversizePayloads = 0;
+
+  private volatile long mResyncs = 0;
+
+  private volatile long mOverflows = 0;
+
+  /** Frame storage backing the messages returned by {@link #getReusableMessage()}. */
+  private final byte[] mFrame = new byte[KegboardMessage.KBSP_MAX_LENGTH];
+
+  private final KegboardHelloMessage mHelloMessage = new KegboardHelloMessage();
+  private final KegboardMeterStatusMessage mMeterStatusMessage = new KegboardMeterStatusMessage();
+  private final KegboardTemperatureReadingMessage mTemperatureReadingMessage =
+      new KegboardTemperatureReadingMessage();
+  private final KegboardOutputStatusMessage mOutputStatusMessage =
+      new KegboardOutputStatusMessage();
+  private final KegboardAuthTokenMessage mAuthTokenMessage = new KegboardAuthTokenMessage();
 
-  @GuardedBy("this")
-  private final byte[] mBuffer = new byte[2048];
+  /** Immutable snapshot of the counters kept by a {@link KegboardMessageFactory}. */
+  public static final class Stats {
+    /** Bytes passed to {@link #addBytes(byte[], int)}, including any dropped. */
+    public final long bytesAdded;
+    /** Bytes rejected because the buffer was full. */
+    public final long bytesDropped;
+    /** Bytes skipped while searching for frames. */
+    public final long bytesDiscarded;
+    /** Frames which passed framing, CRC and trailer checks. */
+    public final long framesValidated;
+    /** Messages returned to callers. */
+    public final long messagesDecoded;
+    /** Valid frames that could not be decoded, for example of an unknown message type. */
+    public final long undecodableFrames;
+    public final long crcFailures;
+    public final long oversizePayloads;
+    /** Times the scanner skipped bytes or abandoned a candidate frame to regain framing. */
+    public final long resyncs;
+    /** Calls to {@link #addBytes(byte[], int)} which found the buffer full. */
+    public final long overflows;
 
-  private int mAppendPosition = 0;
+    Stats(long bytesAdded, long bytesDropped, long bytesDiscarded, long framesValidated,
+        long messagesDecoded, long undecodableFrames, long crcFailures, long oversizePayloads,
+        long resyncs, long overflows) {
+      this.bytesAdded = bytesAdded;
+      this.bytesDropped = bytesDropped;
+      this.bytesDiscarded = bytesDiscarded;
+      this.framesValidated = framesValidated;
+      this.messagesDecoded = messagesDecoded;
+      this.undecodableFrames = undecodableFrames;
+      this.crcFailures = crcFailures;
+      this.oversizePayloads = oversizePayloads;
+      this.resyncs = resyncs;
+      this.overflows = overflows;
+    }
 
-  public synchronized void addBytes(byte[] newBytes, int length) {
-    for (int i = 0; i < length; i++) {
-      mBuffer[mAppendPosition++] = newBytes[i];
+    @Override
+    public String toString() {
+      return String.format("bytes=%s dropped=%s discarded=%s frames=%s decoded=%s undecodable=%s "
+              + "crcFailures=%s oversize=%s resyncs=%s overflows=%s",
+          Long.valueOf(bytesAdded), Long.valueOf(bytesDropped), Long.valueOf(bytesDiscarded),
+          Long.valueOf(framesValidated), Long.valueOf(messagesDecoded),
+          Long.valueOf(undecodableFrames), Long.valueOf(crcFailures),
+          Long.valueOf(oversizePayloads), Long.valueOf(resyncs), Long.valueOf(overflows));
     }
   }
 
-  public synchronized KegboardMessage getMessage() {
-    // Consume from mBuffer until done
-    while (mAppendPosition > 0) {
-      final int available = mAppendPosition;
-      if (available < KBSP_MIN_PACKET_SIZE) {
-        return null;
+  public KegboardMessageFactory() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public KegboardMessageFactory(int capacity) {
+    Preconditions.checkArgument(capacity >= KBSP_HEADER_LENGTH + KBSP_PAYLOAD_MAX_LENGTH
+        + KBSP_TRAILER_LENGTH, "Capacity too small for a maximal frame: %s", capacity);
+    Preconditions.checkArgument(Integer.bitCount(capacity) == 1,
+        "Capacity must be a power of two: %s", capacity);
+    mBuffer = new byte[capacity];
+    mMask = capacity - 1;
+  }
+
+  /**
+   * Feeds up to {@code length} bytes from {@code newBytes} into the stream.
+   * <p>
+   * If the buffer cannot hold them all, the excess is dropped, and the frame it would have
+   * completed is abandoned. Producer side only.
+   * </p>
+   *
+   * @return the number of bytes accepted, which is less than {@code length} only when the buffer
+   *     is full
+   */
+  public int addBytes(byte[] newBytes, int length) {
+    reclaimDiscarded();
+    mBytesAdded += length;
+
+    final int accepted = Math.min(length, mBuffer.length - (mWritePosition - mReadPosition));
+    final int start = mWritePosition & mMask;
+    final int firstChunk = Math.min(accepted, mBuffer.length - start);
+    System.arraycopy(newBytes, 0, mBuffer, start, firstChunk);
+    System.arraycopy(newBytes, firstChunk, mBuffer, 0, accepted - firstChunk);
+    mWritePosition += accepted;
+
+    scan();
+
+    if (accepted < length) {
+      mOverflows++;
+      mDroppedBytes += length - accepted;
+      debug("Buffer full, dropping " + (length - accepted) + " bytes");
+      // The frame in progress will never see its remaining bytes.
+      if (mWritePosition != mFrameStart) {
+        mDiscardedBytes += mWritePosition - mFrameStart;
+        mResyncs++;
+      }
+      mFrameStart = mScanPosition = mWritePosition;
+      resetFrame();
+    }
+    return accepted;
+  }
+
+  /** Scans all unscanned bytes, publishing each frame that validates. */
+  private void scan() {
+    while (mScanPosition != mWritePosition) {
+      final int received = mScanPosition - mFrameStart;
+
+      if (received == 0) {
+        // Out of frame: jump to the next possible frame start.
+        final int prefixStart = indexOf(KBSP_PREFIX[0], mScanPosition, mWritePosition);
+        if (prefixStart != mScanPosition) {
+          mDiscardedBytes += prefixStart - mScanPosition;
+          mResyncs++;
+        }
+        mFrameStart = mScanPosition = prefixStart;
+        if (prefixStart == mWritePosition) {
+          return;
+        }
       }
 
-      boolean framingError = false;
-      for (int i = 0; i < KBSP_PREFIX.length; i++) {
-        if (mBuffer[i] != KBSP_PREFIX[i]) {
-          compact(i + 1);
-          framingError = true;
-          break;
+      if (received < KBSP_PREFIX.length) {
+        final byte b = byteAt(mScanPosition);
+        if (b != KBSP_PREFIX[received]) {
+          rejectFrame(null);
+          continue;
         }
+        mCrc = KegboardCrc.update(mCrc, b);
+        mScanPosition++;
+        continue;
       }
 
-      if (framingError) {
-        //debug("Framing error: " + HexDump.dumpHexString(mBuffer, 0, 12));
+      if (received < KBSP_HEADER_LENGTH) {
+        mCrc = KegboardCrc.update(mCrc, byteAt(mScanPosition));
+        mScanPosition++;
+
+        if (received + 1 == KBSP_HEADER_LENGTH) {
+          mPayloadLength = ((byteAt(mFrameStart + 11) & 0xff) << 8)
+              | (byteAt(mFrameStart + 10) & 0xff);
+          if (mPayloadLength > KBSP_PAYLOAD_MAX_LENGTH) {
+            mOversizePayloads++;
+            rejectFrame("Illegal payload length");
+          }
+        }
         continue;
       }
 
-      int payloadLength = Shorts.fromBytes(mBuffer[11], mBuffer[10]);
-      if (payloadLength > 240) {
-        compact(KBSP_HEADER_LENGTH);
-        framingError("Illegal payload length");
+      final int payloadEnd = KBSP_HEADER_LENGTH + mPayloadLength;
+      if (received < payloadEnd) {
+        final int chunk = Math.min(payloadEnd - received, mWritePosition - mScanPosition);
+        final int start = mScanPosition & mMask;
+        final int firstChunk = Math.min(chunk, mBuffer.length - start);
+        mCrc = KegboardCrc.update(mCrc, mBuffer, start, firstChunk);
+        mCrc = KegboardCrc.update(mCrc, mBuffer, 0, chunk - firstChunk);
+        mScanPosition += chunk;
+        continue;
+      }
+
+      // CRC and trailer bytes.
+      final int frameLength = payloadEnd + KBSP_TRAILER_LENGTH;
+      mScanPosition += Math.min(frameLength - received, mWritePosition - mScanPosition);
+      if (mScanPosition - mFrameStart == frameLength) {
+        completeFrame(payloadEnd);
+      }
+    }
+  }
+
+  /** Checks the CRC and trailer of a fully-received frame, publishing it if valid. */
+  private void completeFrame(int payloadEnd) {
+    final int start = mFrameStart;
+    final int frameCrc = ((byteAt(start + payloadEnd + 1) & 0xff) << 8)
+        | (byteAt(start + payloadEnd) & 0xff);
+    if (frameCrc != mCrc) {
+      mCrcFailures++;
+      rejectFrame("Bad CRC");
+    } else if (byteAt(start + payloadEnd + 2) != KBSP_TRAILER[0]
+        || byteAt(start + payloadEnd + 3) != KBSP_TRAILER[1]) {
+      rejectFrame("Illegal trailer value");
+    } else {
+      final int frameLength = mScanPosition - mFrameStart;
+      if (mFrameStart != mCompletePosition) {
+        // Close the gap left by discarded bytes. Moving down, so a forward copy is safe.
+        for (int i = 0; i < frameLength; i++) {
+          mBuffer[(mCompletePosition + i) & mMask] = mBuffer[(mFrameStart + i) & mMask];
+        }
+      }
+      mCompletePosition += frameLength;
+      mFramesValidated++;
+      mFrameStart = mScanPosition;
+      resetFrame();
+    }
+  }
+
+  /**
+   * Abandons the frame being received and resumes scanning just after its first byte.
+   *
+   * @param reason if non-{@code null}, logged as a framing error
+   */
+  private void rejectFrame(String reason) {
+    if (reason != null) {
+      framingError(reason);
+    }
+    mDiscardedBytes++;
+    mResyncs++;
+    mRescannedBytes += Math.max(0, mScanPosition - mFrameStart - 1);
+    mFrameStart = mScanPosition = mFrameStart + 1;
+    resetFrame();
+  }
+
+  private void resetFrame() {
+    mPayloadLength = 0;
+    mCrc = KegboardCrc.INITIAL_VALUE;
+  }
+
+  /**
+   * Drops the gap of discarded bytes after the validated frames by moving the frame in progress
+   * down. Called before accepting new bytes, when at most one partial frame is buffered.
+   */
+  private void reclaimDiscarded() {
+    final int gap = mFrameStart - mCompletePosition;
+    if (gap == 0) {
+      return;
+    }
+    final int pending = mWritePosition - mFrameStart;
+    for (int i = 0; i < pending; i++) {
+      mBuffer[(mCompletePosition + i) & mMask] = mBuffer[(mFrameStart + i) & mMask];
+    }
+    mFrameStart -= gap;
+    mScanPosition -= gap;
+    mWritePosition -= gap;
+  }
+
+  /**
+   * Returns the position of the first occurrence of {@code b} in {@code [from, to)}, or {@code to}
+   * if there is none.
+   */
+  private int indexOf(byte b, int from, int to) {
+    final byte[] buffer = mBuffer;
+    final int mask = mMask;
+    int position = from;
+    while (position != to && buffer[position & mask] != b) {
+      position++;
+    }
+    return position;
+  }
+
+  /**
+   * Returns the number of bytes that can currently be added without dropping. Producer side only;
+   * a concurrent consumer can only make the true figure larger.
+   */
+  public int getFreeSpace() {
+    // Discarded bytes are reclaimed before new bytes are accepted, so they count as free.
+    return mBuffer.length - (mCompletePosition - mReadPosition) - (mWritePosition - mFrameStart);
+  }
+
+  /** Returns the total number of bytes rejected by {@link #addBytes(byte[], int)}. */
+  public long getDroppedByteCount() {
+    return mDroppedBytes;
+  }
+
+  /**
+   * Returns the total number of bytes skipped while looking for frames: line noise, and the bytes
+   * of frames which failed validation.
+   */
+  public long getDiscardedByteCount() {
+    return mDiscardedBytes;
+  }
+
+  /**
+   * Returns the total number of bytes scanned again after a candidate frame holding them was
+   * rejected. Bytes are otherwise scanned once, so this bounds the framing work beyond one pass.
+   */
+  public long getRescannedByteCount() {
+    return mRescannedBytes;
+  }
+
+  /** Returns a snapshot of this factory's counters. */
+  public Stats getStats() {
+    return new Stats(mBytesAdded, mDroppedBytes, mDiscardedBytes, mFramesValidated,
+        mMessagesDecoded, mUndecodableFrames, mCrcFailures, mOversizePayloads, mResyncs,
+        mOverflows);
+  }
+
+  /**
+   * Returns the next message in the stream, or {@code null} if no complete message is buffered. The
+   * returned message is newly allocated and owned by the caller. Consumer side only.
+   */
+  public KegboardMessage getMessage() {
+    while (true) {
+      final int length = nextFrameLength();
+      if (length == 0) {
         return null;
       }
 
-      int totalLength = KBSP_HEADER_LENGTH + payloadLength + KBSP_TRAILER_LENGTH;
-      if (available < totalLength) {
+      final byte[] frame = new byte[length];
+      copyFrame(frame, length);
+
+      try {
+        final KegboardMessage message = KegboardMessage.fromBytes(frame);
+        mMessagesDecoded++;
+        return message;
+      } catch (KegboardMessageException e) {
+        mUndecodableFrames++;
+        debug("Error building message: " + e);
+        /* Don't return, keep trying. */
+      }
+    }
+  }
+
+  /**
+   * Like {@link #getMessage()}, but decodes into a message instance owned by this factory, one per
+   * message type. The instance is only valid until the next call to this method; callers needing
+   * to keep a message should use {@link #getMessage()} instead. Decoding a well-formed frame this
+   * way does not allocate. Consumer side only.
+   */
+  public KegboardMessage getReusableMessage() {
+    while (true) {
+      final int length = nextFrameLength();
+      if (length == 0) {
         return null;
       }
 
-      final KegboardMessage message;
+      copyFrame(mFrame, length);
+
+      final KegboardMessage message = getReusableInstance(KegboardMessage.extractType(mFrame));
+      if (message == null) {
+        mUndecodableFrames++;
+        debug("Error building message: Unknown message type");
+        continue;
+      }
+
       try {
-        message = KegboardMessage.fromBytes(Arrays.copyOf(mBuffer, totalLength));
+        message.parse(mFrame, length, false);
+        mMessagesDecoded++;
         return message;
       } catch (KegboardMessageException e) {
+        mUndecodableFrames++;
         debug("Error building message: " + e);
         /* Don't return, keep trying. */
-      } finally {
-        compact(totalLength);
       }
     }
-    return null;
   }
 
-  private void compact(int length) {
-    mAppendPosition -= length;
-    Preconditions.checkState(mAppendPosition >= 0);
-    System.arraycopy(mBuffer, length, mBuffer, 0, mBuffer.length - length);
+  private KegboardMessage getReusableInstance(int messageType) {
+    switch (messageType) {
+      case KegboardHelloMessage.MESSAGE_TYPE:
+        return mHelloMessage;
+      case KegboardMeterStatusMessage.MESSAGE_TYPE:
+        return mMeterStatusMessage;
+      case KegboardTemperatureReadingMessage.MESSAGE_TYPE:
+        return mTemperatureReadingMessage;
+      case KegboardOutputStatusMessage.MESSAGE_TYPE:
+        return mOutputStatusMessage;
+      case KegboardAuthTokenMessage.MESSAGE_TYPE:
+        return mAuthTokenMessage;
+      default:
+        return null;
+    }
+  }
+
+  /** Returns the length of the next validated frame, or {@code 0} if there is none. */
+  private int nextFrameLength() {
+    // Reading the volatile cursor makes the frame bytes written before it was advanced visible.
+    if (mReadPosition == mCompletePosition) {
+      return 0;
+    }
+    final int payloadLength = ((byteAt(mReadPosition + 11) & 0xff) << 8)
+        | (byteAt(mReadPosition + 10) & 0xff);
+    return KBSP_HEADER_LENGTH + payloadLength + KBSP_TRAILER_LENGTH;
+  }
+
+  /**
+   * Moves the next {@code length} bytes out of the ring into {@code dest}, then hands their space
+   * back to the producer.
+   */
+  private void copyFrame(byte[] dest, int length) {
+    final int readPosition = mReadPosition;
+    final int start = readPosition & mMask;
+    final int firstChunk = Math.min(length, mBuffer.length - start);
+    System.arraycopy(mBuffer, start, dest, 0, firstChunk);
+    System.arraycopy(mBuffer, 0, dest, firstChunk, length - firstChunk);
+    mReadPosition = readPosition + length;
+  }
+
+  private byte byteAt(int position) {
+    return mBuffer[position & mMask];
   }
 
   private void debug(String message) {
     if (DEBUG) {
-      System.out.println("[mAppendPosition=" + mAppendPosition + "]: " + message);
+      System.out.println("[buffered=" + (mWritePosition - mReadPosition) + "]: " + message);
     }
   }
 
   private void framingError(String reason) {
-    debug("Framing error: " + reason);
+    // Checked here so that noisy streams don't pay for building the message.
+    if (DEBUG) {
+      debug("Framing error: " + reason);
+    }
   }
 
 }
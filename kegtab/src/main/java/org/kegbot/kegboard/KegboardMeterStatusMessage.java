@@ -29,6 +29,9 @@ public class KegboardMeterStatusMessage extends KegboardMessage {
   public static final int TAG_METER_NAME = 0x01;
   public static final int TAG_METER_READING = 0x02;
 
+  KegboardMeterStatusMessage() {
+  }
+
   public KegboardMeterStatusMessage(byte[] wholeMessage) throws KegboardMessageException {
     super(wholeMessage);
   }
@@ -43,11 +46,7 @@ public class KegboardMeterStatusMessage extends KegboardMessage {
   }
 
   public long getMeterReading() {
-    Long result = readTagAsLong(TAG_METER_READING);
-    if (result != null) {
-      return result.longValue();
-    }
-    return 0;
+    return readTagAsLong(TAG_METER_READING, 0);
   }
 
   @Override
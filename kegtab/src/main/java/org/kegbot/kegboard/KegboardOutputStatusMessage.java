@@ -25,6 +25,9 @@ public class KegboardOutputStatusMessage extends KegboardMessage {
 
   public static final int MESSAGE_TYPE = 0x12;
 
+  KegboardOutputStatusMessage() {
+  }
+
   public KegboardOutputStatusMessage(byte[] wholeMessage) throws KegboardMessageException {
     super(wholeMessage);
   }
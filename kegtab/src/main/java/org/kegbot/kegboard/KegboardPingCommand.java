@@ -25,6 +25,8 @@ public class KegboardPingCommand extends KegboardMessage {
 
   private static final short MESSAGE_TYPE = 0x81;
 
+  private static final byte[] ENCODED = new KegboardPingCommand().toBytes();
+
   public KegboardPingCommand() {
 
   }
@@ -33,6 +35,13 @@ public class KegboardPingCommand extends KegboardMessage {
     super(wholeMessage);
   }
 
+  /**
+   * Returns the encoded ping frame. The array is shared and must not be modified.
+   */
+  public static byte[] getEncoded() {
+    return ENCODED;
+  }
+
   @Override
   public short getMessageType() {
     return MESSAGE_TYPE;
@@ -29,19 +29,43 @@ public class KegboardSetOutputCommand extends KegboardMessage {
   public static final int TAG_OUTPUT_ID = 0x01;
   public static final int TAG_OUTPUT_MODE = 0x02;
 
+  /** Number of outputs on a Kegboard; commands for these are encoded once, up front. */
+  public static final int NUM_OUTPUTS = 4;
+
+  /** Pre-encoded frames, indexed by {@code outputId * 2 + (enabled ? 1 : 0)}. */
+  private static final byte[][] ENCODED = new byte[NUM_OUTPUTS * 2][];
+
+  static {
+    for (int outputId = 0; outputId < NUM_OUTPUTS; outputId++) {
+      ENCODED[outputId * 2] = new KegboardSetOutputCommand(outputId, false).toBytes();
+      ENCODED[outputId * 2 + 1] = new KegboardSetOutputCommand(outputId, true).toBytes();
+    }
+  }
+
   public KegboardSetOutputCommand(byte[] wholeMessage) throws KegboardMessageException {
     super(wholeMessage);
   }
 
   public KegboardSetOutputCommand(int outputId, boolean enabled) {
-    mTags.put(Integer.valueOf(TAG_OUTPUT_ID), new byte[]{(byte) (outputId & 0xf)});
+    putTag(TAG_OUTPUT_ID, new byte[]{(byte) (outputId & 0xf)});
     byte[] value;
     if (enabled) {
       value = new byte[]{1, 0};
     } else {
       value = new byte[]{0, 0};
     }
-    mTags.put(Integer.valueOf(TAG_OUTPUT_MODE), value);
+    putTag(TAG_OUTPUT_MODE, value);
+  }
+
+  /**
+   * Returns the encoded frame for setting {@code outputId} to {@code enabled}. Frames for the
+   * {@link #NUM_OUTPUTS} standard outputs are shared and must not be modified.
+   */
+  public static byte[] getEncoded(int outputId, boolean enabled) {
+    if (outputId >= 0 && outputId < NUM_OUTPUTS) {
+      return ENCODED[outputId * 2 + (enabled ? 1 : 0)];
+    }
+    return new KegboardSetOutputCommand(outputId, enabled).toBytes();
   }
 
   @Override
@@ -29,6 +29,9 @@ public class KegboardTemperatureReadingMessage extends KegboardMessage {
 
   public static final int TAG_SENSOR_VALUE = 0x02;
 
+  KegboardTemperatureReadingMessage() {
+  }
+
   public KegboardTemperatureReadingMessage(byte[] wholeMessage) throws KegboardMessageException {
     super(wholeMessage);
   }
@@ -43,11 +46,10 @@ public class KegboardTemperatureReadingMessage extends KegboardMessage {
   }
 
   public double getValue() {
-    final Long rawValue = readTagAsLong(TAG_SENSOR_VALUE);
-    if (rawValue == null) {
+    if (getTagLength(TAG_SENSOR_VALUE) != 4) {
       throw new IllegalStateException("Missing tag.");
     }
-    return rawValue.doubleValue() / 1e6;
+    return readTagAsLong(TAG_SENSOR_VALUE, 0) / 1e6;
   }
 
   @Override